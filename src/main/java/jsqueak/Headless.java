@@ -0,0 +1,119 @@
+package jsqueak;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.file.Files;
+
+import jsqueak.display.impl.NullScreenFactory;
+import jsqueak.image.SqueakImage;
+import jsqueak.io.impl.NullKeyboardFactory;
+import jsqueak.monitor.LogMonitor;
+import jsqueak.monitor.Monitor;
+import jsqueak.vm.EvaluationFailedException;
+import jsqueak.vm.SqueakVM;
+
+/**
+ * Runs an image in batch mode, without AWT: evaluates a doit or a script
+ * file, with the Transcript going to stdout, and exits.
+ *
+ * Usage: Headless [-image file] [-log file] [-timeout seconds] (-e doit | script)
+ *
+ * A doit's result is printed after its Transcript output.  The exit status
+ * is 0 on success, 1 if the evaluation failed (e.g. hit an error, which
+ * would open a notifier), 2 for bad arguments or an unreadable image or
+ * script, and 3 on timeout.  The jsqueak.* properties of Starter apply.
+ */
+public class Headless {
+    private static final int FAILED = 1, BAD_ARGUMENTS = 2, TIMED_OUT = 3;
+
+    public static void main(String[] args) {
+        System.setProperty("java.awt.headless", "true");
+        String imageName = null, logName = null, doit = null, scriptName = null;
+        int timeout = 0;
+        try {
+            for (int i = 0; i < args.length; i++) {
+                if (args[i].equals("-image"))
+                    imageName = args[++i];
+                else if (args[i].equals("-log"))
+                    logName = args[++i];
+                else if (args[i].equals("-timeout"))
+                    timeout = Integer.parseInt(args[++i]);
+                else if (args[i].equals("-e"))
+                    doit = args[++i];
+                else if (scriptName == null && !args[i].startsWith("-"))
+                    scriptName = args[i];
+                else
+                    usage();
+            }
+        } catch (RuntimeException e) {
+            usage();
+        }
+        if ((doit == null) == (scriptName == null))
+            usage();
+        if (timeout > 0)
+            exitAfter(timeout);
+
+        SqueakVM vm;
+        String source;
+        try {
+            Monitor monitor = new LogMonitor(logName == null ? null
+                    : new PrintStream(new FileOutputStream(logName), true));
+            SqueakImage image = imageName == null ? Starter.locateStartableImageAndLoadIt(monitor)
+                                                  : Starter.locateSavedImageAndLoadIt(imageName, monitor);
+            vm = new SqueakVM(image, monitor, new NullScreenFactory(), new NullKeyboardFactory());
+            Starter.configure(vm);
+            source = doit != null ? doit : read(scriptName);
+        } catch (IOException | RuntimeException e) {
+            System.err.println(e.getMessage());
+            System.exit(BAD_ARGUMENTS);
+            return;
+        }
+
+        try {
+            vm.setTranscript(System.out);
+            Object result = vm.evaluate(source);
+            vm.evaluate("Transcript endEntry");
+            if (doit != null)
+                System.out.println(vm.printStringOf(result));
+            System.out.flush();
+            System.exit(0);
+        } catch (EvaluationFailedException e) {
+            System.out.flush();
+            System.err.println("Evaluation failed: " + e.getMessage());
+        } catch (Exception e) {
+            System.out.flush();
+            e.printStackTrace();
+        }
+        System.exit(FAILED);
+    }
+
+    /** The script, with its line ends made into the image's CRs. */
+    private static String read(String scriptName) throws IOException {
+        String text = new String(Files.readAllBytes(new File(scriptName).toPath()), "ISO-8859-1");
+        return text.replace("\r\n", "\r").replace('\n', '\r');
+    }
+
+    private static void exitAfter(final int seconds) {
+        Thread watchdog = new Thread("JSqueak timeout") {
+            public void run() {
+                try {
+                    Thread.sleep(seconds * 1000L);
+                } catch (InterruptedException e) {
+                    return;
+                }
+                System.out.flush();
+                System.err.println("Timed out after " + seconds + " s");
+                System.exit(TIMED_OUT);
+            }
+        };
+        watchdog.setDaemon(true);
+        watchdog.start();
+    }
+
+    private static void usage() {
+        System.err.println("Usage: Headless [-image file] [-log file] [-timeout seconds] (-e doit | script)");
+        System.exit(BAD_ARGUMENTS);
+    }
+}
@@ -0,0 +1,72 @@
+package jsqueak;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+
+import jsqueak.image.SqueakImage;
+import jsqueak.monitor.LogMonitor;
+import jsqueak.monitor.Monitor;
+
+/**
+ * Converts an image to JSqueak's own format, which starts much faster,
+ * or back: reads a Squeak image (plain or compressed) or a JSqueak one,
+ * and saves it in the other format.
+ *
+ * Usage: ImageConverter [-log file] [-squeak] from to
+ *
+ * Without -squeak the result is a JSqueak image; with it, a Squeak image,
+ * compressed if its name ends in .gz.  The exit status is 0 on success
+ * and 2 for bad arguments or an image that cannot be read or written.
+ */
+public class ImageConverter {
+    private static final int BAD_ARGUMENTS = 2;
+
+    public static void main(String[] args) {
+        String logName = null, from = null, to = null;
+        boolean toSqueak = false;
+        try {
+            for (int i = 0; i < args.length; i++) {
+                if (args[i].equals("-log"))
+                    logName = args[++i];
+                else if (args[i].equals("-squeak"))
+                    toSqueak = true;
+                else if (from == null && !args[i].startsWith("-"))
+                    from = args[i];
+                else if (to == null && !args[i].startsWith("-"))
+                    to = args[i];
+                else
+                    usage();
+            }
+        } catch (RuntimeException e) {
+            usage();
+        }
+        if (to == null)
+            usage();
+
+        try {
+            Monitor monitor = new LogMonitor(logName == null ? null
+                    : new PrintStream(new FileOutputStream(logName), true));
+            long start = System.currentTimeMillis();
+            SqueakImage image = new SqueakImage(new File(from), monitor);
+            long read = System.currentTimeMillis();
+            File target = new File(to);
+            if (toSqueak)
+                image.save(target, target.getName().endsWith(".gz"));
+            else
+                image.saveNative(target);
+            System.out.println("Read " + from + " in " + (read - start) + " ms, wrote " + to
+                    + " in " + (System.currentTimeMillis() - read) + " ms");
+        } catch (IOException | RuntimeException e) {
+            System.err.println(e.getMessage());
+            System.exit(BAD_ARGUMENTS);
+        }
+        System.exit(0);
+    }
+
+    private static void usage() {
+        System.err.println("Usage: ImageConverter [-log file] [-squeak] from to");
+        System.exit(BAD_ARGUMENTS);
+    }
+}
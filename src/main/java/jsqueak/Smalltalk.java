@@ -0,0 +1,170 @@
+package jsqueak;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.math.BigInteger;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import jsqueak.display.impl.NullScreenFactory;
+import jsqueak.image.SqueakImage;
+import jsqueak.io.impl.NullKeyboardFactory;
+import jsqueak.monitor.LogMonitor;
+import jsqueak.monitor.Monitor;
+import jsqueak.vm.EvaluationFailedException;
+import jsqueak.vm.SqueakObject;
+import jsqueak.vm.SqueakVM;
+
+/**
+ * Evaluates Smalltalk from Java:
+ * <pre>
+ *    Smalltalk st = new Smalltalk("my.image");
+ *    SmalltalkCallResult fiveSquares = st.eval("(1 to: 5) collect: [ :it | it*it ]");
+ * </pre>
+ *
+ * Keeps a pool of loaded, warmed-up headless VMs.  eval() takes an idle
+ * one, so concurrent callers only wait when all of them are busy, and
+ * never for an image load.  The image is read once; every VM runs an
+ * isolated copy of it (see SqueakImage.isolate()) that shares the
+ * methods' and symbols' bytes with the others.  What an evaluation
+ * changes stays in its VM, and the next evaluation may get another one.
+ * A VM whose evaluation failed is replaced by a fresh copy, or dropped
+ * from the pool if none can be made; eval() fails once none is left.
+ */
+public class Smalltalk {
+    private static final String WARM_UP = "(1 to: 1000) inject: 0 into: [:sum :each | sum + (each printString size)]";
+
+    private final Monitor monitor = new LogMonitor(null);
+    private final SqueakImage template; // never run, each VM gets an isolated copy
+    private final BlockingQueue<SqueakVM> idle;
+    private final AtomicInteger poolSize; // idle and busy VMs
+    private volatile boolean closed;
+
+    public Smalltalk(String imageName) throws IOException {
+        this(imageName, 1);
+    }
+
+    public Smalltalk(String imageName, int poolSize) throws IOException {
+        template = new SqueakImage(new File(imageName), monitor);
+        idle = new ArrayBlockingQueue<SqueakVM>(poolSize);
+        this.poolSize = new AtomicInteger(poolSize);
+        for (int i = 0; i < poolSize; i++)
+            idle.add(newVM());
+    }
+
+    /**
+     * Evaluates expression in an idle VM, waiting for one if all are busy.
+     * Throws EvaluationFailedException if the evaluation cannot complete,
+     * e.g. because of an error in the expression, and IllegalStateException
+     * if no VM is left.
+     */
+    public SmalltalkCallResult eval(String expression) throws InterruptedException {
+        SqueakVM vm = takeIdle();
+        boolean healthy = false;
+        try {
+            ByteArrayOutputStream transcript = new ByteArrayOutputStream();
+            vm.setTranscript(new PrintStream(transcript, true));
+            Object result = vm.evaluate(expression);
+            vm.evaluate("Transcript endEntry");
+            SmalltalkCallResult callResult = new SmalltalkCallResult(
+                    toJava(vm, result, new IdentityHashMap<SqueakObject, Object[]>()),
+                    vm.printStringOf(result), transcript.toString("ISO-8859-1"));
+            healthy = true;
+            return callResult;
+        } catch (IOException e) {
+            throw new EvaluationFailedException(e.toString());
+        } finally {
+            vm.stopTicker();
+            if (!closed) {
+                if (healthy)
+                    idle.add(vm);
+                else
+                    replaceFailed();
+            }
+        }
+    }
+
+    private SqueakVM takeIdle() throws InterruptedException {
+        while (true) {
+            if (closed)
+                throw new IllegalStateException("closed");
+            if (poolSize.get() == 0)
+                throw new IllegalStateException("No VM left: failed ones could not be replaced");
+            SqueakVM vm = idle.poll(100, TimeUnit.MILLISECONDS);
+            if (vm != null)
+                return vm;
+        }
+    }
+
+    /** Lets the idle VMs go; eval() may not be called afterwards. */
+    public void close() {
+        closed = true;
+        SqueakVM vm;
+        while ((vm = idle.poll()) != null)
+            vm.stopTicker();
+    }
+
+    private SqueakVM newVM() throws IOException {
+        SqueakVM vm = new SqueakVM(template.isolate(), monitor, new NullScreenFactory(), new NullKeyboardFactory());
+        Starter.configure(vm);
+        vm.setTranscript(new PrintStream(new ByteArrayOutputStream()));
+        vm.evaluate(WARM_UP);
+        vm.stopTicker();
+        return vm;
+    }
+
+    /** Pools a fresh VM for a failed one, which may be stuck in a notifier; the pool shrinks if that fails. */
+    private void replaceFailed() {
+        try {
+            idle.add(newVM());
+        } catch (IOException | RuntimeException e) {
+            monitor.logMessage("Dropped a failed VM from the pool, " + poolSize.decrementAndGet() + " left: " + e);
+        }
+    }
+
+    private static Object toJava(SqueakVM vm, Object object, Map<SqueakObject, Object[]> arrays) throws IOException {
+        if (object instanceof Integer)
+            return object;
+        SqueakObject obj = (SqueakObject) object;
+        if (obj == vm.nilObj)
+            return null;
+        if (obj == vm.getTrueObj())
+            return Boolean.TRUE;
+        if (obj == vm.getFalseObj())
+            return Boolean.FALSE;
+        if (obj.isFloat())
+            return Double.valueOf(obj.getFloatBits());
+        String className = vm.getClass(obj).classGetName().asString();
+        if (className.equals("String") || className.equals("Symbol"))
+            return new String((byte[]) obj.getBits(), "ISO-8859-1");
+        if (className.equals("Character"))
+            return Character.valueOf((char) ((Integer) obj.getPointer(0)).intValue());
+        if (className.equals("LargePositiveInteger") || className.equals("LargeNegativeInteger")) {
+            byte[] littleEndian = (byte[]) obj.getBits();
+            byte[] bigEndian = new byte[littleEndian.length];
+            for (int i = 0; i < littleEndian.length; i++)
+                bigEndian[i] = littleEndian[littleEndian.length - 1 - i];
+            BigInteger value = new BigInteger(1, bigEndian);
+            if (className.equals("LargeNegativeInteger"))
+                value = value.negate();
+            return value.bitLength() < 64 ? (Object) Long.valueOf(value.longValue()) : value;
+        }
+        if (className.equals("Array")) {
+            Object[] array = arrays.get(obj);
+            if (array == null) {
+                array = new Object[obj.pointersSize()];
+                arrays.put(obj, array);
+                for (int i = 0; i < array.length; i++)
+                    array[i] = toJava(vm, obj.getPointer(i), arrays);
+            }
+            return array;
+        }
+        return vm.printStringOf(obj);
+    }
+}
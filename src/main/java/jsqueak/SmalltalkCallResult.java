@@ -0,0 +1,39 @@
+package jsqueak;
+
+/**
+ * What Smalltalk.eval() answers: the result as a Java value, its
+ * printString, and what the evaluation wrote to the Transcript.
+ */
+public class SmalltalkCallResult {
+    private final Object value;
+    private final String printString;
+    private final String transcript;
+
+    SmalltalkCallResult(Object value, String printString, String transcript) {
+        this.value = value;
+        this.printString = printString;
+        this.transcript = transcript;
+    }
+
+    /**
+     * The result as Integer, Long, BigInteger, Double, Boolean, Character,
+     * String (for Strings and Symbols), Object[] (for Arrays, converted
+     * element by element) or null (for nil).  Other objects are answered
+     * as their printString.
+     */
+    public Object getValue() {
+        return value;
+    }
+
+    public String getPrintString() {
+        return printString;
+    }
+
+    public String getTranscript() {
+        return transcript;
+    }
+
+    public String toString() {
+        return printString;
+    }
+}
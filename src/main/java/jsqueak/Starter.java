@@ -39,10 +39,10 @@ import jsqueak.io.impl.KeyboardFactoryImpl;
 import jsqueak.vm.SqueakVM;
 
 public class Starter {
-    private static final String MINI_IMAGE_FILE_NAME = "mini.image.gz";
+    private static final String MINI_IMAGE_FILE_NAME = "/mini.image.gz"; // at the root of the resources
     private static Monitor monitor = null;
     
-    private static SqueakImage locateStartableImageAndLoadIt() throws IOException {
+    static SqueakImage locateStartableImageAndLoadIt(Monitor monitor) throws IOException {
 	    monitor.logMessage("Attempting to load the default image.");
         URL imageUrl = Starter.class.getResource( MINI_IMAGE_FILE_NAME );
 	    if (imageUrl == null) {
@@ -58,30 +58,63 @@ public class Starter {
         throw new FileNotFoundException( "Cannot locate resource " + MINI_IMAGE_FILE_NAME );
     }
 
-    private static SqueakImage locateSavedImageAndLoadIt( String pathname ) throws IOException {
+    static SqueakImage locateSavedImageAndLoadIt( String pathname, Monitor monitor ) throws IOException {
 	    monitor.logMessage("Attempting to load image '" + pathname + "'.");
         File saved = new File( pathname );
         if ( saved.exists() )
-            return new SqueakImage( saved, monitor );
+            return new SqueakImage( saved, Boolean.getBoolean("jsqueak.lazyImage"), monitor );
 
 	    final String message = "Cannot locate image '" + pathname + "'";
 	    monitor.logMessage(message);
 	    throw new FileNotFoundException(message);
     }
     
+    private static void printBytecodeProfileOnExit(final SqueakVM vm) {
+        vm.setThreadedCode(true);
+        vm.setBytecodeProfiling(true);
+        Runtime.getRuntime().addShutdownHook(new Thread() {
+            public void run() {
+                System.out.print(vm.getBytecodeProfile(40));
+            }
+        });
+    }
+
+    private static void printPrimitiveStatisticsOnExit(final SqueakVM vm) {
+        vm.getPrimitiveTable().setStatistics(true);
+        Runtime.getRuntime().addShutdownHook(new Thread() {
+            public void run() {
+                System.out.print(vm.getPrimitiveTable().report());
+            }
+        });
+    }
+
     /**
      * @param args first arg may specify image file name
      */
     public static void main(String[] args) throws IOException, NullPointerException, java.lang.ArrayIndexOutOfBoundsException {
         monitor = new MonitorFrame();
         //SqueakVM.initSmallIntegerCache();
-        SqueakImage img = args.length > 0 ? locateSavedImageAndLoadIt( args[0] )
-                                          : locateStartableImageAndLoadIt();
+        SqueakImage img = args.length > 0 ? locateSavedImageAndLoadIt( args[0], monitor )
+                                          : locateStartableImageAndLoadIt( monitor );
         ScreenFactory screenFactory = new ScreenFactoryImpl();
 		//monitorFrame.logMessage(MINI_IMAGE_FILE_NAME);
         KeyboardFactory keyboardFactory = new KeyboardFactoryImpl();		
         SqueakVM vm= new SqueakVM(img, monitor, screenFactory, keyboardFactory);
+        configure(vm);
         vm.run(); 
     }
 
+    /** Applies the jsqueak.* system properties to vm. */
+    static void configure(SqueakVM vm) {
+        vm.setThreadedCode(Boolean.getBoolean("jsqueak.threadedCode"));
+        vm.setInlineCaching(Boolean.parseBoolean(System.getProperty("jsqueak.inlineCaches", "true")));
+        vm.setTieredCompilation(Boolean.getBoolean("jsqueak.tiered"));
+        vm.setSuperinstructions(Boolean.getBoolean("jsqueak.superinstructions"));
+        vm.getImage().setInstanceIndexing(Boolean.parseBoolean(System.getProperty("jsqueak.instanceIndex", "true")));
+        if (Boolean.getBoolean("jsqueak.profileBytecodes"))
+            printBytecodeProfileOnExit(vm);
+        if (Boolean.getBoolean("jsqueak.primitiveStats"))
+            printPrimitiveStatisticsOnExit(vm);
+    }
+
 }
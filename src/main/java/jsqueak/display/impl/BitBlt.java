@@ -133,6 +133,7 @@ public class BitBlt
         noSource = ignoreSourceOrHalftone(sourceForm);
         halftoneForm = bbPointers[2];
         noHalftone = ignoreSourceOrHalftone(halftoneForm);
+        unshareBits(destForm); // written in place, so not shared with an isolated image
         if (!getDest().loadFrom(destForm)) 
             return false;
         if (!loadBBDestRect(bbPointers)) 
@@ -182,6 +183,15 @@ public class BitBlt
         return true; 
     }
     
+    private void unshareBits(Object form) {
+        if (!(form instanceof SqueakObject)) 
+            return;
+        Object[] formPointers= ((SqueakObject) form).getPointers();
+        if (formPointers != null && formPointers.length > 0 
+                && formPointers[0] instanceof SqueakObject && formPointers[0] != vm.nilObj) 
+            ((SqueakObject) formPointers[0]).getBitsForWrite();
+    }
+    
     boolean ignoreSourceOrHalftone(Object formPointer) {
         if (formPointer == vm.nilObj) 
             return true;
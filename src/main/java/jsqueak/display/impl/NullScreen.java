@@ -0,0 +1,61 @@
+package jsqueak.display.impl;
+
+import java.awt.Dimension;
+import java.awt.Point;
+import java.awt.Rectangle;
+
+import javax.swing.JFrame;
+
+import jsqueak.display.Screen;
+
+/**
+ * A Screen that shows nothing, for running headless: it has no frame and
+ * never reports mouse input.
+ */
+public class NullScreen implements Screen {
+	private Dimension extent;
+
+	public NullScreen(int width, int height) {
+		extent = new Dimension(width, height);
+	}
+
+	@Override
+	public JFrame getFrame() {
+		return null;
+	}
+
+	@Override
+	public void setBits(byte[] rawBits, int depth) {}
+
+	@Override
+	public void open() {}
+
+	@Override
+	public void close() {}
+
+	@Override
+	public Dimension getExtent() {
+		return extent;
+	}
+
+	@Override
+	public void setExtent(Dimension requestedExtent) {
+		extent = requestedExtent;
+	}
+
+	@Override
+	public void setCursor(byte[] cursorBytes, int bWMask) {}
+
+	@Override
+	public void redisplay(boolean immediately, Rectangle affectedArea) {}
+
+	@Override
+	public Point getLastMousePoint() {
+		return new Point(0, 0);
+	}
+
+	@Override
+	public int getLastMouseButtonStatus() {
+		return 0;
+	}
+}
@@ -0,0 +1,87 @@
+package jsqueak.image;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Inflates a compressed snapshot on its own thread, into one array sized
+ * from the image header, so SqueakImageReader can parse the objects that
+ * are already there while the rest is still being decompressed.
+ */
+final class ImageInflater extends Thread {
+	private static final int HEADER_SIZE= 64;
+	private static final int CHUNK= 256*1024; // the reader is woken once per chunk
+
+	private final InputStream in;
+	private final byte[] image;
+	private int available; // bytes inflated so far, guarded by this
+	private IOException failure;
+
+	/** Reads the header right away; start() inflates the rest. */
+	ImageInflater(InputStream in) throws IOException {
+		super("JSqueak image inflater");
+		setDaemon(true);
+		this.in= in;
+		byte[] header= new byte[HEADER_SIZE];
+		int count= 0;
+		while (count < HEADER_SIZE) {
+			int read= in.read(header, count, HEADER_SIZE - count);
+			if (read < 0)
+				throw new IOException("bad image version");
+			count+= read;
+		}
+		long length= SqueakImageReader.imageLength(ByteBuffer.wrap(header));
+		if (length < HEADER_SIZE || length > Integer.MAX_VALUE)
+			throw new IOException("bad image header");
+		image= new byte[(int) length];
+		System.arraycopy(header, 0, image, 0, HEADER_SIZE);
+		available= HEADER_SIZE;
+	}
+
+	ByteBuffer buffer() {
+		return ByteBuffer.wrap(image);
+	}
+
+	public void run() {
+		int filled= HEADER_SIZE;
+		int published= filled;
+		try {
+			while (filled < image.length) {
+				int read= in.read(image, filled, Math.min(CHUNK, image.length - filled));
+				if (read < 0)
+					throw new IOException("image is truncated");
+				filled+= read;
+				if (filled - published >= CHUNK || filled == image.length) {
+					publish(filled, null);
+					published= filled;
+				}
+			}
+		}
+		catch (IOException e) {
+			publish(filled, e);
+		}
+	}
+
+	private synchronized void publish(int filled, IOException e) {
+		available= filled;
+		failure= e;
+		notifyAll();
+	}
+
+	/** Waits until the first end bytes are inflated, and answers how many are. */
+	synchronized int awaitBytes(int end) throws IOException {
+		while (available < end) {
+			if (failure != null)
+				throw failure;
+			try {
+				wait();
+			}
+			catch (InterruptedException e) {
+				throw new InterruptedIOException("image loading interrupted");
+			}
+		}
+		return available;
+	}
+}
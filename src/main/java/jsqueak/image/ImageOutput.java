@@ -0,0 +1,85 @@
+package jsqueak.image;
+
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Big-endian words and bytes for the image writers, gathered in one large
+ * buffer and written straight to the file's channel, or through a
+ * compressor.
+ */
+final class ImageOutput {
+	private static final int BUFFER_SIZE= 1 << 20;
+
+	private final WritableByteChannel out;
+	private final ByteBuffer buffer;
+	private final GZIPOutputStream gzip; // null when not compressing
+
+	ImageOutput(FileOutputStream file, boolean compress) throws IOException {
+		if (compress) {
+			gzip= new GZIPOutputStream(file, 65536);
+			out= Channels.newChannel(gzip);
+			buffer= ByteBuffer.allocate(BUFFER_SIZE);
+		}
+		else {
+			gzip= null;
+			out= file.getChannel();
+			buffer= ByteBuffer.allocateDirect(BUFFER_SIZE);
+		}
+	}
+
+	void putInt(int word) throws IOException {
+		if (buffer.remaining() < 4)
+			flush();
+		buffer.putInt(word);
+	}
+
+	void putInts(int[] words) throws IOException {
+		int done= 0;
+		while (done < words.length) {
+			if (buffer.remaining() < 4)
+				flush();
+			int count= Math.min(words.length - done, buffer.remaining() / 4);
+			IntBuffer view= buffer.asIntBuffer();
+			view.put(words, done, count);
+			buffer.position(buffer.position() + count*4);
+			done+= count;
+		}
+	}
+
+	/** The bytes, padded with zeros to whole words. */
+	void putBytes(byte[] bytes) throws IOException {
+		int done= 0;
+		while (done < bytes.length) {
+			if (!buffer.hasRemaining())
+				flush();
+			int count= Math.min(bytes.length - done, buffer.remaining());
+			buffer.put(bytes, done, count);
+			done+= count;
+		}
+		for (int pad= (4 - bytes.length) & 3; pad > 0; pad--) {
+			if (!buffer.hasRemaining())
+				flush();
+			buffer.put((byte) 0);
+		}
+	}
+
+	/** Writes out what is buffered, and finishes compressing; the file stays open. */
+	void finish() throws IOException {
+		flush();
+		if (gzip != null)
+			gzip.finish();
+	}
+
+	private void flush() throws IOException {
+		buffer.flip();
+		while (buffer.hasRemaining())
+			out.write(buffer);
+		buffer.clear();
+	}
+}
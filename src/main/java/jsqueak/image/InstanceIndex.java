@@ -0,0 +1,128 @@
+package jsqueak.image;
+
+import java.util.Arrays;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.WeakHashMap;
+
+import jsqueak.vm.SqueakObject;
+
+/**
+ * The object table indices of each class's instances, in table order, so
+ * enumerating the instances of a class (see SqueakImage.nextInstance())
+ * takes time in their number rather than in the heap's.  The image adds
+ * objects as it registers them, renumbers what it compacts, and moves the
+ * instances of the classes become replaces.  Indices of objects the GC
+ * collected stay until the next compaction; next() skips them.  Classes
+ * are held weakly, so the index keeps no class alive.
+ */
+final class InstanceIndex {
+	private final Map<SqueakObject, Instances> byClass= new WeakHashMap<SqueakObject, Instances>();
+
+	/** The index of the objects in objectTable up to otMaxUsed. */
+	InstanceIndex(ObjectTable objectTable, int otMaxUsed) {
+		addFrom(objectTable, 0, otMaxUsed);
+	}
+
+	/** Adds obj, just registered after every other object. */
+	void add(SqueakObject obj) {
+		Object sqClass= obj.getSqClass();
+		if (!(sqClass instanceof SqueakObject))
+			return;
+		Instances instances= byClass.get(sqClass);
+		if (instances == null) {
+			instances= new Instances();
+			byClass.put((SqueakObject) sqClass, instances);
+		}
+		instances.add(obj.getOtIndex());
+	}
+
+	/** Renumbers the objects from start up to otMaxUsed, which compaction moved. */
+	void renumberFrom(ObjectTable objectTable, int start, int otMaxUsed) {
+		for (Instances each : byClass.values())
+			each.truncate(start);
+		addFrom(objectTable, start, otMaxUsed);
+	}
+
+	private void addFrom(ObjectTable objectTable, int start, int otMaxUsed) {
+		for (int i= start; i<=otMaxUsed; i++) {
+			SqueakObject obj= objectTable.get(i);
+			if (obj != null)
+				add(obj);
+		}
+	}
+
+	/** The first instance of sqClass at start or after it, or null if none. */
+	SqueakObject next(ObjectTable objectTable, int start, SqueakObject sqClass) {
+		Instances instances= byClass.get(sqClass);
+		if (instances == null)
+			return null;
+		for (int i= instances.indexOf(start); i<instances.size; i++) {
+			SqueakObject obj= objectTable.get(instances.indices[i]);
+			if (obj != null)
+				return obj;
+		}
+		return null;
+	}
+
+	/**
+	 * Moves the instances of each class that is a key of mutations to the
+	 * class it maps to, as become did (see ObjectMutator.mutateClasses()).
+	 */
+	void mutateClasses(Map<SqueakObject, Object> mutations) {
+		Map<SqueakObject, Instances> moved= new IdentityHashMap<SqueakObject, Instances>();
+		for (SqueakObject each : mutations.keySet()) {
+			Instances instances= byClass.remove(each);
+			if (instances != null)
+				moved.put(each, instances);
+		}
+		// All are taken out first, as two-way become swaps classes
+		for (Map.Entry<SqueakObject, Instances> each : moved.entrySet()) {
+			Object target= mutations.get(each.getKey());
+			if (!(target instanceof SqueakObject))
+				continue;
+			Instances instances= byClass.get(target);
+			byClass.put((SqueakObject) target, instances == null ? each.getValue() : instances.merge(each.getValue()));
+		}
+	}
+
+	/** The ascending object table indices of one class's instances. */
+	private static final class Instances {
+		int[] indices= new int[4];
+		int size;
+
+		void add(int index) {
+			if (size == indices.length)
+				indices= Arrays.copyOf(indices, 2*size);
+			indices[size++]= index;
+		}
+
+		/** Where the first index at start or after it is, or size. */
+		int indexOf(int start) {
+			int low= 0, high= size;
+			while (low < high) {
+				int middle= (low+high) >>> 1;
+				if (indices[middle] < start)
+					low= middle + 1;
+				else
+					high= middle;
+			}
+			return low;
+		}
+
+		void truncate(int start) {
+			size= indexOf(start);
+		}
+
+		/** These and other's indices, in order. */
+		Instances merge(Instances other) {
+			Instances merged= new Instances();
+			merged.indices= new int[Math.max(4, size + other.size)];
+			int i= 0, j= 0;
+			while (i < size || j < other.size)
+				merged.indices[merged.size++]= j == other.size || (i < size && indices[i] < other.indices[j])
+						? indices[i++] : other.indices[j++];
+			return merged;
+		}
+	}
+}
@@ -0,0 +1,16 @@
+package jsqueak.image;
+
+import java.util.Map;
+
+import jsqueak.vm.BodySource;
+import jsqueak.vm.SqueakObject;
+
+/**
+ * The BodySource of an image read lazily.  Bodies not read yet still
+ * refer to objects by their place in the file, so become has to redirect
+ * those references here instead of in the bodies (see ObjectMutator).
+ */
+interface LazyBodies extends BodySource {
+	/** Makes the references of unread bodies to each key of mutations refer to its value. */
+	void become(Map<SqueakObject, Object> mutations);
+}
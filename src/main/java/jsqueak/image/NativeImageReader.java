@@ -0,0 +1,205 @@
+package jsqueak.image;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+import jsqueak.vm.SqueakObject;
+import jsqueak.vm.SqueakVM;
+
+/**
+ * Loads an image NativeImageWriter wrote.  Every object is made first, so
+ * a reference is just an index into the array of them; then ranges of
+ * records, found through the offsets, are decoded in parallel straight
+ * into their objects.  Nothing is left to install.
+ *
+ * Read lazily, only the classes and headers are decoded at first, and the
+ * reader is the BodySource of the objects' bodies.
+ */
+class NativeImageReader implements LazyBodies {
+	private final ByteBuffer image;
+	private final IntBuffer in;
+	private final int objectCount;
+	final int specialObjectsIndex;
+	final SqueakImageHeader imageHeader; // as saved
+	final SqueakImageHeader snapshotHeader; // for checkpoints, see snapshotHeader()
+	private SqueakObject[] objects; // by number
+
+	NativeImageReader(ByteBuffer image) throws IOException {
+		this.image= image.order(ByteOrder.BIG_ENDIAN);
+		in= this.image.asIntBuffer();
+		if (in.limit() < NativeImageWriter.HEADER_SIZE/4 || in.get(0) != NativeImageWriter.MAGIC)
+			throw new IOException("not a JSqueak image");
+		if (in.get(1) != NativeImageWriter.VERSION)
+			throw new IOException("unknown JSqueak image version " + in.get(1));
+		objectCount= in.get(2);
+		specialObjectsIndex= in.get(3);
+		if (objectCount < 0 || in.limit() < NativeImageWriter.HEADER_SIZE/4 + objectCount
+				|| specialObjectsIndex < 0 || specialObjectsIndex >= objectCount)
+			throw new IOException("image is truncated");
+		imageHeader= new SqueakImageHeader();
+		imageHeader.lastHash= in.get(4);
+		imageHeader.savedWindowSize= in.get(5);
+		imageHeader.fullScreenFlag= in.get(6);
+		imageHeader.extraVMMemory= in.get(7);
+		imageHeader.oldBaseAddr= in.get(8);
+		snapshotHeader= snapshotHeader(objectCount, specialObjectsIndex, imageHeader);
+	}
+
+	static boolean isNativeImage(ByteBuffer magic) {
+		return magic.order(ByteOrder.BIG_ENDIAN).getInt(0) == NativeImageWriter.MAGIC;
+	}
+
+	/**
+	 * The oop an object has for checkpoints after this image: there are no
+	 * addresses, so its number in a heap of one-word objects from address
+	 * 32, as class words below 32 are compact class indices.
+	 */
+	static int oopOf(int index) {
+		return 32 + index*4;
+	}
+
+	/** A snapshot header that describes an image of count objects as oopOf() numbers them. */
+	static SqueakImageHeader snapshotHeader(int count, int specialObjectsIndex, SqueakImageHeader saved) {
+		SqueakImageHeader header= saved.copy();
+		header.doSwap= false;
+		header.headerSize= NativeImageWriter.HEADER_SIZE;
+		header.oldBaseAddr= oopOf(0);
+		header.endOfMemory= count*4;
+		header.specialObjectsOopInt= oopOf(specialObjectsIndex);
+		return header;
+	}
+
+	SqueakObject[] readObjects() throws IOException {
+		return readObjects(false);
+	}
+
+	/** Makes the objects with their classes and headers, leaving their bodies (but Floats') to materialize(). */
+	SqueakObject[] readObjectsLazily() throws IOException {
+		return readObjects(true);
+	}
+
+	private SqueakObject[] readObjects(boolean lazy) throws IOException {
+		objects= new SqueakObject[objectCount];
+		DecodeTask decodes= new DecodeTask(0, objectCount, lazy);
+		int processors= Runtime.getRuntime().availableProcessors();
+		try {
+			for (int i= 0; i<objectCount; i++) {
+				// Only the format is read ahead, which tells whether the object is a method
+				int at= in.get(NativeImageWriter.HEADER_SIZE/4 + i) / 4;
+				objects[i]= SqueakObject.ofFormat((in.get(at+1) >> 8) & 0xFF);
+			}
+			if (processors == 1 || objectCount < DecodeTask.CHUNK)
+				decodes.decodeAll();
+			else {
+				ForkJoinPool pool= new ForkJoinPool(processors);
+				try {
+					pool.invoke(decodes);
+				}
+				finally {
+					pool.shutdown();
+				}
+			}
+		}
+		catch (RuntimeException e) {
+			// Out of bounds: offsets, counts or references that do not fit the file
+			throw new IOException("image is damaged: " + e);
+		}
+		return objects;
+	}
+
+	public synchronized void materialize(SqueakObject obj) {
+		if (obj.isMaterialized())
+			return;
+		int at= in.get(NativeImageWriter.HEADER_SIZE/4 + (obj.getSnapshotOop() - oopOf(0))/4) / 4;
+		IntBuffer words= in.duplicate();
+		words.position(at+2);
+		decodeBody(obj, in.get(at+1) & 0xFF, words, image.duplicate());
+	}
+
+	public synchronized void become(Map<SqueakObject, Object> mutations) {
+		for (int i= 0; i<objects.length; i++) {
+			Object target= mutations.get(objects[i]);
+			if (target != null)
+				objects[i]= (SqueakObject) target;
+		}
+	}
+
+	/** Decodes the body words is at into obj, whose class and header are loaded. */
+	private void decodeBody(SqueakObject obj, int kind, IntBuffer words, ByteBuffer bytes) {
+		Object[] pointers= null;
+		Object bits= null;
+		if ((kind & NativeImageWriter.POINTERS) != 0) {
+			pointers= new Object[words.get()];
+			for (int j= 0; j<pointers.length; j++) {
+				int reference= words.get();
+				pointers[j]= (reference & 1) == 1 ? SqueakVM.smallFromInt(reference >> 1) : objects[reference >>> 1];
+			}
+		}
+		if ((kind & NativeImageWriter.BYTES) != 0) {
+			byte[] data= new byte[words.get()];
+			bytes.position(words.position()*4);
+			bytes.get(data);
+			words.position(words.position() + (data.length+3)/4);
+			bits= data;
+		}
+		else if ((kind & NativeImageWriter.WORDS) != 0) {
+			int[] data= new int[words.get()];
+			words.get(data);
+			bits= data;
+		}
+		else if ((kind & NativeImageWriter.FLOAT) != 0) {
+			long floatBits= ((long) words.get() << 32) | (words.get() & 0xFFFFFFFFL);
+			bits= Double.valueOf(Double.longBitsToDouble(floatBits));
+		}
+		obj.setBody(pointers, bits);
+	}
+
+	/**
+	 * Decodes a range of records, halving it among the pool's threads down
+	 * to CHUNK objects, each with its own views of the buffer.
+	 */
+	private class DecodeTask extends RecursiveAction {
+		private static final long serialVersionUID = 1L;
+		static final int CHUNK= 4096;
+
+		private final int from, to;
+		private final boolean lazy;
+
+		DecodeTask(int from, int to, boolean lazy) {
+			this.from= from;
+			this.to= to;
+			this.lazy= lazy;
+		}
+
+		protected void compute() {
+			if (to-from <= CHUNK) {
+				decodeAll();
+				return;
+			}
+			int middle= (from+to) >>> 1;
+			invokeAll(new DecodeTask(from, middle, lazy), new DecodeTask(middle, to, lazy));
+		}
+
+		void decodeAll() {
+			IntBuffer words= in.duplicate();
+			ByteBuffer bytes= image.duplicate();
+			for (int i= from; i<to; i++) {
+				int at= in.get(NativeImageWriter.HEADER_SIZE/4 + i) / 4;
+				words.position(at);
+				SqueakObject sqClass= objects[words.get()];
+				int header= words.get();
+				int kind= header & 0xFF;
+				objects[i].load(sqClass, (header >> 8) & 0xFF, (header >>> 16) & 0xFFF, null, null, oopOf(i));
+				if (lazy && kind != NativeImageWriter.FLOAT)
+					objects[i].setBodySource(NativeImageReader.this);
+				else
+					decodeBody(objects[i], kind, words, bytes);
+			}
+		}
+	}
+}
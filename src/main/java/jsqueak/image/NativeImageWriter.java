@@ -0,0 +1,169 @@
+package jsqueak.image;
+
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+
+import jsqueak.Squeak;
+import jsqueak.vm.SqueakObject;
+
+/**
+ * Writes the heap in JSqueak's own format, which NativeImageReader loads
+ * without parsing headers, mapping oops or installing: objects are
+ * numbered in object table order (with the unregistered Floats after
+ * them, as SqueakImageWriter does), and each record holds its class's
+ * number and the body as the VM has it.  All words are big-endian:
+ * <pre>
+ *    header     16 words: MAGIC, VERSION, object count, special objects
+ *               array number, lastHash, savedWindowSize, fullScreenFlag,
+ *               extraVMMemory, oldBaseAddr, zeros
+ *    offsets    one word per object: the byte offset of its record
+ *    records    class number, hash&lt;&lt;16 | format&lt;&lt;8 | kind, then by kind:
+ *               POINTERS  count, references
+ *               BYTES     count, the bytes padded to whole words
+ *               WORDS     count, the words
+ *               FLOAT     the double's bits, high word first
+ * </pre>
+ * A reference is a SmallInteger's value&lt;&lt;1|1 or an object's number&lt;&lt;1.
+ * The offsets let the reader decode ranges of records in parallel.
+ */
+class NativeImageWriter {
+	static final int MAGIC= 0x4A53514E; // "JSQN"
+	static final int VERSION= 1;
+	static final int HEADER_SIZE= 64;
+	static final int POINTERS= 1, BYTES= 2, WORDS= 4, FLOAT= 8;
+
+	private final SqueakImageHeader imageHeader;
+	private final SqueakObject specialObjectsArray;
+	private final SqueakObject nilObj;
+	private final List<SqueakObject> objects;
+	private final IdentityHashMap<SqueakObject, Integer> numbers;
+
+	NativeImageWriter(ObjectTable objectTable, int otMaxUsed, SqueakImageHeader imageHeader, SqueakObject specialObjectsArray) {
+		this.imageHeader= imageHeader;
+		this.specialObjectsArray= specialObjectsArray;
+		nilObj= specialObjectsArray.getPointerNI(Squeak.splOb_NilObject);
+		objects= new ArrayList<SqueakObject>(otMaxUsed+1);
+		numbers= new IdentityHashMap<SqueakObject, Integer>(2*(otMaxUsed+1));
+		List<SqueakObject> unregistered= new ArrayList<SqueakObject>();
+		for (int i= 0; i<=otMaxUsed; i++) {
+			SqueakObject obj= objectTable.get(i);
+			if (obj == null)
+				continue;
+			number(obj);
+			Object[] pointers= obj.getPointers();
+			if (pointers != null)
+				for (Object each : pointers)
+					if (each instanceof SqueakObject && ((SqueakObject) each).isFloat())
+						unregistered.add((SqueakObject) each);
+		}
+		for (SqueakObject each : unregistered)
+			if (!numbers.containsKey(each))
+				number(each);
+	}
+
+	private void number(SqueakObject obj) {
+		numbers.put(obj, Integer.valueOf(objects.size()));
+		objects.add(obj);
+	}
+
+	void write(FileOutputStream file) throws IOException {
+		ImageOutput out= new ImageOutput(file, false);
+		out.putInt(MAGIC);
+		out.putInt(VERSION);
+		out.putInt(objects.size());
+		out.putInt(numberOf(specialObjectsArray));
+		out.putInt(imageHeader.lastHash);
+		out.putInt(imageHeader.savedWindowSize);
+		out.putInt(imageHeader.fullScreenFlag);
+		out.putInt(imageHeader.extraVMMemory);
+		out.putInt(imageHeader.oldBaseAddr); // for saving as a Squeak image again
+		for (int i= 9*4; i<HEADER_SIZE; i+= 4)
+			out.putInt(0);
+		int offset= HEADER_SIZE + objects.size()*4;
+		for (SqueakObject each : objects) {
+			out.putInt(offset);
+			offset+= recordSize(each);
+		}
+		for (SqueakObject each : objects)
+			writeRecord(out, each);
+		out.finish();
+	}
+
+	/** Once the file is written: the objects' oops in it, for checkpoints (see NativeImageReader.oopOf()). */
+	void commit() {
+		for (int i= 0; i<objects.size(); i++)
+			objects.get(i).setSnapshotOop(NativeImageReader.oopOf(i));
+	}
+
+	/** The header of the image written, as if it were a snapshot, to check checkpoints against. */
+	SqueakImageHeader writtenHeader() throws IOException {
+		return NativeImageReader.snapshotHeader(objects.size(), numberOf(specialObjectsArray), imageHeader);
+	}
+
+	private void writeRecord(ImageOutput out, SqueakObject obj) throws IOException {
+		Object[] pointers= obj.getPointers();
+		Object bits= obj.getBits();
+		out.putInt(numberOf(obj.getSqClass()));
+		out.putInt(((obj.getHash() & 0xFFF) << 16) | (obj.getFormat() << 8) | kind(obj));
+		if (pointers != null) {
+			out.putInt(pointers.length);
+			for (Object each : pointers)
+				out.putInt(reference(each));
+		}
+		if (bits instanceof byte[]) {
+			out.putInt(((byte[]) bits).length);
+			out.putBytes((byte[]) bits);
+		}
+		else if (bits instanceof int[]) {
+			out.putInt(((int[]) bits).length);
+			out.putInts((int[]) bits);
+		}
+		else if (bits instanceof Double) {
+			long floatBits= Double.doubleToRawLongBits(((Double) bits).doubleValue());
+			out.putInt((int) (floatBits >>> 32));
+			out.putInt((int) floatBits);
+		}
+	}
+
+	private static int kind(SqueakObject obj) {
+		Object bits= obj.getBits();
+		int kind= obj.getPointers() != null ? POINTERS : 0;
+		if (bits instanceof byte[])
+			kind|= BYTES;
+		else if (bits instanceof int[])
+			kind|= WORDS;
+		else if (bits instanceof Double)
+			kind|= FLOAT;
+		return kind;
+	}
+
+	private static int recordSize(SqueakObject obj) {
+		Object bits= obj.getBits();
+		int size= 8;
+		if (obj.getPointers() != null)
+			size+= 4 + obj.pointersSize()*4;
+		if (bits instanceof byte[])
+			size+= 4 + ((((byte[]) bits).length + 3) & ~3);
+		else if (bits instanceof int[])
+			size+= 4 + ((int[]) bits).length*4;
+		else if (bits instanceof Double)
+			size+= 8;
+		return size;
+	}
+
+	private int reference(Object pointer) throws IOException {
+		if (pointer instanceof Integer)
+			return (((Integer) pointer).intValue() << 1) | 1;
+		return numberOf(pointer == null ? nilObj : pointer) << 1;
+	}
+
+	private int numberOf(Object obj) throws IOException {
+		Integer number= numbers.get(obj);
+		if (number == null)
+			throw new IOException("Cannot snapshot an object that is not in the object table: " + obj);
+		return number.intValue();
+	}
+}
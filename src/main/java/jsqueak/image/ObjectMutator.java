@@ -1,7 +1,10 @@
 package jsqueak.image;
 
-import java.lang.ref.WeakReference;
-import java.util.Hashtable;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
 
 import jsqueak.vm.SqueakObject;
 
@@ -32,31 +35,108 @@ class ObjectMutator {
             throw new SourceAndTargedHaveDifferentLengths();
 	}
 
-	static void mutateClasses(Hashtable mutations, WeakReference[] stObjectTable, int objectTableLength) {
-		for(int i=0; i<=objectTableLength; i++) {
-		    // Now, for every object...
-		    SqueakObject object = (SqueakObject)stObjectTable[i].get();
-		    if (object != null) {
-		        // mutate the class
-		    	Object sqClass = (SqueakObject)mutations.get(object.getSqClass());
-		        if (sqClass != null)
-		            object.setSqClass( sqClass ); 
-		        Object body[] = object.getPointers();
-		        if (body != null) {
-		            // and mutate body pointers
-		            for(int j=0; j<body.length; j++) {
-		            	Object ptr = body[j];
-		                sqClass = mutations.get(ptr);
-		                if (sqClass != null) 
-		                    body[j]= sqClass; 
-		            }
-		        }
-		    }
+	private static ForkJoinPool pool; // shared by the images in the JVM, made for the first large become
+
+	/**
+	 * Makes every class and pointer in the object table that is a key of
+	 * mutations its value, in one pass.  Ranges of the table are scanned in
+	 * parallel, as they only read the map and write their own objects'
+	 * slots; the objects changed are marked dirty afterwards, on this
+	 * thread, as the write barrier is not thread safe (see RememberedSet).
+	 * Returns the translated CompiledMethods met, for the VM to check
+	 * (see SqueakVM.flushCachesForBecome()).
+	 */
+	static List<SqueakObject> mutateClasses(Map<SqueakObject, Object> mutations, ObjectTable stObjectTable, int objectTableLength) {
+		ScanTask scan= new ScanTask(mutations, stObjectTable, 0, objectTableLength+1);
+		int processors= Runtime.getRuntime().availableProcessors();
+		if (processors == 1 || objectTableLength < 2*ScanTask.CHUNK)
+			scan.scanAll();
+		else
+			pool(processors).invoke(scan);
+		for (SqueakObject each : scan.reclassed)
+			each.setSqClass( (SqueakObject)mutations.get(each.getSqClass()) );
+		for (SqueakObject each : scan.changed)
+			each.markDirty();
+		return scan.translated;
+	}
+
+	private static synchronized ForkJoinPool pool(int processors) {
+		if (pool == null)
+			pool= new ForkJoinPool(processors);
+		return pool;
+	}
+
+	/**
+	 * Mutates the pointers of a range of the object table, halving it among
+	 * the pool's threads down to CHUNK objects, and notes the objects to
+	 * give a new class, the ones changed and the translated methods.
+	 */
+	private static class ScanTask extends RecursiveAction {
+		private static final long serialVersionUID = 1L;
+		static final int CHUNK= 4096;
+
+		private final Map<SqueakObject, Object> mutations;
+		private final ObjectTable objects;
+		private final int from, to;
+		final List<SqueakObject> reclassed= new ArrayList<SqueakObject>();
+		final List<SqueakObject> changed= new ArrayList<SqueakObject>();
+		final List<SqueakObject> translated= new ArrayList<SqueakObject>();
+
+		ScanTask(Map<SqueakObject, Object> mutations, ObjectTable objects, int from, int to) {
+			this.mutations= mutations;
+			this.objects= objects;
+			this.from= from;
+			this.to= to;
+		}
+
+		protected void compute() {
+			if (to-from <= CHUNK) {
+				scanAll();
+				return;
+			}
+			int middle= (from+to) >>> 1;
+			ScanTask low= new ScanTask(mutations, objects, from, middle);
+			ScanTask high= new ScanTask(mutations, objects, middle, to);
+			invokeAll(low, high);
+			low.addTo(this);
+			high.addTo(this);
+		}
+
+		private void addTo(ScanTask whole) {
+			whole.reclassed.addAll(reclassed);
+			whole.changed.addAll(changed);
+			whole.translated.addAll(translated);
+		}
+
+		void scanAll() {
+			for (int i= from; i<to; i++) {
+				SqueakObject object= objects.get(i);
+				if (object == null)
+					continue;
+				if (mutations.containsKey(object.getSqClass()))
+					reclassed.add(object);
+				if (object.isTranslated())
+					translated.add(object);
+				// Bodies not read yet are mutated by the image's LazyBodies instead
+				Object body[]= object.isMaterialized() ? object.getPointers() : null;
+				if (body == null)
+					continue;
+				boolean mutated= false;
+				for (int j= 0; j<body.length; j++) {
+					Object target= mutations.get(body[j]);
+					if (target != null) {
+						body[j]= target;
+						mutated= true;
+					}
+				}
+				if (mutated)
+					changed.add(object);
+			}
 		}
 	}
 
 	static void setupMutationsTargetToSource(Object[] sourceObjects,
-			Object[] targetClasses, int length, Hashtable mutations) {
+			Object[] targetClasses, int length, Map<SqueakObject, Object> mutations) {
 		for(int i=0; i<length; i++) {
 			Object targetClass= targetClasses[i];
 		    if (!(targetClass instanceof SqueakObject)) 
@@ -64,12 +144,12 @@ class ObjectMutator {
 		    if (mutations.get(targetClass) != null) 
 		        throw new RepeatedObjectsInTargetArray(); //repeated oops in to array
 		    else 
-		        mutations.put(targetClass,sourceObjects[i]); 
+		        mutations.put((SqueakObject) targetClass,sourceObjects[i]); 
 		}
 	}
 
 	static void setupMutationsSourceToTarget(Object[] sourceObjects,
-			Object[] targetClasses, int length, Hashtable mutations) {
+			Object[] targetClasses, int length, Map<SqueakObject, Object> mutations) {
 		for(int i=0; i<length; i++) {
 			Object sourceObj = sourceObjects[i];
 		    if (!(sourceObj instanceof SqueakObject)) 
@@ -77,7 +157,7 @@ class ObjectMutator {
 		    if (mutations.get(sourceObj) != null) 
 		        throw new RepeatedObjectsInSourceArray(); //repeated oops in from array
 		    else 
-		        mutations.put(sourceObj,targetClasses[i]); 
+		        mutations.put((SqueakObject) sourceObj,targetClasses[i]); 
 		}
 	}
 }
@@ -0,0 +1,76 @@
+package jsqueak.image;
+
+import java.lang.ref.WeakReference;
+import java.util.Arrays;
+
+import jsqueak.vm.SqueakObject;
+
+/**
+ * The slots of SqueakImage's object table: weak references to the
+ * registered objects by index.  They are kept in segments of SEGMENT_SIZE,
+ * so the table grows a segment at a time without copying what it holds,
+ * and holds as many objects as the Java heap does.  Every object knows
+ * its index (see SqueakObject.getOtIndex()), which put() and move() keep.
+ */
+final class ObjectTable {
+	private static final int SEGMENT_BITS= 16;
+	static final int SEGMENT_SIZE= 1 << SEGMENT_BITS;
+	private static final int SEGMENT_MASK= SEGMENT_SIZE - 1;
+
+	private WeakReference<SqueakObject>[][] segments;
+	private int segmentCount;
+
+	/** A table with room for at least capacity objects. */
+	ObjectTable(int capacity) {
+		grow(capacity);
+	}
+
+	int capacity() {
+		return segmentCount << SEGMENT_BITS;
+	}
+
+	/** Adds room for at least slots more objects. */
+	@SuppressWarnings({"unchecked", "rawtypes"}) // arrays of WeakReference<SqueakObject> cannot be made directly
+	void grow(int slots) {
+		int needed= segmentCount + ((slots + SEGMENT_MASK) >>> SEGMENT_BITS);
+		if (segments == null)
+			segments= new WeakReference[Math.max(needed, 16)][];
+		else if (needed > segments.length)
+			segments= Arrays.copyOf(segments, Math.max(needed, 2*segments.length));
+		while (segmentCount < needed)
+			segments[segmentCount++]= new WeakReference[SEGMENT_SIZE];
+	}
+
+	/** The object at index, or null if the GC collected it. */
+	SqueakObject get(int index) {
+		return segments[index >>> SEGMENT_BITS][index & SEGMENT_MASK].get();
+	}
+
+	void put(int index, SqueakObject obj) {
+		segments[index >>> SEGMENT_BITS][index & SEGMENT_MASK]= new WeakReference<SqueakObject>(obj);
+		obj.setOtIndex(index);
+	}
+
+	/** Moves the entry at from down to to, as compaction does, and empties from. */
+	void move(int from, int to) {
+		if (from == to)
+			return;
+		WeakReference<SqueakObject>[] source= segments[from >>> SEGMENT_BITS];
+		WeakReference<SqueakObject> ref= source[from & SEGMENT_MASK];
+		segments[to >>> SEGMENT_BITS][to & SEGMENT_MASK]= ref;
+		source[from & SEGMENT_MASK]= null;
+		SqueakObject obj= ref.get();
+		if (obj != null) // else collected just now, and gone at the next compaction
+			obj.setOtIndex(to);
+	}
+
+	/** Whether the entry at index lost its object; the GC clears them. */
+	boolean isCollected(int index) {
+		WeakReference<SqueakObject> ref= segments[index >>> SEGMENT_BITS][index & SEGMENT_MASK];
+		return ref == null || ref.get() == null;
+	}
+
+	void clear(int index) {
+		segments[index >>> SEGMENT_BITS][index & SEGMENT_MASK]= null;
+	}
+}
@@ -0,0 +1,64 @@
+package jsqueak.image;
+
+import java.util.Arrays;
+import java.util.Map;
+
+import jsqueak.vm.SqueakObject;
+
+/**
+ * Maps the oops of a snapshot being loaded to their new objects.  The
+ * reader meets objects in ascending address order, so oops are appended
+ * to a sorted int[] and found again by binary search: no boxing or
+ * locking per pointer, and two array slots per object.
+ */
+public final class OopMap {
+	private int[] oops;
+	private SqueakObject[] objects;
+	private int size;
+
+	OopMap(int capacity) {
+		oops= new int[Math.max(capacity, 16)];
+		objects= new SqueakObject[oops.length];
+	}
+
+	void add(int oop, SqueakObject object) {
+		if (size > 0 && oop <= oops[size-1])
+			throw new IllegalArgumentException("oops must be added in ascending order");
+		if (size == oops.length) {
+			oops= Arrays.copyOf(oops, size*2);
+			objects= Arrays.copyOf(objects, size*2);
+		}
+		oops[size]= oop;
+		objects[size++]= object;
+	}
+
+	/** The object whose oop this was, or null. */
+	public SqueakObject get(int oop) {
+		int low= 0;
+		int high= size-1;
+		while (low <= high) {
+			int mid= (low+high) >>> 1;
+			int midOop= oops[mid];
+			if (midOop < oop)
+				low= mid+1;
+			else if (midOop > oop)
+				high= mid-1;
+			else
+				return objects[mid];
+		}
+		return null;
+	}
+
+	/** Maps each oop of a key of mutations to its value instead, for become. */
+	void become(Map<SqueakObject, Object> mutations) {
+		for (int i= 0; i<size; i++) {
+			Object target= mutations.get(objects[i]);
+			if (target != null)
+				objects[i]= (SqueakObject) target;
+		}
+	}
+
+	public int size() {
+		return size;
+	}
+}
@@ -24,24 +24,29 @@ THE SOFTWARE.
 package jsqueak.image;
 
 import java.io.BufferedInputStream;
-import java.io.BufferedOutputStream;
-import java.io.DataInput;
-import java.io.DataInputStream;
-import java.io.DataOutput;
-import java.io.DataOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.lang.ref.WeakReference;
-import java.util.Hashtable;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
 import java.util.zip.GZIPInputStream;
-import java.util.zip.GZIPOutputStream;
 
 import jsqueak.Squeak;
 import jsqueak.monitor.Monitor;
 import jsqueak.util.HexUtils;
+import jsqueak.vm.RememberedSet;
 import jsqueak.vm.SqueakObject;
 import jsqueak.vm.SqueakVM;
 
@@ -53,6 +58,12 @@ import jsqueak.vm.SqueakVM;
  * with direct pointers between them.  Enumeration is supported by objectTable,
  * which points weakly to all objects.  SmallIntegers are modeled by Java Integers.
  *
+ * Objects the VM makes are not entered in objectTable as they are made, as most
+ * die young: enumeration, become and snapshots first register the new objects
+ * still reachable (see registerReachableObjects()), so the others never cost a
+ * WeakReference or a slot.  Registering scans only the objects written since
+ * it last ran and the contexts, so its cost does not grow with the heap.
+ *
  * Some care is taken in reclaiming OT slots, to preserve the order of creation of objects,
  * as this matters for Squeak weak objects, should we ever support them.
  */
@@ -63,13 +74,23 @@ public class SqueakImage
     
     SqueakImageHeader imageHeader;
     private SqueakVM vm;
-    private WeakReference[] objectTable;
+    private ObjectTable objectTable;
     private int otMaxUsed;
     private int otMaxOld;
+    private boolean indexingInstances = true;
+    private InstanceIndex instanceIndex; // once a class's instances are enumerated, if indexingInstances
+    private final RememberedSet rememberedSet= new RememberedSet(); // enabled once registerReachableObjects() scanned the whole table
+    private List<WeakReference<SqueakObject>> registeredContexts; // likewise; the VM writes them without the barrier
     //private int lastHash;
-    private int lastOTindex;
     
     private File imageFile;
+    private boolean nativeFormat; // read from a JSqueak image (see NativeImageWriter), so saved as one
+    private LazyBodies lazyBodies; // the reader of the bodies not read yet, when read lazily
+    
+    // The snapshot checkpoints follow, how many were read or written since, and the oop they number new objects from
+    private SqueakImageHeader baseHeader;
+    private int checkpoints;
+    private int nextOop;
     
     // FIXME: Access this through a method
     private SqueakObject specialObjectsArray;
@@ -84,21 +105,220 @@ public class SqueakImage
         loadImage(raw); 
     }
     
+    /** Reads the image from raw, which holds the contents of file. */
+    public SqueakImage( InputStream raw, File file, Monitor monitor ) throws IOException
+    {
+    	this.monitor = monitor;
+        imageFile = file;
+        loadImage(raw); 
+    }
+    
     public SqueakImage( File file, Monitor monitor ) throws IOException
+    {
+        this(file, false, monitor);
+    }
+    
+    /**
+     * Reads the image in file, lazily if asked and it is not compressed:
+     * every object is made with its class, but its pointers and bits are
+     * only read from the mapped file when first used (see BodySource), so
+     * a large image starts without decoding what the VM never touches.
+     * Enumeration still sees every object.  The file stays mapped for as
+     * long as unread bodies are left.
+     */
+    public SqueakImage( File file, boolean lazy, Monitor monitor ) throws IOException
     {
     	this.monitor = monitor;
         imageFile = file;
-        loadImage(file);
+        loadImage(file, lazy);
     }
     
+    /**
+     * Reads the snapshot in file, then the checkpoints written since it was
+     * saved (see checkpoint()), in the order they were written.
+     */
+    public SqueakImage( File file, List<File> checkpointFiles, Monitor monitor ) throws IOException
+    {
+    	this.monitor = monitor;
+        imageFile = file;
+        OopMap oopMap = loadImage(file, false);
+        if (oopMap == null && !checkpointFiles.isEmpty())
+            oopMap = snapshotOopMap();
+        for (File each : checkpointFiles)
+            loadCheckpoint(each, oopMap);
+    }
+    
+    private SqueakImage( SqueakImage template )
+    {
+        monitor = template.monitor;
+        imageFile = template.imageFile;
+        nativeFormat = template.nativeFormat;
+        indexingInstances = template.indexingInstances;
+        imageHeader = template.imageHeader.copy();
+        baseHeader = template.baseHeader.copy();
+        checkpoints = template.checkpoints;
+        nextOop = template.nextOop;
+        objectTable = new ObjectTable(template.otMaxUsed+1);
+        otMaxUsed = -1;
+        SqueakObject symbolClass = template.getSpecialObjectsArray()
+                .getPointerNI(Squeak.splOb_SelectorDoesNotUnderstand).getSqClass();
+        IdentityHashMap<SqueakObject, SqueakObject> copies = new IdentityHashMap<SqueakObject, SqueakObject>(2*(template.otMaxUsed+1));
+        List<SqueakObject> toMap = new ArrayList<SqueakObject>(template.otMaxUsed+1);
+        for (int i= 0; i<=template.otMaxUsed; i++) {
+            SqueakObject original = template.objectTable.get(i);
+            if (original != null && !original.isMaterialized())
+                original.materialize();
+            if (original != null)
+                objectTable.put(++otMaxUsed, isolatedCopyOf(original, symbolClass, copies, toMap));
+        }
+        // Copies still point at the template's objects; unregistered ones (Floats) are copied as met
+        for (int i= 0; i<toMap.size(); i++) {
+            SqueakObject copy = toMap.get(i);
+            copy.mapIsolatedClass(isolatedCopyOf(copy.getSqClass(), symbolClass, copies, toMap));
+            Object[] pointers = copy.getPointers();
+            if (pointers != null)
+                for (int j= 0; j<pointers.length; j++)
+                    if (pointers[j] instanceof SqueakObject)
+                        pointers[j] = isolatedCopyOf((SqueakObject) pointers[j], symbolClass, copies, toMap);
+        }
+        setSpecialObjectsArray(copies.get(template.getSpecialObjectsArray()));
+        otMaxOld = otMaxUsed;
+    }
+
+    private static SqueakObject isolatedCopyOf(SqueakObject original, SqueakObject symbolClass,
+                                               Map<SqueakObject, SqueakObject> copies, List<SqueakObject> toMap)
+    {
+        SqueakObject copy = copies.get(original);
+        if (copy == null) {
+            copy = original.isolatedCopy(symbolClass);
+            copies.put(original, copy);
+            toMap.add(copy);
+        }
+        return copy;
+    }
+
+    /**
+     * A copy of this image for another VM in the same JVM, e.g. one of a pool
+     * started from the same snapshot without reading it again.  Every object
+     * is copied, so identity, hashes and enumeration stay per VM, but the
+     * bodies of word objects (Bitmaps, Forms' bits), CompiledMethods and
+     * Symbols are shared until either image writes them.  Classes and method
+     * dictionaries are copied too: each object carries its image's table
+     * index, snapshot oop and flags, and its pointers must be that image's
+     * objects, so only bodies without pointers can be shared.
+     * Meant for an image no VM is running.
+     */
+    public synchronized SqueakImage isolate()
+    {
+        return new SqueakImage(this);
+    }
+
+    /**
+     * Saves a snapshot to file: in JSqueak's own format if that is what this
+     * image was read from, else compressed if its name ends in .gz.
+     */
     public void save(File file) throws IOException
     {
-        BufferedOutputStream fp = new BufferedOutputStream(new FileOutputStream(file));
-        GZIPOutputStream gz = new GZIPOutputStream(fp);
-        DataOutputStream ser = new DataOutputStream(gz);
-        writeImage(ser);
-        ser.flush();
-        ser.close();
+        if (nativeFormat)
+            saveNative(file);
+        else
+            save(file, file.getName().endsWith(".gz"));
+    }
+
+    /**
+     * Saves a snapshot in JSqueak's own format (see NativeImageWriter),
+     * which loads much faster than a Squeak image but only in JSqueak.
+     */
+    public void saveNative(File file) throws IOException
+    {
+        monitor.logMessage("Start saving native image at " + System.currentTimeMillis());
+        registerReachableObjects();
+        final NativeImageWriter writer = new NativeImageWriter(objectTable, otMaxUsed, imageHeader, getSpecialObjectsArray());
+        write(file, new Output() {
+            public void write(FileOutputStream out) throws IOException {
+                writer.write(out);
+            }});
+        writer.commit();
+        imageFile = file;
+        nativeFormat = true;
+        baseHeader = writer.writtenHeader();
+        checkpoints = 0;
+        nextOop = baseHeader.oldBaseAddr + baseHeader.endOfMemory;
+        monitor.logMessage("Done saving native image at " + System.currentTimeMillis());
+    }
+
+    /**
+     * Saves a snapshot to file.  It is written next to it first and then
+     * renamed, so a failed save leaves the old file, and a file this image
+     * was mapped from is replaced rather than overwritten.
+     */
+    public void save(File file, boolean compress) throws IOException
+    {
+        monitor.logMessage("Start saving image at " + System.currentTimeMillis());
+        registerReachableObjects();
+        SqueakImageWriter writer = new SqueakImageWriter(objectTable, otMaxUsed, imageHeader, getSpecialObjectsArray());
+        write(writer, file, compress);
+        imageFile = file;
+        nativeFormat = false;
+        baseHeader = writer.writtenHeader();
+        checkpoints = 0;
+        nextOop = writer.nextOop();
+        monitor.logMessage("Done saving image at " + System.currentTimeMillis());
+    }
+
+    /**
+     * Writes the objects created or changed since the last snapshot or
+     * checkpoint to file, so a large image that changed little is saved in
+     * a fraction of the time and space.  Reading it back takes the snapshot
+     * and every checkpoint written after it (see the constructor); saving
+     * a snapshot starts a new chain.  Contexts are always written, as the
+     * VM changes them without the write barrier (see SqueakObject.markDirty()).
+     */
+    public void checkpoint(File file) throws IOException
+    {
+        monitor.logMessage("Start writing checkpoint at " + System.currentTimeMillis());
+        registerReachableObjects();
+        SqueakImageWriter writer = new SqueakImageWriter(objectTable, otMaxUsed, imageHeader, getSpecialObjectsArray(),
+                                                         baseHeader, checkpoints+1, nextOop);
+        write(writer, file, false);
+        checkpoints++;
+        nextOop = writer.nextOop();
+        monitor.logMessage("Done writing checkpoint at " + System.currentTimeMillis());
+    }
+
+    private static void write(final SqueakImageWriter writer, File file, final boolean compress) throws IOException
+    {
+        write(file, new Output() {
+            public void write(FileOutputStream out) throws IOException {
+                writer.write(out, compress);
+            }});
+        writer.commit();
+    }
+
+    /** What one of the writers puts in a file. */
+    private interface Output
+    {
+        void write(FileOutputStream out) throws IOException;
+    }
+
+    private static void write(File file, Output output) throws IOException
+    {
+        File written = new File(file.getAbsoluteFile().getParentFile(), file.getName() + ".saving");
+        FileOutputStream out = new FileOutputStream(written);
+        try {
+            output.write(out);
+        } catch (IOException e) {
+            out.close();
+            written.delete();
+            throw e;
+        }
+        out.close();
+        Files.move(written.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    /** Where a snapshot goes; primitive 121 can change it. */
+    public void setImageFile(File file)
+    {
         imageFile = file;
     }
 
@@ -112,50 +332,167 @@ public class SqueakImage
         vm = theVM; 
     }
     
-    private void loadImage(InputStream raw) throws IOException 
+    /** Where the first writes to registered objects go, on the threads the VM binds it to. */
+    public RememberedSet getRememberedSet() 
     {
+        return rememberedSet; 
+    }
+    
+    private OopMap loadImage(InputStream raw) throws IOException 
+    {
+        // Inflate on another thread while this one parses what is already inflated
         BufferedInputStream inputStream= new BufferedInputStream(raw);
-        GZIPInputStream gzippedInputStream= new GZIPInputStream(inputStream);
-        DataInputStream dataInputStream= new DataInputStream(gzippedInputStream);
-        readImage(dataInputStream); 
+        GZIPInputStream gzippedInputStream= new GZIPInputStream(inputStream, 65536);
+        ImageInflater inflater= new ImageInflater(gzippedInputStream);
+        inflater.start();
+        return readImage(inflater.buffer(), inflater, false); 
     }
 
-    private void loadImage(File file) throws IOException
+    private OopMap loadImage(File file, boolean lazy) throws IOException
     {
+        // Compressed snapshots are inflated, and never lazily; plain and native ones are mapped and read in place
         FileInputStream unbuffered= new FileInputStream(file);
-        loadImage(unbuffered);
-        unbuffered.close(); 
+        try 
+        {
+            FileChannel channel= unbuffered.getChannel();
+            ByteBuffer magic= ByteBuffer.allocate(4);
+            channel.read(magic, 0);
+            if (magic.get(0) == (byte) 0x1F && magic.get(1) == (byte) 0x8B)
+                return loadImage(unbuffered);
+            ByteBuffer contents= channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            if (NativeImageReader.isNativeImage(magic)) 
+            {
+                readNativeImage(contents, lazy);
+                return null; 
+            }
+            return readImage(contents, null, lazy); 
+        }
+        finally 
+        {
+            unbuffered.close(); 
+        }
     }
-    
+
+    private void loadCheckpoint(File file, OopMap oopMap) throws IOException
+    {
+        monitor.logMessage("Start reading checkpoint " + file + " at " + System.currentTimeMillis());
+        ByteBuffer in;
+        FileInputStream unbuffered= new FileInputStream(file);
+        try 
+        {
+            FileChannel channel= unbuffered.getChannel();
+            in= channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()); 
+        }
+        finally 
+        {
+            unbuffered.close(); 
+        }
+        SqueakImageReader reader = new SqueakImageReader(in);
+        reader.readCheckpointHeader(baseHeader, checkpoints+1, nextOop);
+        
+        // Compact classes and Float as they were before; the image does not change them at run time
+        SqueakObject compactClassesArray = getSpecialObjectsArray().getPointerNI(Squeak.splOb_CompactClasses);
+        int[] ccArray = new int[31];
+        for (int i= 0; i<31; i++)
+            ccArray[i] = oopOf(compactClassesArray.getPointer(i));
+        SqueakObject floatClass = getSpecialObjectsArray().getPointerNI(Squeak.splOb_ClassFloat);
+        
+        List<SqueakObject> read = reader.readCheckpointObjects(this, oopMap, nextOop);
+        for (SqueakObject each : read)
+            each.install(oopMap, ccArray, floatClass);
+        
+        setSpecialObjectsArray(oopMap.get(reader.imageHeader.specialObjectsOopInt));
+        imageHeader.lastHash = reader.imageHeader.lastHash;
+        checkpoints++;
+        nextOop = reader.checkpointNextOop;
+        otMaxOld = otMaxUsed;
+        monitor.logMessage("Done reading " + read.size() + " objects at " + System.currentTimeMillis());
+    }
+
+    /** Maps the oops objects have in the snapshot to them, which they have in the same order as the object table. */
+    private OopMap snapshotOopMap()
+    {
+        OopMap oopMap= new OopMap(otMaxUsed+1);
+        for (int i= 0; i<=otMaxUsed; i++) 
+        {
+            SqueakObject obj= objectTable.get(i);
+            if (obj != null)
+                oopMap.add(obj.getSnapshotOop(), obj);
+        }
+        return oopMap;
+    }
+
+    private static int oopOf(Object pointer)
+    {
+        if (pointer instanceof Integer)
+            return (((Integer) pointer).intValue() << 1) | 1;
+        return ((SqueakObject) pointer).getSnapshotOop();
+    }
+
     public void bulkMutate(Object[] sourceObjects, Object[] targetClasses) {
     	ObjectMutator.verifySameLengths(sourceObjects, targetClasses);
+    	registerReachableObjects();
     	int length = sourceObjects.length;
-		Hashtable mutations= new Hashtable(length*4);
+		Map<SqueakObject, Object> mutations= new IdentityHashMap<SqueakObject, Object>(length*2);
 		ObjectMutator.setupMutationsSourceToTarget(sourceObjects, targetClasses, length, mutations);
-		ObjectMutator.mutateClasses(mutations,objectTable,otMaxUsed);
+		afterMutation(mutations, ObjectMutator.mutateClasses(mutations,objectTable,otMaxUsed));
     }
 
     public void bulkMutateTwoWay(Object[] sourceObjects, Object[] targetClasses) {
     	ObjectMutator.verifySameLengths(sourceObjects, targetClasses);
+    	registerReachableObjects();
     	int length = sourceObjects.length;
-		Hashtable mutations= new Hashtable(length*4*2);
+		Map<SqueakObject, Object> mutations= new IdentityHashMap<SqueakObject, Object>(length*2*2);
 		ObjectMutator.setupMutationsSourceToTarget(sourceObjects, targetClasses, length, mutations);
 		ObjectMutator.setupMutationsTargetToSource(sourceObjects, targetClasses, length, mutations);
-		ObjectMutator.mutateClasses(mutations,objectTable,otMaxUsed);
+		afterMutation(mutations, ObjectMutator.mutateClasses(mutations,objectTable,otMaxUsed));
+    }
+
+    private void afterMutation(Map<SqueakObject, Object> mutations, List<SqueakObject> translatedMethods)
+    {
+		if (vm != null)
+			vm.flushCachesForBecome(mutations, translatedMethods);
+		if (instanceIndex != null)
+			instanceIndex.mutateClasses(mutations);
+		if (lazyBodies != null)
+			lazyBodies.become(mutations);
+		// Objects that became contexts are not in registeredContexts; find them again
+		if (mutations.containsValue(contextClass(Squeak.splOb_ClassMethodContext))
+				|| mutations.containsValue(contextClass(Squeak.splOb_ClassBlockContext)))
+			rememberedSet.disable();
     }
 
+    /**
+     * Whether the instances of each class are indexed (see InstanceIndex),
+     * so enumerating them does not scan the heap.  The index is made when
+     * a class's instances are first enumerated, and costs a word per object.
+     */
+    public void setInstanceIndexing(boolean on)
+    {
+        indexingInstances = on;
+        if (!on)
+            instanceIndex = null;
+    }
 
     //Enumeration...
     public SqueakObject nextInstance(int startingIndex, SqueakObject sqClass) 
     {
+        if (startingIndex == 0)
+            registerReachableObjects(); // an enumeration starts
+        if (sqClass != null && indexingInstances)
+        {
+            if (instanceIndex == null)
+                instanceIndex= new InstanceIndex(objectTable, otMaxUsed);
+            SqueakObject next= instanceIndex.next(objectTable, startingIndex, sqClass);
+            return next == null ? vm.nilObj : next;
+        }
         //if sqClass is null, then find next object, else find next instance of sqClass
         for(int i=startingIndex; i<=otMaxUsed; i++) 
         {
             // For every object...
-            SqueakObject obj= (SqueakObject)objectTable[i].get();
+            SqueakObject obj= objectTable.get(i);
             if (obj != null && (sqClass==null | obj.getSqClass() == sqClass)) 
             {
-                lastOTindex= i; // save hint for next scan
                 return obj;
             }
         }
@@ -164,66 +501,143 @@ public class SqueakImage
     
     public int otIndexOfObject(SqueakObject lastObj) 
     {
-        // hint: lastObj should be at lastOTindex
-        SqueakObject obj= (SqueakObject)objectTable[lastOTindex].get(); 
-        if (lastOTindex<=otMaxUsed && obj==lastObj) 
-        {
-            return lastOTindex;
-        }
+        if (!lastObj.isRegistered())
+            return otMaxUsed; // made since the enumeration started, so after all its objects
+        return lastObj.getOtIndex(); 
+    }
+    
+    /** The identity hash of an object being made. */
+    public short newHash() 
+    {
+        imageHeader.lastHash= 13849 + (27181 * imageHeader.lastHash);
+        return (short) (imageHeader.lastHash & 0xFFF); 
+    }
+    
+    public void registerObject (SqueakObject obj) 
+    {
+        //All enumerable objects must be registered
+        enter(obj);
+    }
+    
+    private void enter(SqueakObject obj) 
+    {
+        if ((otMaxUsed+1) >= objectTable.capacity())
+            makeRoom();
+        objectTable.put(++otMaxUsed, obj);
+        if (instanceIndex != null)
+            instanceIndex.add(obj);
+        if (rememberedSet.isEnabled())
+            remember(obj);
+    }
+
+    private void remember(SqueakObject obj) 
+    {
+        obj.forgetWrites();
+        Object sqClass= obj.getSqClass();
+        if (sqClass == contextClass(Squeak.splOb_ClassMethodContext) || sqClass == contextClass(Squeak.splOb_ClassBlockContext))
+            registeredContexts.add(new WeakReference<SqueakObject>(obj));
+    }
+
+    private SqueakObject contextClass(int specialObjectIndex) 
+    {
+        return getSpecialObjectsArray().getPointerNI(specialObjectIndex);
+    }
+    
+    /**
+     * Registers the objects made since the last call that can still be
+     * reached from the registered ones or the active context, in the order
+     * found.  Only objects written since and contexts can refer to them, so
+     * others are not scanned: the first call scans the changed objects
+     * and contexts in the whole table, as a checkpoint writes them (see
+     * checkpoint()), and from then on the registered objects remember
+     * their writes (see RememberedSet).
+     */
+    private void registerReachableObjects() 
+    {
+        List<SqueakObject> found= new ArrayList<SqueakObject>();
+        if (vm != null && vm.getActiveContext() != null)
+            found(vm.getActiveContext(), found);
+        if (!rememberedSet.isComplete())
+            scanTable(found);
         else 
         {
-            for(int i=0; i<=otMaxUsed; i++) 
+            for (SqueakObject each : rememberedSet.drain())
+                if (each.isMaterialized())
+                    scan(each, found);
+            for (Iterator<WeakReference<SqueakObject>> it= registeredContexts.iterator(); it.hasNext(); ) 
             {
-                // Alas no; have to find it again...
-                obj= (SqueakObject)objectTable[i].get();
-                if (obj == lastObj) 
-                    return i; 
+                SqueakObject context= it.next().get();
+                if (context == null)
+                    it.remove();
+                else if (context.isMaterialized())
+                    scan(context, found);
             }
         }
-        return -1;  //should not happen
+        // Table entries only once the scan is done, as making room compacts the table
+        for (int i= 0; i<found.size(); i++)
+            scan(found.get(i), found);
+        for (SqueakObject each : found)
+            enter(each);
     }
     
-    private final static int OT_MIN_SIZE=  500000;
-    private final static int OT_MAX_SIZE= 1600000;
-    private final static int OT_GROW_SIZE= 10000;
-
-    public short registerObject (SqueakObject obj) 
+    /** Scans the changed objects and contexts in the table, which from now on remember their writes. */
+    private void scanTable(List<SqueakObject> found) 
     {
-        //All enumerable objects must be registered
-        if ((otMaxUsed+1) >= objectTable.length)
-            if (!getMoreOops(OT_GROW_SIZE))
-                throw new RuntimeException("Object table has reached capacity");
-        objectTable[++otMaxUsed]= new WeakReference(obj);
-        imageHeader.lastHash= 13849 + (27181 * imageHeader.lastHash);
-        return (short) (imageHeader.lastHash & 0xFFF); 
+        rememberedSet.enable();
+        registeredContexts= new ArrayList<WeakReference<SqueakObject>>();
+        SqueakObject methodContextClass= contextClass(Squeak.splOb_ClassMethodContext);
+        SqueakObject blockContextClass= contextClass(Squeak.splOb_ClassBlockContext);
+        for (int i= 0; i<=otMaxUsed; i++) 
+        {
+            SqueakObject obj= objectTable.get(i);
+            if (obj == null)
+                continue;
+            remember(obj);
+            if (!obj.isMaterialized())
+                continue;
+            Object sqClass= obj.getSqClass();
+            if (obj.isDirty() || sqClass == methodContextClass || sqClass == blockContextClass)
+                scan(obj, found);
+        }
     }
     
-    private boolean getMoreOops(int request) 
+    private void scan(SqueakObject obj, List<SqueakObject> found) 
     {
-        int nullCount;
-        int startingOtMaxUsed= otMaxUsed;
-        for(int i=0; i<5; i++) 
-        {
-            if (i==2) 
-                vm.clearCaches(); //only flush caches after two tries
-            partialGC();
-            nullCount= startingOtMaxUsed - otMaxUsed;
-            if (nullCount >= request)
-                return true; 
-        }
-        
-        // Sigh -- really need more space...
-        int n= objectTable.length;
-        if (n+request > OT_MAX_SIZE) 
+        found(obj.getSqClass(), found);
+        Object[] pointers= obj.getPointers();
+        if (pointers != null)
+            for (Object each : pointers)
+                found(each, found);
+    }
+    
+    private void found(Object pointer, List<SqueakObject> found) 
+    {
+        if (pointer instanceof SqueakObject) 
         {
-            fullGC();
-            return false; 
+            SqueakObject obj= (SqueakObject) pointer;
+            if (!obj.isRegistered() && !obj.isFloat()) 
+            {
+                found.add(obj);
+                obj.setOtIndex(otMaxUsed + found.size()); // where enter() will put it, unless it compacts first
+            }
         }
-        System.out.println("Squeak: growing to " + (n+request) + " objects...");
-        WeakReference newTable[]= new WeakReference[n+request];
-        System.arraycopy(objectTable, 0, newTable, 0, n);
-        objectTable= newTable;
-        return true; 
+    }
+    
+    /**
+     * Makes room in the full object table: compacts away the young objects the
+     * GC collected if that frees a quarter of their slots, else grows the table
+     * by a quarter.  Either pays for the scan with as many registrations, so
+     * registering stays cheap however large the heap gets, and nothing waits
+     * for a collection (see SqueakVM.checkForInterrupts() for low space).
+     */
+    private void makeRoom() 
+    {
+        int young= otMaxUsed - otMaxOld;
+        int oldOtMaxUsed= otMaxUsed;
+        otMaxUsed= reclaimNullOTSlots(otMaxOld);
+        int freed= oldOtMaxUsed - otMaxUsed;
+        if (freed == 0 || freed < young/4)
+            objectTable.grow(Math.max(ObjectTable.SEGMENT_SIZE, objectTable.capacity()/4));
     }
     
     public int partialGC() 
@@ -235,7 +649,10 @@ public class SqueakImage
 
     public int spaceLeft() 
     {
-        return (int)Math.min(Runtime.getRuntime().freeMemory(),(long)SqueakVM.MAX_SMALL_INT); 
+        // The heap may still grow to maxMemory
+        Runtime runtime= Runtime.getRuntime();
+        long free= runtime.maxMemory() - runtime.totalMemory() + runtime.freeMemory();
+        return (int)Math.min(free,(long)SqueakVM.MAX_SMALL_INT); 
     }
 
     public int fullGC() 
@@ -254,79 +671,164 @@ public class SqueakImage
         // and returns a new value for otMaxUsed.
         // If start=0, all are scanned (like full gc);
         // if start=otMaxOld it will skip the old objects (like gcMost).
-        int oldOtMaxUsed= otMaxUsed;
         int writePtr= start;
         for(int readPtr= start; readPtr<=otMaxUsed; readPtr++)
-            if (objectTable[readPtr].get() != null)
-                objectTable[writePtr++]=objectTable[readPtr];
-        if (writePtr==start) 
-            return oldOtMaxUsed;
+            if (objectTable.isCollected(readPtr))
+                objectTable.clear(readPtr);
+            else
+                objectTable.move(readPtr, writePtr++);
+        if (instanceIndex != null)
+            instanceIndex.renumberFrom(objectTable, start, writePtr-1);
         return writePtr-1; 
     }
     
-    private void writeImage (DataOutput ser) throws IOException 
-    {
-        // Later...
-        throw new IOException( "Image saving is not implemented yet" );
-    } 
-    
     ///////////////////////////////////////////////////////////////////////////////////////////
     
-    private void readImage(DataInput in) throws IOException 
+    private OopMap readImage(ByteBuffer in, ImageInflater inflater, boolean lazy) throws IOException 
     {
-        System.out.println("Start reading at " + System.currentTimeMillis());
         monitor.logMessage("Start reading image at " + System.currentTimeMillis());
         monitor.setStatus("Reading image");
         
-        objectTable = new WeakReference[OT_MIN_SIZE];
         otMaxUsed= -1;
         
-        SqueakImageReader reader = new SqueakImageReader(in);
+        SqueakImageReader reader = new SqueakImageReader(in, inflater);
         
         // Read image header
         imageHeader = reader.readImageHeader();
+        objectTable = new ObjectTable(imageHeader.endOfMemory / 32); // a guess, it grows
+        baseHeader = imageHeader.copy();
+        checkpoints = 0;
+        nextOop = imageHeader.oldBaseAddr + imageHeader.endOfMemory;
+        
+        if (lazy) 
+        {
+            OopMap oopMap = reader.readObjectsLazily(this);
+            reader.installLazily(objectTable, otMaxUsed);
+            lazyBodies = reader;
+            setSpecialObjectsArray(oopMap.get(imageHeader.specialObjectsOopInt));
+            otMaxOld= otMaxUsed; 
+            monitor.logMessage("Done reading " + (otMaxUsed+1) + " objects lazily at " + System.currentTimeMillis());
+            return oopMap;
+        }
         
         // Read objects 
-        Hashtable<Integer, SqueakObject> oopMap = reader.readObjects(this);
+        OopMap oopMap = reader.readObjects(this);
         
         //Temp version of special objects needed for makeCompactClassesArray; not a good object yet
-        SqueakObject specialObjectsArrayOop = oopMap.get(Integer.valueOf(imageHeader.specialObjectsOopInt));
+        SqueakObject specialObjectsArrayOop = oopMap.get(imageHeader.specialObjectsOopInt);
         int[] soaByteCode = (int[]) specialObjectsArrayOop.getBits();
         String soaByteCodeHex = HexUtils.translateRawData(soaByteCode);
         monitor.logMessage("Special objects bytecode: " + soaByteCodeHex);
         setSpecialObjectsArray(specialObjectsArrayOop);
         
-        Integer[] ccArray= makeCompactClassesArray(oopMap,getSpecialObjectsArray());
+        int[] ccArray= makeCompactClassesArray(oopMap,getSpecialObjectsArray());
         
         int oldOop= getSpecialObjectsArray().oldOopAt(Squeak.splOb_ClassFloat);
-        SqueakObject floatClass= oopMap.get(Integer.valueOf(oldOop));
+        SqueakObject floatClass= oopMap.get(oldOop);
         
         monitor.setStatus("Installing");
-        System.out.println("Start installs at " + System.currentTimeMillis());
         monitor.logMessage("Start installs at " + System.currentTimeMillis());
         
-        for (int i= 0; i<otMaxUsed; i++) {
-        	SqueakObject squeakObject = (SqueakObject) objectTable[i].get();
-        	monitor.logMessage("Installing: "+squeakObject.getHash());
-        	squeakObject.install(oopMap,ccArray,floatClass); 
+        InstallTask installs= new InstallTask(objectTable, 0, otMaxUsed+1, oopMap, ccArray, floatClass);
+        int processors= Runtime.getRuntime().availableProcessors();
+        if (processors == 1 || otMaxUsed < InstallTask.CHUNK) 
+            installs.installAll();
+        else 
+        {
+            ForkJoinPool pool= new ForkJoinPool(processors);
+            try 
+            {
+                pool.invoke(installs);
+            }
+            finally 
+            {
+                pool.shutdown();
+            }
         }
         
-        System.out.println("Done installing at " + System.currentTimeMillis());
-        monitor.logMessage("Done installing at " + System.currentTimeMillis());
+        monitor.logMessage("Done installing " + (otMaxUsed+1) + " objects at " + System.currentTimeMillis());
         
         //Proper version of special objects -- it's a good object
-        setSpecialObjectsArray(oopMap.get(Integer.valueOf(imageHeader.specialObjectsOopInt)));
+        setSpecialObjectsArray(oopMap.get(imageHeader.specialObjectsOopInt));
         otMaxOld= otMaxUsed; 
+        return oopMap;
+    }
+
+    private void readNativeImage(ByteBuffer in, boolean lazy) throws IOException 
+    {
+        monitor.logMessage("Start reading native image at " + System.currentTimeMillis());
+        monitor.setStatus("Reading image");
+        NativeImageReader reader = new NativeImageReader(in);
+        SqueakObject[] objects = lazy ? reader.readObjectsLazily() : reader.readObjects();
+        if (lazy)
+            lazyBodies = reader;
+        objectTable = new ObjectTable(objects.length);
+        for (int i= 0; i<objects.length; i++) 
+            objectTable.put(i, objects[i]);
+        otMaxUsed = objects.length - 1;
+        otMaxOld = otMaxUsed;
+        imageHeader = reader.imageHeader;
+        baseHeader = reader.snapshotHeader;
+        checkpoints = 0;
+        nextOop = baseHeader.oldBaseAddr + baseHeader.endOfMemory;
+        nativeFormat = true;
+        setSpecialObjectsArray(objects[reader.specialObjectsIndex]);
+        monitor.logMessage("Done reading " + objects.length + " objects at " + System.currentTimeMillis());
+    }
+
+    /**
+     * Installs a range of the object table, halving it among the pool's
+     * threads down to CHUNK objects.  Installing an object only reads the
+     * oop map and its own raw data, so ranges are independent.
+     */
+    private static class InstallTask extends RecursiveAction 
+    {
+        private static final long serialVersionUID = 1L;
+        static final int CHUNK= 4096;
+
+        private final ObjectTable objects;
+        private final int from, to;
+        private final OopMap oopMap;
+        private final int[] ccArray;
+        private final SqueakObject floatClass;
+
+        InstallTask(ObjectTable objects, int from, int to, OopMap oopMap, int[] ccArray, SqueakObject floatClass) 
+        {
+            this.objects= objects;
+            this.from= from;
+            this.to= to;
+            this.oopMap= oopMap;
+            this.ccArray= ccArray;
+            this.floatClass= floatClass;
+        }
+
+        protected void compute() 
+        {
+            if (to-from <= CHUNK) 
+            {
+                installAll();
+                return;
+            }
+            int middle= (from+to) >>> 1;
+            invokeAll(new InstallTask(objects, from, middle, oopMap, ccArray, floatClass),
+                      new InstallTask(objects, middle, to, oopMap, ccArray, floatClass));
+        }
+
+        void installAll() 
+        {
+            for (int i= from; i<to; i++)
+                objects.get(i).install(oopMap, ccArray, floatClass);
+        }
     }
 
-    private Integer[] makeCompactClassesArray(Hashtable<Integer, SqueakObject> oopMap, SqueakObject splObs) 
+    private int[] makeCompactClassesArray(OopMap oopMap, SqueakObject splObs) 
     {
         //Makes an array of the compact classes as oldOops (still need to be mapped)
         int oldOop= splObs.oldOopAt(Squeak.splOb_CompactClasses);
-        SqueakObject compactClassesArray= oopMap.get(new Integer(oldOop));
-        Integer[] ccArray= new Integer[31];
+        SqueakObject compactClassesArray= oopMap.get(oldOop);
+        int[] ccArray= new int[31];
         for (int i= 0; i<31; i++) {
-            ccArray[i]= Integer.valueOf(compactClassesArray.oldOopAt(i)); 
+            ccArray[i]= compactClassesArray.oldOopAt(i); 
         }
         return ccArray; 
     }
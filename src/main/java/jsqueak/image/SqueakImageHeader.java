@@ -10,4 +10,18 @@ class SqueakImageHeader {
 	int savedWindowSize;
 	int fullScreenFlag;
 	int extraVMMemory;
+
+	SqueakImageHeader copy() {
+		SqueakImageHeader copy = new SqueakImageHeader();
+		copy.doSwap = doSwap;
+		copy.headerSize = headerSize;
+		copy.endOfMemory = endOfMemory;
+		copy.oldBaseAddr = oldBaseAddr;
+		copy.specialObjectsOopInt = specialObjectsOopInt;
+		copy.lastHash = lastHash;
+		copy.savedWindowSize = savedWindowSize;
+		copy.fullScreenFlag = fullScreenFlag;
+		copy.extraVMMemory = extraVMMemory;
+		return copy;
+	}
 }
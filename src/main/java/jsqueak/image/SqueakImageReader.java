@@ -1,24 +1,70 @@
 package jsqueak.image;
 
-import java.io.DataInput;
 import java.io.IOException;
-import java.util.Hashtable;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
 
 import jsqueak.Squeak;
 import jsqueak.vm.SqueakObject;
 
-class SqueakImageReader {
+/**
+ * Reads a snapshot from memory: a file mapped as it is, or the inflated
+ * contents of a compressed one.  The bytes are seen as ints in the
+ * image's own byte order, so object bodies are copied out in bulk instead
+ * of being read and swapped an int at a time.  A compressed image is
+ * parsed while its inflater is still filling the buffer; the reader only
+ * waits when it catches up.
+ *
+ * A mapped image can also be read lazily: then the reader is the
+ * BodySource of the objects it made, and decodes a body from the mapped
+ * file when the VM first uses it.
+ */
+class SqueakImageReader implements LazyBodies {
 	SqueakImageHeader imageHeader = null;
-	DataInput in = null;
+	IntBuffer in = null;
+	private final ImageInflater inflater; // null when all of the image is there
+	private int availableInts;
+	private int baseHeaderIndex; // of the object readObject() read last
+	int checkpointNextOop; // read by readCheckpointHeader(), as are imageHeader's oop and hash
+	private int checkpointObjects;
 	
-	public SqueakImageReader(DataInput in) {
-		this.in = in;
+	// Lazy reading only (see readObjectsLazily())
+	private OopMap oopMap;
+	private SqueakObject floatClass;
+	
+	public SqueakImageReader(ByteBuffer image, ImageInflater inflater) throws IOException {
+		boolean doSwap = determineEndianness(image);
+		image.order(doSwap ? swapped(image.order()) : image.order());
+		in = image.asIntBuffer();
+		this.inflater = inflater;
+		availableInts = inflater == null ? in.limit() : 64 / 4;
+		imageHeader = new SqueakImageHeader();
+		imageHeader.doSwap = doSwap;
 	}
 
-	public SqueakImageHeader readImageHeader() throws IOException {
+	/** A reader of a checkpoint, which is big-endian and all in memory. */
+	SqueakImageReader(ByteBuffer checkpoint) throws IOException {
+		if (checkpoint.remaining() < 64)
+			throw new IOException("not a checkpoint");
+		in = checkpoint.order(ByteOrder.BIG_ENDIAN).asIntBuffer();
+		inflater = null;
+		availableInts = in.limit();
 		imageHeader = new SqueakImageHeader();
-		imageHeader.doSwap = determineEndianness();
-        System.err.println("version passes with swap= " + imageHeader.doSwap);
+	}
+
+	/** The length of the snapshot that starts with this header: header plus heap. */
+	static long imageLength(ByteBuffer header) throws IOException {
+		if (determineEndianness(header))
+			header.order(swapped(header.order()));
+		return (long) header.getInt(4) + header.getInt(8);
+	}
+
+	public SqueakImageHeader readImageHeader() throws IOException {
+		in.get(); // version, checked by determineEndianness()
         imageHeader.headerSize= intFromInputSwapped();
         imageHeader.endOfMemory= intFromInputSwapped(); //first unused location in heap
         imageHeader.oldBaseAddr= intFromInputSwapped(); //object memory base address of image
@@ -27,95 +73,214 @@ class SqueakImageReader {
         imageHeader.savedWindowSize= intFromInputSwapped();
         imageHeader.fullScreenFlag= intFromInputSwapped();
         imageHeader.extraVMMemory= intFromInputSwapped();
-        in.skipBytes(imageHeader.headerSize - (9*4)); //skip to end of header
+        in.position(imageHeader.headerSize / 4); //skip to end of header
+        if (imageHeader.endOfMemory > (in.limit() - in.position()) * 4)
+            throw new IOException("image is truncated");
         return imageHeader;
 	}
 
-	private boolean determineEndianness() throws IOException {
-		int version= in.readInt();
+	private static boolean determineEndianness(ByteBuffer image) throws IOException {
+		if (image.remaining() < 64)
+			throw new IOException("bad image version");
+		int version= image.getInt(0);
         if (version != 6502) 
         {
-            version= swapInt(version);
+            version= Integer.reverseBytes(version);
             if (version != 6502)
                 throw new IOException("bad image version");
             return true; 
         }
 		return false;
 	}
+
+    private static ByteOrder swapped(ByteOrder order)
+    {
+        return order == ByteOrder.BIG_ENDIAN ? ByteOrder.LITTLE_ENDIAN : ByteOrder.BIG_ENDIAN; 
+    }
     
     private int intFromInputSwapped() throws IOException 
     {
-        // Return an int from stream 'in', swizzled if doSwap is true
-        if (imageHeader.doSwap) 
-            return swapInt(in.readInt());
-        else 
-            return in.readInt(); 
+        // The buffer's byte order is the image's, so no swizzling here
+        return in.get(); 
     }
-    
-    private int swapInt(int toSwap) 
+
+    private void require(int ints) throws IOException 
     {
-        // Return an int with byte order reversed
-        int incoming= toSwap;
-        int outgoing= 0;
-        for (int i= 0; i<4; i++) 
-        {
-            int lowByte= incoming & 255;
-            outgoing= (outgoing<<8) + lowByte;
-            incoming= incoming>>8; 
-        }
-        return outgoing; 
+        // Make sure the next ints are inflated, or as many as the image has
+        int end= Math.min(in.position() + ints, in.limit());
+        if (end > availableInts)
+            availableInts= inflater.awaitBytes(end * 4) / 4; 
     }
         
-	public Hashtable<Integer,SqueakObject> readObjects(SqueakImage objectRegistry) throws IOException {
-        Hashtable<Integer, SqueakObject> oopMap= new Hashtable<Integer, SqueakObject>(30000);
-		for (int i= 0; i<imageHeader.endOfMemory;) {
-            int dataLength = 0;
-            int classInt = 0;
-            int[] data;
-            int objectHeader = intFromInputSwapped();
-            switch (objectHeader & Squeak.HEADER_TYPE_MASK) {
-                case Squeak.HEADER_TYPE_SIZE_AND_CLASS:
-                    dataLength= objectHeader>>2;
-                    classInt= intFromInputSwapped() - Squeak.HEADER_TYPE_SIZE_AND_CLASS;
-                    objectHeader= intFromInputSwapped();
-                    i += 12;
-                    break;
-                case Squeak.HEADER_TYPE_CLASS:
-                    classInt= objectHeader - Squeak.HEADER_TYPE_CLASS;
-                    objectHeader= intFromInputSwapped();
-                    i += 8;
-                    dataLength= (objectHeader>>2) & 63;
-                    break;
-                case Squeak.HEADER_TYPE_FREE_BLOCK:
-                    throw new IOException("Unexpected free block");
-                case Squeak.HEADER_TYPE_SHORT:
-                    i += 4;
-                    classInt= (objectHeader>>12) & 31; //compact class index
-                    //Note classInt<32 implies compact class index
-                    dataLength= (objectHeader>>2) & 63;
-                    break;
-            }
-            int baseAddr = i - 4; //0-rel byte oop of this object (base header)
-            dataLength--;  //length includes base header which we have already read
-            int format= ((objectHeader>>8) & 15);
-            int hash= ((objectHeader>>17) & 4095);
-            
-            // Note classInt and data are just raw data; no base addr adjustment and no Int conversion
-            data= new int[dataLength];
-            for (int j= 0; j<dataLength; j++) {
-            	data[j]= intFromInputSwapped();
-            }
-            //String rawDataChunk = HexUtils.translateRawData(data);
-            //monitor.logMessage(rawDataChunk);
-            i += dataLength*4;
-            
-            SqueakObject squeakObject= new SqueakObject(Integer.valueOf(classInt),(short)format,(short)hash,data);
+	public OopMap readObjects(SqueakImage objectRegistry) throws IOException {
+        OopMap oopMap= new OopMap(imageHeader.endOfMemory / 40); // a guess, it grows
+        int start= in.position();
+        int end= start + imageHeader.endOfMemory / 4;
+		while (in.position() < end) {
+            SqueakObject squeakObject= readObject(true);
             objectRegistry.registerObject(squeakObject);
             //oopMap is from old oops to new objects
-            //Why can't we use ints as keys??...
-            oopMap.put(Integer.valueOf(baseAddr+imageHeader.oldBaseAddr),squeakObject); 
+            int oop= (baseHeaderIndex - start)*4 + imageHeader.oldBaseAddr;
+            squeakObject.setSnapshotOop(oop);
+            oopMap.add(oop,squeakObject); 
+        }
+		return oopMap;
+	}
+
+	/**
+	 * Makes every object of a mapped image with its class, format and hash
+	 * but no body, and registers it like readObjects() does.
+	 */
+	OopMap readObjectsLazily(SqueakImage objectRegistry) throws IOException {
+        oopMap= new OopMap(imageHeader.endOfMemory / 40);
+        int start= in.position();
+        int end= start + imageHeader.endOfMemory / 4;
+		while (in.position() < end) {
+            SqueakObject squeakObject= readObject(false);
+            objectRegistry.registerObject(squeakObject);
+            int oop= (baseHeaderIndex - start)*4 + imageHeader.oldBaseAddr;
+            squeakObject.setSnapshotOop(oop);
+            oopMap.add(oop,squeakObject); 
         }
 		return oopMap;
 	}
 
+	/**
+	 * Installs the classes of the objects readObjectsLazily() made and
+	 * leaves their bodies to this reader; Floats are decoded at once.
+	 */
+	void installLazily(ObjectTable objectTable, int otMaxUsed) {
+        int[] specials= rawBody(imageHeader.specialObjectsOopInt);
+        int[] compactClasses= rawBody(specials[Squeak.splOb_CompactClasses]);
+        int[] ccArray= new int[31];
+        System.arraycopy(compactClasses, 0, ccArray, 0, Math.min(31, compactClasses.length));
+        floatClass= oopMap.get(specials[Squeak.splOb_ClassFloat]);
+        for (int i= 0; i<=otMaxUsed; i++) {
+            SqueakObject each= objectTable.get(i);
+            each.installClass(oopMap, ccArray);
+            if (each.getSqClass() == floatClass)
+                each.installBody(rawBody(each.getSnapshotOop()), oopMap, floatClass);
+            else
+                each.setBodySource(this);
+        }
+	}
+
+	public synchronized void materialize(SqueakObject obj) {
+		if (!obj.isMaterialized())
+			obj.installBody(rawBody(obj.getSnapshotOop()), oopMap, floatClass);
+	}
+
+	public synchronized void become(Map<SqueakObject, Object> mutations) {
+		oopMap.become(mutations);
+	}
+
+	/** The raw words of the body of the object at oop in the mapped image. */
+	private int[] rawBody(int oop) {
+        int at= (imageHeader.headerSize + oop - imageHeader.oldBaseAddr) / 4; // its base header
+        int header= in.get(at);
+        int words= (header & Squeak.HEADER_TYPE_MASK) == Squeak.HEADER_TYPE_SIZE_AND_CLASS
+                ? in.get(at-2) >> 2 : (header >> 2) & 63;
+        int[] data= new int[words-1];
+        IntBuffer body= in.duplicate();
+        body.position(at+1);
+        body.get(data);
+        return data;
+	}
+
+	/**
+	 * Reads the next object's headers and, if withBody, its raw body, else
+	 * skips it; sets baseHeaderIndex.
+	 */
+	private SqueakObject readObject(boolean withBody) throws IOException {
+        int dataLength = 0;
+        int classInt = 0;
+        int[] data;
+        require(3);
+        int objectHeader = intFromInputSwapped();
+        switch (objectHeader & Squeak.HEADER_TYPE_MASK) {
+            case Squeak.HEADER_TYPE_SIZE_AND_CLASS:
+                dataLength= objectHeader>>2;
+                classInt= intFromInputSwapped() - Squeak.HEADER_TYPE_SIZE_AND_CLASS;
+                objectHeader= intFromInputSwapped();
+                break;
+            case Squeak.HEADER_TYPE_CLASS:
+                classInt= objectHeader - Squeak.HEADER_TYPE_CLASS;
+                objectHeader= intFromInputSwapped();
+                dataLength= (objectHeader>>2) & 63;
+                break;
+            case Squeak.HEADER_TYPE_FREE_BLOCK:
+                throw new IOException("Unexpected free block");
+            case Squeak.HEADER_TYPE_SHORT:
+                classInt= (objectHeader>>12) & 31; //compact class index
+                //Note classInt<32 implies compact class index
+                dataLength= (objectHeader>>2) & 63;
+                break;
+        }
+        baseHeaderIndex = in.position() - 1; //int index of this object's base header
+        dataLength--;  //length includes base header which we have already read
+        int format= ((objectHeader>>8) & 15);
+        int hash= ((objectHeader>>17) & 4095);
+        
+        if (!withBody) {
+            in.position(in.position() + dataLength);
+            return SqueakObject.read(Integer.valueOf(classInt),(short)format,(short)hash,null);
+        }
+        // Note classInt and data are just raw data; no base addr adjustment and no Int conversion
+        data= new int[dataLength];
+        require(dataLength);
+        in.get(data);
+        //String rawDataChunk = HexUtils.translateRawData(data);
+        //monitor.logMessage(rawDataChunk);
+        return SqueakObject.read(Integer.valueOf(classInt),(short)format,(short)hash,data);
+	}
+
+	/**
+	 * Reads the header of a checkpoint (see SqueakImageWriter), checking
+	 * that it is the next one after the snapshot described by base and
+	 * the checkpoints already read, which numbered objects up to nextOop.
+	 */
+	void readCheckpointHeader(SqueakImageHeader base, int sequence, int nextOop) throws IOException {
+		if (in.get() != SqueakImageWriter.CHECKPOINT_MAGIC || in.get() != SqueakImageWriter.CHECKPOINT_VERSION)
+			throw new IOException("not a checkpoint");
+		if (in.get() != sequence)
+			throw new IOException("checkpoint out of order, expected number " + sequence);
+		if (in.get() != base.endOfMemory || in.get() != base.specialObjectsOopInt || in.get() != base.lastHash
+				|| in.get() != nextOop)
+			throw new IOException("checkpoint of another snapshot");
+		checkpointNextOop= in.get();
+		imageHeader.specialObjectsOopInt= in.get();
+		imageHeader.lastHash= in.get();
+		checkpointObjects= in.get();
+		in.position(64 / 4);
+	}
+
+	/**
+	 * Reads the objects of a checkpoint into the image its snapshot and
+	 * the checkpoints before it were read into: objects it has already are
+	 * reloaded in place, new ones are registered and added to oopMap.
+	 * Answers all of them, still to be installed.
+	 */
+	List<SqueakObject> readCheckpointObjects(SqueakImage objectRegistry, OopMap oopMap, int firstNewOop) throws IOException {
+		List<SqueakObject> read= new ArrayList<SqueakObject>(checkpointObjects);
+		for (int i= 0; i<checkpointObjects; i++) {
+			require(1);
+			int oop= in.get();
+			SqueakObject squeakObject= readObject(true);
+			if (oop < firstNewOop) {
+				SqueakObject existing= oopMap.get(oop);
+				if (existing == null)
+					throw new IOException("checkpoint changes an unknown object");
+				existing.reload(squeakObject);
+				squeakObject= existing;
+			}
+			else {
+				objectRegistry.registerObject(squeakObject);
+				squeakObject.setSnapshotOop(oop);
+				oopMap.add(oop,squeakObject);
+			}
+			read.add(squeakObject);
+		}
+		return read;
+	}
+
 }
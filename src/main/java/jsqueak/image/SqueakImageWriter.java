@@ -0,0 +1,289 @@
+package jsqueak.image;
+
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+
+import jsqueak.Squeak;
+import jsqueak.vm.SqueakObject;
+
+/**
+ * Writes a snapshot in the big-endian format SqueakImageReader reads, and
+ * that other Squeak VMs of the same image version read too.
+ *
+ * The first pass numbers the objects: it lays the object table out in
+ * order, then appends the Floats the VM made without registering them
+ * (see SqueakObject's Float constructor), which only pointers lead to.
+ * That gives every oop and the size of the heap before anything is
+ * written, so the second pass streams header, headers and bodies through
+ * one large buffer (see ImageOutput), straight to the file or through a
+ * compressor.
+ *
+ * A checkpoint (see SqueakImage.checkpoint()) holds only the objects
+ * changed since the snapshot or checkpoint before it, each as its oop in
+ * that chain followed by the object as a snapshot has it.  Objects keep
+ * their oops; new ones are numbered on from the end of the chain.
+ */
+class SqueakImageWriter {
+	private static final int VERSION= 6502;
+	private static final int HEADER_SIZE= 64;
+	static final int CHECKPOINT_MAGIC= 0x4A535144; // "JSQD"
+	static final int CHECKPOINT_VERSION= 1;
+
+	private final SqueakImageHeader imageHeader;
+	private final SqueakObject specialObjectsArray;
+	private final SqueakObject nilObj;
+	private final IdentityHashMap<SqueakObject, Integer> compactClasses= new IdentityHashMap<SqueakObject, Integer>();
+	private final List<SqueakObject> objects;
+	private final IdentityHashMap<SqueakObject, Integer> oops;
+	private int endOfMemory;
+
+	// Checkpoints only: the snapshot they follow, and how many came before
+	private final SqueakImageHeader base;
+	private final int sequence;
+	private int firstNewOop;
+	private int nextOop;
+
+	private ImageOutput out;
+
+	/** A writer of a snapshot of all objects. */
+	SqueakImageWriter(ObjectTable objectTable, int otMaxUsed, SqueakImageHeader imageHeader, SqueakObject specialObjectsArray) {
+		this(otMaxUsed+1, imageHeader, specialObjectsArray, null, 0);
+		assignOops(objectTable, otMaxUsed);
+	}
+
+	/**
+	 * A writer of checkpoint number sequence after the snapshot described
+	 * by base, holding the objects changed since; new ones are numbered
+	 * from nextOop on.
+	 */
+	SqueakImageWriter(ObjectTable objectTable, int otMaxUsed, SqueakImageHeader imageHeader, SqueakObject specialObjectsArray,
+			SqueakImageHeader base, int sequence, int nextOop) {
+		this(1024, imageHeader, specialObjectsArray, base, sequence);
+		firstNewOop= nextOop;
+		this.nextOop= nextOop;
+		assignCheckpointOops(objectTable, otMaxUsed);
+	}
+
+	private SqueakImageWriter(int capacity, SqueakImageHeader imageHeader, SqueakObject specialObjectsArray,
+			SqueakImageHeader base, int sequence) {
+		this.imageHeader= imageHeader;
+		this.specialObjectsArray= specialObjectsArray;
+		this.base= base;
+		this.sequence= sequence;
+		nilObj= specialObjectsArray.getPointerNI(Squeak.splOb_NilObject);
+		SqueakObject compactClassesArray= specialObjectsArray.getPointerNI(Squeak.splOb_CompactClasses);
+		for (int i= compactClassesArray.pointersSize() - 1; i >= 0; i--)
+			if (compactClassesArray.getPointer(i) != nilObj)
+				compactClasses.put(compactClassesArray.getPointerNI(i), Integer.valueOf(i+1));
+		objects= new ArrayList<SqueakObject>(capacity);
+		oops= new IdentityHashMap<SqueakObject, Integer>(2*capacity);
+	}
+
+	private void assignOops(ObjectTable objectTable, int otMaxUsed) {
+		// Strong references from here on, so GC cannot drop a numbered object
+		List<SqueakObject> unregistered= new ArrayList<SqueakObject>();
+		int address= 0;
+		for (int i= 0; i<=otMaxUsed; i++) {
+			SqueakObject obj= objectTable.get(i);
+			if (obj == null)
+				continue;
+			address= assignOop(obj, address);
+			Object[] pointers= obj.getPointers();
+			if (pointers != null)
+				for (Object each : pointers)
+					if (each instanceof SqueakObject && ((SqueakObject) each).isFloat())
+						unregistered.add((SqueakObject) each);
+		}
+		for (SqueakObject each : unregistered)
+			if (!oops.containsKey(each))
+				address= assignOop(each, address);
+		endOfMemory= address;
+	}
+
+	private int assignOop(SqueakObject obj, int address) {
+		int bodyWords= bodyWords(obj);
+		int oop= address + (headerWords(obj, bodyWords) - 1)*4; // the oop is the base header's address
+		objects.add(obj);
+		oops.put(obj, Integer.valueOf(oop + imageHeader.oldBaseAddr));
+		return oop + 4 + bodyWords*4;
+	}
+
+	private void assignCheckpointOops(ObjectTable objectTable, int otMaxUsed) {
+		// Contexts are always written: the VM changes them without the write barrier
+		Object methodContextClass= specialObjectsArray.getPointer(Squeak.splOb_ClassMethodContext);
+		Object blockContextClass= specialObjectsArray.getPointer(Squeak.splOb_ClassBlockContext);
+		List<SqueakObject> unregistered= new ArrayList<SqueakObject>();
+		for (int i= 0; i<=otMaxUsed; i++) {
+			SqueakObject obj= objectTable.get(i);
+			if (obj == null)
+				continue;
+			Object sqClass= obj.getSqClass();
+			if (!obj.isDirty() && obj.getSnapshotOop() != 0 && sqClass != methodContextClass && sqClass != blockContextClass)
+				continue;
+			assignCheckpointOop(obj);
+			Object[] pointers= obj.getPointers();
+			if (pointers != null)
+				for (Object each : pointers)
+					if (each instanceof SqueakObject && ((SqueakObject) each).isFloat() && ((SqueakObject) each).getSnapshotOop() == 0)
+						unregistered.add((SqueakObject) each);
+		}
+		for (SqueakObject each : unregistered)
+			if (!oops.containsKey(each))
+				assignCheckpointOop(each);
+	}
+
+	private void assignCheckpointOop(SqueakObject obj) {
+		int oop= obj.getSnapshotOop();
+		if (oop == 0) {
+			// Numbered like the next object of a heap that ends at nextOop
+			int bodyWords= bodyWords(obj);
+			oop= nextOop + (headerWords(obj, bodyWords) - 1)*4;
+			nextOop= oop + 4 + bodyWords*4;
+		}
+		objects.add(obj);
+		oops.put(obj, Integer.valueOf(oop));
+	}
+
+	/** Once the file is written: the objects in it are now known by their oops there. */
+	void commit() {
+		for (SqueakObject each : objects)
+			each.setSnapshotOop(oops.get(each).intValue());
+	}
+
+	/** The header of the snapshot written, to check checkpoints against. */
+	SqueakImageHeader writtenHeader() throws IOException {
+		SqueakImageHeader written= imageHeader.copy();
+		written.doSwap= false;
+		written.headerSize= HEADER_SIZE;
+		written.endOfMemory= endOfMemory;
+		written.specialObjectsOopInt= oopFor(specialObjectsArray);
+		return written;
+	}
+
+	/** The oop after the last one in the file: where the next checkpoint numbers new objects from. */
+	int nextOop() {
+		return base == null ? imageHeader.oldBaseAddr + endOfMemory : nextOop;
+	}
+
+	void write(FileOutputStream file, boolean compress) throws IOException {
+		out= new ImageOutput(file, compress);
+		if (base == null) {
+			writeHeader();
+			for (SqueakObject each : objects)
+				writeObject(each);
+		}
+		else {
+			writeCheckpointHeader();
+			for (SqueakObject each : objects) {
+				putInt(oopFor(each));
+				writeObject(each);
+			}
+		}
+		out.finish();
+	}
+
+	private void writeHeader() throws IOException {
+		putInt(VERSION);
+		putInt(HEADER_SIZE);
+		putInt(endOfMemory);
+		putInt(imageHeader.oldBaseAddr);
+		putInt(oopFor(specialObjectsArray));
+		putInt(imageHeader.lastHash);
+		putInt(imageHeader.savedWindowSize);
+		putInt(imageHeader.fullScreenFlag);
+		putInt(imageHeader.extraVMMemory);
+		for (int i= 9*4; i<HEADER_SIZE; i+= 4)
+			putInt(0);
+	}
+
+	private void writeCheckpointHeader() throws IOException {
+		putInt(CHECKPOINT_MAGIC);
+		putInt(CHECKPOINT_VERSION);
+		putInt(sequence);
+		putInt(base.endOfMemory);
+		putInt(base.specialObjectsOopInt);
+		putInt(base.lastHash);
+		putInt(firstNewOop);
+		putInt(nextOop);
+		putInt(oopFor(specialObjectsArray));
+		putInt(imageHeader.lastHash);
+		putInt(objects.size());
+		for (int i= 11*4; i<HEADER_SIZE; i+= 4)
+			putInt(0);
+	}
+
+	private void writeObject(SqueakObject obj) throws IOException {
+		int bodyWords= bodyWords(obj);
+		int format= obj.getFormat();
+		Object bits= obj.getBits();
+		if (format >= 8)
+			format= (format & ~3) | ((4 - ((byte[]) bits).length) & 3); // unused bytes of the last word
+		Integer compactIndex= compactClasses.get(obj.getSqClass());
+		int baseHeader= ((obj.getHash() & 0xFFF) << 17) | (format << 8);
+		if (compactIndex != null)
+			baseHeader|= compactIndex.intValue() << 12; // in long headers too, as Squeak does
+		switch (headerWords(obj, bodyWords)) {
+			case 1:
+				putInt(baseHeader | ((bodyWords+1) << 2) | Squeak.HEADER_TYPE_SHORT);
+				break;
+			case 2:
+				putInt(oopFor(obj.getSqClass()) | Squeak.HEADER_TYPE_CLASS);
+				putInt(baseHeader | ((bodyWords+1) << 2) | Squeak.HEADER_TYPE_CLASS);
+				break;
+			default:
+				putInt(((bodyWords+1) << 2) | Squeak.HEADER_TYPE_SIZE_AND_CLASS);
+				putInt(oopFor(obj.getSqClass()) | Squeak.HEADER_TYPE_SIZE_AND_CLASS);
+				putInt(baseHeader | Squeak.HEADER_TYPE_SIZE_AND_CLASS);
+		}
+		Object[] pointers= obj.getPointers();
+		if (pointers != null)
+			for (Object each : pointers)
+				putInt(oopFor(each));
+		if (bits instanceof byte[])
+			out.putBytes((byte[]) bits);
+		else if (bits instanceof int[])
+			out.putInts((int[]) bits);
+		else if (bits instanceof Double) {
+			long floatBits= Double.doubleToRawLongBits(((Double) bits).doubleValue());
+			putInt((int) (floatBits >>> 32));
+			putInt((int) floatBits);
+		}
+	}
+
+	private int oopFor(Object pointer) throws IOException {
+		if (pointer instanceof Integer)
+			return (((Integer) pointer).intValue() << 1) | 1;
+		SqueakObject obj= pointer == null ? nilObj : (SqueakObject) pointer;
+		Integer oop= oops.get(obj);
+		if (oop != null)
+			return oop.intValue();
+		if (base != null && obj.getSnapshotOop() != 0)
+			return obj.getSnapshotOop(); // unchanged since the last checkpoint
+		throw new IOException("Cannot snapshot an object that is not in the object table: " + pointer);
+	}
+
+	private static int bodyWords(SqueakObject obj) {
+		Object bits= obj.getBits();
+		int words= obj.pointersSize();
+		if (bits instanceof byte[])
+			words+= (((byte[]) bits).length + 3) / 4;
+		else if (bits instanceof int[])
+			words+= ((int[]) bits).length;
+		else if (bits instanceof Double)
+			words+= 2;
+		return words;
+	}
+
+	private int headerWords(SqueakObject obj, int bodyWords) {
+		if (bodyWords+1 > 63)
+			return 3;
+		return compactClasses.containsKey(obj.getSqClass()) ? 1 : 2;
+	}
+
+	private void putInt(int word) throws IOException {
+		out.putInt(word);
+	}
+}
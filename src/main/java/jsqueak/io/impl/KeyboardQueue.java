@@ -119,6 +119,11 @@ public class KeyboardQueue implements Keyboard
     // -- Private methods
     
     private void addToQueue( char keyChar ) {
+        if ( ( ( fModifierKeys >> 3 ) << 8 | ( keyChar & 255 ) ) == vm.getInterruptKeycode() ) {
+            vm.interruptKeyPressed();
+            return;
+        }
+        
         if ( fCharQueue.size() < TYPEAHEAD_LIMIT )
             fCharQueue.add( new Character( keyChar ) );
             
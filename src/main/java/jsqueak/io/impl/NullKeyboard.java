@@ -0,0 +1,35 @@
+package jsqueak.io.impl;
+
+import java.awt.event.KeyEvent;
+
+import jsqueak.io.Keyboard;
+
+/**
+ * A Keyboard nobody types on, for running headless.
+ */
+public class NullKeyboard implements Keyboard {
+
+	@Override
+	public int keyboardPeek() {
+		return 0;
+	}
+
+	@Override
+	public int keyboardNext() {
+		return 0;
+	}
+
+	@Override
+	public int modifierKeys() {
+		return 0;
+	}
+
+	@Override
+	public void keyTyped(KeyEvent event) {}
+
+	@Override
+	public void keyPressed(KeyEvent event) {}
+
+	@Override
+	public void keyReleased(KeyEvent event) {}
+}
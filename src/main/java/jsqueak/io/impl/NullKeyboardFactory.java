@@ -0,0 +1,14 @@
+package jsqueak.io.impl;
+
+import jsqueak.io.Keyboard;
+import jsqueak.io.KeyboardFactory;
+import jsqueak.vm.SqueakVM;
+
+public class NullKeyboardFactory implements KeyboardFactory {
+
+	@Override
+	public Keyboard createKeyboard(SqueakVM vmSema) {
+		return new NullKeyboard();
+	}
+
+}
@@ -0,0 +1,27 @@
+package jsqueak.monitor;
+
+import java.io.PrintStream;
+
+/**
+ * A Monitor for running without a window: logs to a stream, or nowhere
+ * if the stream is null.
+ */
+public class LogMonitor implements Monitor {
+	private final PrintStream log;
+
+	public LogMonitor(PrintStream log) {
+		this.log = log;
+	}
+
+	@Override
+	public void logMessage(String message) {
+		if (log != null)
+			log.println(message);
+	}
+
+	@Override
+	public void setStatus(String status) {
+		if (log != null)
+			log.println("Status: " + status);
+	}
+}
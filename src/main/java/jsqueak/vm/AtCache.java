@@ -49,6 +49,22 @@ public class AtCache {
 	    }
 	}
 	
+	/**
+	 * Clear the entries for objects become changed, or changed the class of
+	 * (the class decided whether at: could be cached). 
+	 */
+	void flushAtCacheForBecome(BecomeCheck check) {
+	    for(int i= 0; i<atCacheSize; i++) {
+	        flushIfInvolved(atCache[i], check);
+	        flushIfInvolved(atPutCache[i], check);
+	    }
+	}
+	
+	private static void flushIfInvolved(AtCacheInfo info, BecomeCheck check) {
+	    if (info.array != null && (check.involves(info.array) || check.involves(info.array.getSqClass())))
+	        info.array= null;
+	}
+	
 	AtCacheInfo makeCacheInfo(AtCacheInfo[] atOrPutCache, Object atOrPutSelector, SqueakObject array, boolean convertChars, boolean includeInstVars) {
 	    // Make up an info object and store it in the atCache or the atPutCache.
 	    // If it's not cacheable (not a non-super send of at: or at:put:)
@@ -0,0 +1,58 @@
+package jsqueak.vm;
+
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.Set;
+
+import jsqueak.Squeak;
+
+/**
+ * Tells which cached lookups and objects a become affected, so the VM
+ * flushes just those (see SqueakVM.flushCachesForBecome()).  The objects
+ * involved are the ones replaced and the ones put in their place.  A
+ * lookup is affected if its selector, its method or anything it went
+ * through is: a class on the superclass chain, its method dictionary or
+ * the dictionary's method array.
+ */
+final class BecomeCheck {
+	private final Set<Object> involved= Collections.newSetFromMap(new IdentityHashMap<Object, Boolean>());
+	private final Map<SqueakObject, Boolean> chains= new IdentityHashMap<SqueakObject, Boolean>();
+	private final SqueakObject nilObj;
+
+	BecomeCheck(Map<SqueakObject, Object> mutations, SqueakObject nilObj) {
+		involved.addAll(mutations.keySet());
+		involved.addAll(mutations.values());
+		this.nilObj= nilObj;
+	}
+
+	boolean involves(Object obj) {
+		return involved.contains(obj);
+	}
+
+	boolean affectsLookup(SqueakObject lookupClass, SqueakObject selector, SqueakObject method) {
+		return involves(selector) || involves(method) || affectsChain(lookupClass);
+	}
+
+	/** Whether become touched cls, its method dictionary or anything of its superclasses'; remembered per class. */
+	private boolean affectsChain(SqueakObject cls) {
+		if (cls == null || cls == nilObj)
+			return false;
+		Boolean known= chains.get(cls);
+		if (known != null)
+			return known.booleanValue();
+		boolean affected= involves(cls);
+		if (!affected) {
+			Object mDict= cls.getPointer(Squeak.CLASS_MDICT);
+			affected= involves(mDict)
+					|| mDict instanceof SqueakObject && ((SqueakObject) mDict).pointersSize() > Squeak.MethodDict_array
+						&& involves(((SqueakObject) mDict).getPointer(Squeak.MethodDict_array));
+		}
+		if (!affected) {
+			Object superclass= cls.getPointer(Squeak.CLASS_SUPERCLASS);
+			affected= superclass instanceof SqueakObject && affectsChain((SqueakObject) superclass);
+		}
+		chains.put(cls, Boolean.valueOf(affected));
+		return affected;
+	}
+}
@@ -0,0 +1,12 @@
+package jsqueak.vm;
+
+/**
+ * Where the body of an object loaded lazily comes from: an image read in
+ * that mode makes every object with its class, format and hash, and
+ * leaves its pointers and bits in the mapped file until the VM first uses
+ * them (see SqueakObject.materialize()).
+ */
+public interface BodySource {
+	/** Gives obj its pointers and bits, from the record its snapshotOop locates. */
+	void materialize(SqueakObject obj);
+}
@@ -0,0 +1,93 @@
+package jsqueak.vm;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Counts which DecodedMethod opcodes, and which straight-line pairs and
+ * triples of them, the threaded-code loop executes, so the
+ * superinstructions of DecodedMethod can be picked from data.
+ *
+ * Only sequences that fall through from one instruction to the next in
+ * the same context are counted, since only those can be fused; a taken
+ * jump, a send or a return starts a new sequence.
+ */
+final class BytecodeProfile {
+	private static final int OPCODES= 256;
+
+	private final long[] singles= new long[OPCODES];
+	private final long[] pairs= new long[OPCODES*OPCODES];
+	private final Map<Integer,long[]> triples= new HashMap<Integer,long[]>();
+	private long total;
+
+	private SqueakObject lastContext;
+	private int nextIp= -1;  // where the current sequence continues
+	private int length;      // of the current sequence, up to 2
+	private int prevOpcode;
+	private int prevPrevOpcode;
+
+	void record(SqueakObject context, int ip, int opcode, int lastByte) {
+		total++;
+		singles[opcode]++;
+		if (context != lastContext || ip != nextIp)
+			length= 0;
+		if (length >= 1)
+			pairs[prevOpcode*OPCODES+opcode]++;
+		if (length >= 2) {
+			Integer key= Integer.valueOf((prevPrevOpcode<<16) | (prevOpcode<<8) | opcode);
+			long[] count= triples.get(key);
+			if (count == null)
+				triples.put(key,count= new long[1]);
+			count[0]++;
+		}
+		prevPrevOpcode= prevOpcode;
+		prevOpcode= opcode;
+		if (length < 2)
+			length++;
+		lastContext= context;
+		nextIp= lastByte+1;
+	}
+
+	/** The top entries of each table, most frequent first. */
+	String report(int top) {
+		StringBuilder out= new StringBuilder();
+		out.append("Executed instructions: ").append(total).append('\n');
+		List<long[]> entries= new ArrayList<long[]>();
+		for (int i= 0; i<OPCODES; i++)
+			if (singles[i] > 0)
+				entries.add(new long[] {singles[i], i});
+		appendTable(out, "Opcodes", entries, 1, top);
+		entries.clear();
+		for (int i= 0; i<pairs.length; i++)
+			if (pairs[i] > 0)
+				entries.add(new long[] {pairs[i], i/OPCODES, i%OPCODES});
+		appendTable(out, "Pairs", entries, 2, top);
+		entries.clear();
+		for (Map.Entry<Integer,long[]> each : triples.entrySet()) {
+			int key= each.getKey().intValue();
+			entries.add(new long[] {each.getValue()[0], key>>16, (key>>8)&0xFF, key&0xFF});
+		}
+		appendTable(out, "Triples", entries, 3, top);
+		return out.toString();
+	}
+
+	private void appendTable(StringBuilder out, String title, List<long[]> entries, int width, int top) {
+		Collections.sort(entries, new Comparator<long[]>() {
+			public int compare(long[] a, long[] b) {
+				return a[0] < b[0] ? 1 : a[0] > b[0] ? -1 : 0;
+			}
+		});
+		out.append(title).append(":\n");
+		for (int i= 0; i<entries.size() && i<top; i++) {
+			long[] entry= entries.get(i);
+			out.append(String.format("%12d %5.2f%% ", entry[0], total == 0 ? 0.0 : entry[0]*100.0/total));
+			for (int j= 1; j<=width; j++)
+				out.append(' ').append(DecodedMethod.opcodeName((int) entry[j]));
+			out.append('\n');
+		}
+	}
+}
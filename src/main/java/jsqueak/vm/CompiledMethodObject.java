@@ -0,0 +1,52 @@
+package jsqueak.vm;
+
+import jsqueak.image.SqueakImage;
+
+/**
+ * A CompiledMethod (formats 12-15): the one variant of SqueakObject that
+ * caches a translation for the threaded-code loop, so other objects do
+ * not carry the field.  SqueakObject's factories and copies make methods
+ * as this class (see SqueakObject.instantiate(), read() and ofFormat()).
+ */
+public class CompiledMethodObject extends SqueakObject {
+	DecodedMethod decodedMethod; // cached translation, see SqueakVM.decodedMethodFor()
+
+	CompiledMethodObject(Integer squeakClass, int fmt, int hsh, int[] imageData) {
+		super(squeakClass, fmt, hsh, imageData);
+	}
+
+	CompiledMethodObject() {
+	}
+
+	CompiledMethodObject(SqueakImage img) {
+		super(img);
+	}
+
+	CompiledMethodObject(SqueakObject template, SqueakObject symbolClass) {
+		super(template, symbolClass);
+	}
+
+	CompiledMethodObject(SqueakImage img, SqueakObject squeakClass, int indexableSize, SqueakObject filler) {
+		super(img, squeakClass, indexableSize, filler);
+	}
+
+	public boolean isTranslated() {
+		return decodedMethod != null;
+	}
+
+	public void reload(SqueakObject changed) {
+		super.reload(changed);
+		dropTranslation();
+	}
+
+	/**
+	 * Forgets the translation and its compiled code, if any, so the next
+	 * activation translates the method as it is now.  Activations running
+	 * the compiled code go on in it; it is not entered again.
+	 */
+	void dropTranslation() {
+		if (decodedMethod != null)
+			decodedMethod.jvmCode = null;
+		decodedMethod = null;
+	}
+}
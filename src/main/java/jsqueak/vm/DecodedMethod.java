@@ -0,0 +1,264 @@
+package jsqueak.vm;
+
+import jsqueak.Squeak;
+
+/**
+ * A CompiledMethod translated once into pre-decoded instructions for the
+ * threaded-code interpreter loop (see SqueakVM.runDecoded()).
+ *
+ * The tables are indexed by byte pc, so contexts, blockCopy and the
+ * compare-and-branch peek in pushBoolAndPeek keep working on plain byte
+ * offsets.  Every byte position is decoded, not just instruction starts,
+ * so any pc the image may store in a context can be resumed.
+ *
+ * For the instruction starting at byte i:
+ *   opcodes[i]  is one of the opcodes below
+ *   operands[i] is a field or temp index, an arg count or an absolute jump
+ *               target
+ *   literals[i] is the resolved literal, association or constant, or the
+ *               InlineCache of a send site
+ *   lastBytes[i] is the pc of its last byte, i.e. the pc after fetching it
+ *
+ * superOpcodes[i] is what the loop actually dispatches on: opcodes[i], or
+ * a superinstruction standing for the sequence that starts at i.  A
+ * superinstruction keeps the tables of its first instruction, and the
+ * instructions it covers stay decoded at their own pcs, so jumping into
+ * the middle of a sequence or falling back to the first instruction
+ * alone both work.  The push-push-special superinstructions note the pc
+ * of their special selector in superOperands[i]; when the operands are
+ * SmallIntegers the loop also takes a following storePopTemp or
+ * conditional jump along (see SqueakVM.fusedSpecial()).  Sequences were
+ * picked with SqueakVM.setBytecodeProfiling().
+ */
+final class DecodedMethod {
+
+	static final int PUSH_RCVR_VAR= 0;
+	static final int PUSH_TEMP= 1;
+	static final int PUSH_CONST= 2;
+	static final int PUSH_LIT_VAR= 3;
+	static final int PUSH_LIT_KEY= 4;
+	static final int PUSH_RCVR= 5;
+	static final int PUSH_THIS_CONTEXT= 6;
+	static final int DUP= 7;
+	static final int POP= 8;
+	static final int STORE_RCVR_VAR= 9;
+	static final int STORE_TEMP= 10;
+	static final int STORE_LIT_VAR= 11;
+	static final int STORE_LIT_KEY= 12;
+	static final int STORE_POP_RCVR_VAR= 13;
+	static final int STORE_POP_TEMP= 14;
+	static final int STORE_POP_LIT_VAR= 15;
+	static final int RETURN_RCVR= 16;
+	static final int RETURN_CONST= 17;
+	static final int RETURN_TOP= 18;
+	static final int BLOCK_RETURN_TOP= 19;
+	static final int JUMP= 20;
+	static final int JUMP_BACK= 21;
+	static final int JUMP_IF_TRUE= 22;
+	static final int JUMP_IF_FALSE= 23;
+	static final int SEND= 24;
+	static final int SUPER_SEND= 25;
+	static final int NONO= 26;
+	// Superinstructions, only found in superOpcodes
+	static final int PUSH_TEMP_CONST_SPECIAL= 27;
+	static final int PUSH_TEMP_TEMP_SPECIAL= 28;
+	static final int PUSH_RCVR_CONST_SPECIAL= 29;
+	static final int PUSH_RCVR_VAR_RETURN= 30;
+	// Bytecodes 176-207 (arithmetic and other special selectors) are their own opcodes
+
+	private static final String[] NAMES= {
+		"pushRcvrVar", "pushTemp", "pushConst", "pushLitVar", "pushLitKey", "pushRcvr",
+		"pushThisContext", "dup", "pop", "storeRcvrVar", "storeTemp", "storeLitVar",
+		"storeLitKey", "storePopRcvrVar", "storePopTemp", "storePopLitVar", "returnRcvr",
+		"returnConst", "returnTop", "blockReturnTop", "jump", "jumpBack", "jumpIfTrue",
+		"jumpIfFalse", "send", "superSend", "nono", "pushTempConstSpecial",
+		"pushTempTempSpecial", "pushRcvrConstSpecial", "pushRcvrVarReturn" };
+	private static final String[] SPECIAL_NAMES= {
+		"+", "-", "<", ">", "<=", ">=", "=", "~=", "*", "/", "\\\\", "@", "bitShift:", "//",
+		"bitAnd:", "bitOr:", "at:", "at:put:", "size", "next", "nextPut:", "atEnd", "==",
+		"class", "blockCopy:", "value", "value:", "do:", "new", "new:", "x", "y" };
+
+	final SqueakObject method;
+	final byte[] bytes;
+	// from the method header, which the send path would otherwise decode on every activation
+	final int tempCount;
+	final boolean largeFrame;
+	final int[] opcodes;
+	final int[] operands;
+	final Object[] literals;
+	final int[] lastBytes;
+	final int[] superOpcodes;
+	final int[] superOperands; // null without superinstructions
+	// stores into receiver variables, which compiled code makes without SqueakObject.setPointer()
+	final boolean storesFields;
+	// SqueakVM.translationEpoch when this was built; stale once the VM clears its caches
+	final int epoch;
+	int hotness;     // activations and backward jumps, counted in tiered mode
+	JvmCode jvmCode; // set once compiled by JvmCompiler
+
+	DecodedMethod(SqueakVM vm, SqueakObject method, int epoch) {
+		this.method= method;
+		this.epoch= epoch;
+		bytes= method.getBitsAsMethodBytes();
+		tempCount= method.methodTempCount();
+		largeFrame= method.methodNeedsLargeFrame();
+		int n= bytes.length;
+		opcodes= new int[n];
+		operands= new int[n];
+		literals= new Object[n];
+		lastBytes= new int[n];
+		boolean stores= false;
+		for (int i= 0; i<n; i++) {
+			decodeAt(vm, i);
+			stores|= opcodes[i] == STORE_RCVR_VAR || opcodes[i] == STORE_POP_RCVR_VAR;
+		}
+		storesFields= stores;
+		if (vm.fusesInstructions()) {
+			superOpcodes= opcodes.clone();
+			superOperands= new int[n];
+			for (int i= 0; i<n; i++)
+				fuseAt(i);
+		} else {
+			superOpcodes= opcodes;
+			superOperands= null;
+		}
+	}
+
+	/** A readable name of an opcode, for profiles. */
+	static String opcodeName(int opcode) {
+		if (opcode < NAMES.length)
+			return NAMES[opcode];
+		if (opcode >= 176 && opcode < 208)
+			return "#" + SPECIAL_NAMES[opcode-176];
+		return String.valueOf(opcode);
+	}
+
+	private int byteAt(int index) {
+		return bytes[index] & 0xff;
+	}
+
+	private void set(int pc, int opcode, int operand, Object literal, int length) {
+		if (pc+length > bytes.length) {
+			// instruction runs off the end (trailer bytes); never executed
+			opcode= NONO;
+			length= 1;
+		}
+		opcodes[pc]= opcode;
+		operands[pc]= operand;
+		literals[pc]= literal;
+		lastBytes[pc]= pc+length-1;
+	}
+
+	private Object literal(int zeroBasedIndex) {
+		if (1+zeroBasedIndex >= method.pointersSize())
+			return null; // bad index; only reachable from trailer bytes
+		return method.methodGetLiteral(zeroBasedIndex);
+	}
+
+	private void sendSite(int pc, Object selector, int argCount, boolean isSuper, int length) {
+		if (!(selector instanceof SqueakObject)) {
+			set(pc,NONO,0,null,1); // not a selector; only reachable from trailer bytes
+			return;
+		}
+		InlineCache cache= new InlineCache((SqueakObject) selector, argCount, isSuper);
+		set(pc,isSuper ? SUPER_SEND : SEND,argCount,cache,length);
+	}
+
+	private void decodeAt(SqueakVM vm, int pc) {
+		int b= byteAt(pc);
+		int b2= pc+1 < bytes.length ? byteAt(pc+1) : 0;
+		int b3= pc+2 < bytes.length ? byteAt(pc+2) : 0;
+		if (b<16) { set(pc,PUSH_RCVR_VAR,b&0xF,null,1); return; }
+		if (b<32) { set(pc,PUSH_TEMP,Squeak.CONTEXT_TEMP_FRAME_START+(b&0xF),null,1); return; }
+		if (b<64) { set(pc,PUSH_CONST,0,literal(b&0x1F),1); return; }
+		if (b<96) { set(pc,PUSH_LIT_VAR,0,literal(b&0x1F),1); return; }
+		if (b<104) { set(pc,STORE_POP_RCVR_VAR,b&7,null,1); return; }
+		if (b<112) { set(pc,STORE_POP_TEMP,Squeak.CONTEXT_TEMP_FRAME_START+(b&7),null,1); return; }
+		if (b>=176 && b<208) { set(pc,b,0,null,1); return; }
+		if (b>=208) { sendSite(pc,literal(b&0xF),(b>>4)-13,false,1); return; }
+		if (b>=144 && b<152) { set(pc,JUMP,pc+(b&7)+1,null,1); return; }
+		if (b>=152 && b<160) { set(pc,JUMP_IF_FALSE,pc+(b&7)+1,null,1); return; }
+		if (b>=160 && b<168) {
+			set(pc,(b&7)<4 ? JUMP_BACK : JUMP,pc+1+(((b&7)-4)*256 + b2),null,2); return; }
+		if (b>=168 && b<172) { set(pc,JUMP_IF_TRUE,pc+1+(b&3)*256 + b2,null,2); return; }
+		if (b>=172 && b<176) { set(pc,JUMP_IF_FALSE,pc+1+(b&3)*256 + b2,null,2); return; }
+		switch (b) {
+			case 112: set(pc,PUSH_RCVR,0,null,1); return;
+			case 113: set(pc,PUSH_CONST,0,vm.getTrueObj(),1); return;
+			case 114: set(pc,PUSH_CONST,0,vm.getFalseObj(),1); return;
+			case 115: set(pc,PUSH_CONST,0,vm.nilObj,1); return;
+			case 116: case 117: case 118: case 119:
+				set(pc,PUSH_CONST,0,SqueakVM.smallFromInt(b-117),1); return;
+			case 120: set(pc,RETURN_RCVR,0,null,1); return;
+			case 121: set(pc,RETURN_CONST,0,vm.getTrueObj(),1); return;
+			case 122: set(pc,RETURN_CONST,0,vm.getFalseObj(),1); return;
+			case 123: set(pc,RETURN_CONST,0,vm.nilObj,1); return;
+			case 124: set(pc,RETURN_TOP,0,null,1); return;
+			case 125: set(pc,BLOCK_RETURN_TOP,0,null,1); return;
+			case 128: decodeExtended(pc,b2,PUSH_RCVR_VAR,PUSH_TEMP,PUSH_CONST,PUSH_LIT_VAR); return;
+			case 129: decodeExtended(pc,b2,STORE_RCVR_VAR,STORE_TEMP,NONO,STORE_LIT_VAR); return;
+			case 130: decodeExtended(pc,b2,STORE_POP_RCVR_VAR,STORE_POP_TEMP,NONO,STORE_POP_LIT_VAR); return;
+			case 131: sendSite(pc,literal(b2&31),b2>>5,false,2); return;
+			case 132: decodeDoubleExtended(pc,b2,b3); return;
+			case 133: sendSite(pc,literal(b2&31),b2>>5,true,2); return;
+			case 134: sendSite(pc,literal(b2&63),b2>>6,false,2); return;
+			case 135: set(pc,POP,0,null,1); return;
+			case 136: set(pc,DUP,0,null,1); return;
+			case 137: set(pc,PUSH_THIS_CONTEXT,0,null,1); return;
+			default: set(pc,NONO,0,null,1); // 126, 127, 138-143
+		}
+	}
+
+	private int opcodeAfter(int pc) {
+		int next= lastBytes[pc]+1;
+		return next < opcodes.length ? opcodes[next] : NONO;
+	}
+
+	private static boolean isFusedSpecial(int opcode) {
+		// + - < > <= >= = ~= bitAnd: bitOr:
+		return opcode >= 176 && opcode <= 183 || opcode == 190 || opcode == 191;
+	}
+
+	private void fuseAt(int pc) {
+		int first= opcodes[pc];
+		int second= opcodeAfter(pc);
+		if (first == PUSH_RCVR_VAR && second == RETURN_TOP) {
+			superOpcodes[pc]= PUSH_RCVR_VAR_RETURN;
+			return;
+		}
+		if (second != PUSH_CONST && second != PUSH_TEMP || !isFusedSpecial(opcodeAfter(lastBytes[pc]+1)))
+			return;
+		int fused;
+		if (first == PUSH_TEMP)
+			fused= second == PUSH_CONST ? PUSH_TEMP_CONST_SPECIAL : PUSH_TEMP_TEMP_SPECIAL;
+		else if (first == PUSH_RCVR && second == PUSH_CONST)
+			fused= PUSH_RCVR_CONST_SPECIAL;
+		else
+			return;
+		superOpcodes[pc]= fused;
+		superOperands[pc]= lastBytes[lastBytes[pc]+1]+1;
+	}
+
+	private void decodeExtended(int pc, int b2, int rcvrOp, int tempOp, int litOp, int litVarOp) {
+		int lobits= b2&63;
+		switch (b2>>6) {
+			case 0: set(pc,rcvrOp,lobits,null,2); break;
+			case 1: set(pc,tempOp,Squeak.CONTEXT_TEMP_FRAME_START+lobits,null,2); break;
+			case 2: set(pc,litOp,0,literal(lobits),2); break;
+			case 3: set(pc,litVarOp,0,literal(lobits),2); break;
+		}
+	}
+
+	private void decodeDoubleExtended(int pc, int b2, int b3) {
+		switch (b2>>5) {
+			case 0: sendSite(pc,literal(b3),b2&31,false,3); break;
+			case 1: sendSite(pc,literal(b3),b2&31,true,3); break;
+			case 2: set(pc,PUSH_RCVR_VAR,b3,null,3); break;
+			case 3: set(pc,PUSH_CONST,0,literal(b3),3); break;
+			case 4: set(pc,PUSH_LIT_KEY,0,literal(b3),3); break;
+			case 5: set(pc,STORE_RCVR_VAR,b3,null,3); break;
+			case 6: set(pc,STORE_POP_RCVR_VAR,b3,null,3); break;
+			case 7: set(pc,STORE_LIT_KEY,0,literal(b3),3); break;
+		}
+	}
+}
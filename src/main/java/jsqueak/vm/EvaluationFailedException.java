@@ -0,0 +1,13 @@
+package jsqueak.vm;
+
+/**
+ * Thrown by SqueakVM.perform() and evaluate() when the send cannot
+ * complete.
+ */
+public class EvaluationFailedException extends RuntimeException {
+	private static final long serialVersionUID = 1L;
+
+	public EvaluationFailedException(String message) {
+		super(message);
+	}
+}
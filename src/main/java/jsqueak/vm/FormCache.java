@@ -37,13 +37,14 @@ public class FormCache {
 	}
 
 	public boolean loadFrom(Object aForm) {
-		// We do not reload if this is the same form as before
-		if (getSqueakForm() == aForm)
+		// We do not reload if this is the same form as before, on the same bits
+		if (getSqueakForm() == aForm && getSqueakForm().getPointer(0) instanceof SqueakObject
+				&& ((SqueakObject) getSqueakForm().getPointer(0)).getBits() == getBits())
 			return true;
 		squeakForm = null; // Marks this as failed until very end...
 		if (SqueakVM.isSmallInt(aForm))
 			return false;
-		Object[] formPointers = ((SqueakObject) aForm).pointers;
+		Object[] formPointers = ((SqueakObject) aForm).getPointers();
 		if (formPointers == null || formPointers.length < 4)
 			return false;
 		for (int i = 1; i < 4; i++)
@@ -0,0 +1,61 @@
+package jsqueak.vm;
+
+/**
+ * The lookup cache of a single send site in a DecodedMethod.
+ *
+ * A site starts empty, becomes monomorphic on its first lookup and
+ * polymorphic as further receiver classes show up.  Once more than
+ * MAX_CLASSES classes have been seen it is megamorphic and sends from it
+ * go through the global MethodCache again.
+ *
+ * Entries are only valid for the epoch of SqueakVM's inline caches when
+ * they were filled; flushing a method or selector (prims 116/119) bumps
+ * that epoch and every site empties itself on its next send.
+ */
+final class InlineCache {
+	static final int MAX_CLASSES= 4;
+
+	final SqueakObject selector;
+	final int argCount;
+	final boolean isSuper;
+	final SqueakObject[] classes= new SqueakObject[MAX_CLASSES];
+	final SqueakObject[] methods= new SqueakObject[MAX_CLASSES];
+	final int[] primIndexes= new int[MAX_CLASSES];
+	int size;
+	boolean megamorphic;
+	int epoch;
+
+	InlineCache(SqueakObject selector, int argCount, boolean isSuper) {
+		this.selector= selector;
+		this.argCount= argCount;
+		this.isSuper= isSuper;
+	}
+
+	int indexOf(SqueakObject lookupClass) {
+		for (int i= 0; i<size; i++)
+			if (classes[i] == lookupClass)
+				return i;
+		return -1;
+	}
+
+	void add(SqueakObject lookupClass, SqueakObject method, int primIndex) {
+		if (size == MAX_CLASSES) {
+			megamorphic= true;
+			return;
+		}
+		classes[size]= lookupClass;
+		methods[size]= method;
+		primIndexes[size]= primIndex;
+		size++;
+	}
+
+	void flush(int newEpoch) {
+		for (int i= 0; i<size; i++) {
+			classes[i]= null;
+			methods[i]= null;
+		}
+		size= 0;
+		megamorphic= false;
+		epoch= newEpoch;
+	}
+}
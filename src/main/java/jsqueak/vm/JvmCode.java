@@ -0,0 +1,173 @@
+package jsqueak.vm;
+
+/**
+ * Superclass of the JVM classes JvmCompiler generates for hot methods.
+ *
+ * Generated code keeps the Squeak stack in the active context and the
+ * stack pointer in a local, so the context is always up to date when it
+ * leaves: it runs from the instruction at entryPc until it reaches one it
+ * does not handle (a send, a return, thisContext, a failed arithmetic
+ * special ...) and hands that instruction back to the interpreter with
+ * exit().  This makes every such instruction a deoptimization point.
+ *
+ * Generated classes live in their own class loader, so everything they
+ * use from here is protected.
+ */
+public abstract class JvmCode {
+	protected final Object[] literals; // DecodedMethod.literals of the method
+	protected final Object trueObj;
+	protected final Object falseObj;
+	private final SqueakVM vm;
+
+	protected JvmCode(SqueakVM vm, Object[] literals) {
+		this.vm= vm;
+		this.literals= literals;
+		this.trueObj= vm.getTrueObj();
+		this.falseObj= vm.getFalseObj();
+	}
+
+	/**
+	 * Runs the method starting at the instruction at entryPc.  Returns
+	 * without touching the VM if entryPc is not the start of an instruction.
+	 */
+	protected abstract void run(Object receiver, Object[] fields, Object[] stack, Object[] temps,
+			int sp, int entryPc);
+
+	/** Leaves compiled code; the interpreter continues after pc. */
+	protected final void exit(int pc, int sp) {
+		vm.resumeAt(pc, sp);
+	}
+
+	/**
+	 * Interrupt check on backward jumps.  Answers false if it switched
+	 * processes, in which case the compiled code must return at once.
+	 */
+	protected final boolean checkInterrupts(int pc, int sp) {
+		if (!vm.isInterruptCheckNeeded())
+			return true;
+		SqueakObject context= vm.getActiveContext();
+		vm.resumeAt(pc, sp);
+		vm.checkForInterrupts();
+		return vm.getActiveContext() == context;
+	}
+
+	/**
+	 * at:, at:put: and size through the interpreter's quick primitives,
+	 * which only work on the stack.  Answers the new sp, or -1 if the
+	 * selector has to be sent.
+	 */
+	protected final int quickSend(int lobits, int sp) {
+		vm.resumeAt(vm.getPc(), sp);
+		if (!vm.primHandler.quickSendOther(null, lobits))
+			return -1;
+		return vm.getSp();
+	}
+
+	protected final Object bool(int flag) {
+		return flag != 0 ? trueObj : falseObj;
+	}
+
+	protected final Object classOf(Object obj) {
+		return vm.getClass(obj);
+	}
+
+	// SmallInteger specials; null (or -1 for comparisons) means the
+	// interpreter has to send the selector.
+
+	protected static Object plus(Object a, Object b) {
+		if (a instanceof Integer && b instanceof Integer)
+			return SqueakVM.smallFromInt(((Integer) a).intValue() + ((Integer) b).intValue());
+		return null;
+	}
+
+	protected static Object minus(Object a, Object b) {
+		if (a instanceof Integer && b instanceof Integer)
+			return SqueakVM.smallFromInt(((Integer) a).intValue() - ((Integer) b).intValue());
+		return null;
+	}
+
+	protected static Object times(Object a, Object b) {
+		if (a instanceof Integer && b instanceof Integer)
+			return SqueakVM.smallFromInt(SqueakMath.safeMultiply(((Integer) a).intValue(), ((Integer) b).intValue()));
+		return null;
+	}
+
+	protected static Object divide(Object a, Object b) {
+		if (a instanceof Integer && b instanceof Integer)
+			return SqueakVM.smallFromInt(SqueakMath.quickDivide(((Integer) a).intValue(), ((Integer) b).intValue()));
+		return null;
+	}
+
+	protected static Object mod(Object a, Object b) {
+		if (a instanceof Integer && b instanceof Integer)
+			return SqueakVM.smallFromInt(SqueakMath.mod(((Integer) a).intValue(), ((Integer) b).intValue()));
+		return null;
+	}
+
+	protected static Object div(Object a, Object b) {
+		if (a instanceof Integer && b instanceof Integer)
+			return SqueakVM.smallFromInt(SqueakMath.div(((Integer) a).intValue(), ((Integer) b).intValue()));
+		return null;
+	}
+
+	protected static Object bitShift(Object a, Object b) {
+		if (a instanceof Integer && b instanceof Integer)
+			return SqueakVM.smallFromInt(SqueakMath.safeShift(((Integer) a).intValue(), ((Integer) b).intValue()));
+		return null;
+	}
+
+	protected static Object bitAnd(Object a, Object b) {
+		if (a instanceof Integer && b instanceof Integer)
+			return SqueakVM.smallFromInt(((Integer) a).intValue() & ((Integer) b).intValue());
+		return null;
+	}
+
+	protected static Object bitOr(Object a, Object b) {
+		if (a instanceof Integer && b instanceof Integer)
+			return SqueakVM.smallFromInt(((Integer) a).intValue() | ((Integer) b).intValue());
+		return null;
+	}
+
+	protected static int lessThan(Object a, Object b) {
+		if (a instanceof Integer && b instanceof Integer)
+			return ((Integer) a).intValue() < ((Integer) b).intValue() ? 1 : 0;
+		return -1;
+	}
+
+	protected static int greaterThan(Object a, Object b) {
+		if (a instanceof Integer && b instanceof Integer)
+			return ((Integer) a).intValue() > ((Integer) b).intValue() ? 1 : 0;
+		return -1;
+	}
+
+	protected static int lessOrEqual(Object a, Object b) {
+		if (a instanceof Integer && b instanceof Integer)
+			return ((Integer) a).intValue() <= ((Integer) b).intValue() ? 1 : 0;
+		return -1;
+	}
+
+	protected static int greaterOrEqual(Object a, Object b) {
+		if (a instanceof Integer && b instanceof Integer)
+			return ((Integer) a).intValue() >= ((Integer) b).intValue() ? 1 : 0;
+		return -1;
+	}
+
+	protected static int equal(Object a, Object b) {
+		if (a instanceof Integer && b instanceof Integer)
+			return ((Integer) a).intValue() == ((Integer) b).intValue() ? 1 : 0;
+		return -1;
+	}
+
+	protected static int notEqual(Object a, Object b) {
+		if (a instanceof Integer && b instanceof Integer)
+			return ((Integer) a).intValue() != ((Integer) b).intValue() ? 1 : 0;
+		return -1;
+	}
+
+	protected static int identical(Object a, Object b) {
+		// == must work for uninterned small ints
+		if (a instanceof Integer && b instanceof Integer)
+			return ((Integer) a).intValue() == ((Integer) b).intValue() ? 1 : 0;
+		return a == b ? 1 : 0;
+	}
+}
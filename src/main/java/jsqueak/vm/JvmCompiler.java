@@ -0,0 +1,561 @@
+package jsqueak.vm;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Translates the DecodedMethod of a hot method into a JvmCode subclass.
+ *
+ * Pushes, stores, jumps and the SmallInteger specials 176-191 (except @)
+ * plus == and class become straight JVM code; at:, at:put: and size call
+ * the quick primitives.  Comparisons followed by a
+ * conditional jump branch directly.  Every other instruction exits to the
+ * interpreter, see JvmCode.
+ *
+ * The class file is written by hand (version 49, so the JVM verifies it by
+ * type inference and no stack maps are needed) and defined in a class
+ * loader of its own, so it is unloaded with its DecodedMethod.
+ */
+final class JvmCompiler {
+	static final int MAX_METHOD_BYTES= 600; // keeps branch offsets within 16 bits
+
+	private static final String BASE= "jsqueak/vm/JvmCode";
+	private static final String NAME= "jsqueak/vm/JvmCompiledMethod";
+	private static final String OBJECT_2_OBJECT= "(Ljava/lang/Object;Ljava/lang/Object;)Ljava/lang/Object;";
+	private static final String OBJECT_2_INT= "(Ljava/lang/Object;Ljava/lang/Object;)I";
+	private static final String RUN_DESC=
+			"(Ljava/lang/Object;[Ljava/lang/Object;[Ljava/lang/Object;[Ljava/lang/Object;II)V";
+
+	// locals of run()
+	private static final int RECEIVER= 1, FIELDS= 2, STACK= 3, TEMPS= 4, SP= 5, ENTRY= 6, VALUE= 7, FLAG= 8;
+
+	// JVM opcodes
+	private static final int ICONST_0= 0x03, BIPUSH= 0x10, SIPUSH= 0x11, ILOAD= 0x15, ALOAD= 0x19,
+			ALOAD_0= 0x2a, AALOAD= 0x32, ISTORE= 0x36, ASTORE= 0x3a, AASTORE= 0x53, POP= 0x57, DUP= 0x59,
+			ISUB= 0x64, IINC= 0x84, IFEQ= 0x99, IFNE= 0x9a, IFGE= 0x9c, IF_ACMPEQ= 0xa5, GOTO= 0xa7,
+			TABLESWITCH= 0xaa, RETURN= 0xb1, GETFIELD= 0xb4, INVOKEVIRTUAL= 0xb6, INVOKESPECIAL= 0xb7,
+			INVOKESTATIC= 0xb8, CHECKCAST= 0xc0, IFNONNULL= 0xc7;
+
+	private final DecodedMethod code;
+	private final int n;
+	private final boolean[] starts;
+
+	private final ByteArrayOutputStream pool= new ByteArrayOutputStream();
+	private final DataOutputStream poolOut= new DataOutputStream(pool);
+	private final Map<String, Integer> poolIndex= new HashMap<String, Integer>();
+	private int poolCount= 1;
+
+	private byte[] bytes= new byte[1024];
+	private int length;
+	private int[] labels= new int[64];
+	private int labelCount;
+	private int[] fixups= new int[256]; // triples: offset position, instruction position, label
+	private int fixupCount;
+
+	private JvmCompiler(DecodedMethod code) {
+		this.code= code;
+		n= code.opcodes.length;
+		starts= new boolean[n+1];
+	}
+
+	/**
+	 * Answers compiled code for the method, or null if it is too big or
+	 * its jumps don't land on instructions.
+	 */
+	static JvmCode compile(SqueakVM vm, DecodedMethod code) throws IOException {
+		if (code.opcodes.length > MAX_METHOD_BYTES)
+			return null;
+		byte[] classFile= new JvmCompiler(code).classFile();
+		if (classFile == null)
+			return null;
+		Class<?> cls= new Loader(JvmCompiler.class.getClassLoader()).define(classFile);
+		try {
+			return (JvmCode) cls.getConstructor(SqueakVM.class, Object[].class).newInstance(vm, code.literals);
+		} catch (ReflectiveOperationException e) {
+			throw new IOException(e);
+		}
+	}
+
+	private static final class Loader extends ClassLoader {
+		Loader(ClassLoader parent) {
+			super(parent);
+		}
+
+		Class<?> define(byte[] classFile) {
+			return defineClass(null, classFile, 0, classFile.length);
+		}
+	}
+
+	// ----- translation -----
+
+	private boolean findInstructions() {
+		for (int pc= 0; pc<n; pc= code.lastBytes[pc]+1)
+			starts[pc]= true;
+		starts[n]= true;
+		for (int pc= 0; pc<n; pc++)
+			if (starts[pc] && isJump(code.opcodes[pc]) && !isStart(code.operands[pc]+1))
+				return false;
+		return true;
+	}
+
+	private boolean isStart(int pc) {
+		return pc >= 0 && pc <= n && starts[pc];
+	}
+
+	private static boolean isJump(int opcode) {
+		return opcode == DecodedMethod.JUMP || opcode == DecodedMethod.JUMP_BACK
+				|| opcode == DecodedMethod.JUMP_IF_TRUE || opcode == DecodedMethod.JUMP_IF_FALSE;
+	}
+
+	private void translateRun() {
+		// labels 0..n are the instruction starts
+		for (int pc= 0; pc<=n; pc++)
+			newLabel();
+		int noEntry= newLabel();
+		emit(ILOAD, ENTRY);
+		int switchPos= length;
+		emit(TABLESWITCH);
+		while (length % 4 != 0)
+			emit(0);
+		branchTo32(switchPos, noEntry);
+		emitInt(0);
+		emitInt(n-1);
+		for (int pc= 0; pc<n; pc++)
+			branchTo32(switchPos, starts[pc] ? pc : noEntry);
+		mark(noEntry);
+		emit(RETURN);
+		for (int pc= 0; pc<n; pc= code.lastBytes[pc]+1) {
+			mark(pc);
+			translate(pc, code.lastBytes[pc]+1);
+		}
+		mark(n);
+		exitBefore(n);
+	}
+
+	private void translate(int pc, int next) {
+		int opcode= code.opcodes[pc];
+		int operand= code.operands[pc];
+		switch (opcode) {
+			case DecodedMethod.PUSH_RCVR_VAR: loadArray(FIELDS, operand); push(); break;
+			case DecodedMethod.PUSH_TEMP: loadArray(TEMPS, operand); push(); break;
+			case DecodedMethod.PUSH_CONST: loadLiteral(pc); push(); break;
+			case DecodedMethod.PUSH_LIT_VAR: loadAssociation(pc); getPointer(jsqueak.Squeak.Assn_value); push(); break;
+			case DecodedMethod.PUSH_LIT_KEY: loadAssociation(pc); getPointer(jsqueak.Squeak.Assn_key); push(); break;
+			case DecodedMethod.PUSH_RCVR: emit(ALOAD, RECEIVER); push(); break;
+			case DecodedMethod.DUP: loadTop(0); push(); break;
+			case DecodedMethod.POP: adjustSp(-1); break;
+
+			case DecodedMethod.STORE_RCVR_VAR: storeArray(FIELDS, operand); break;
+			case DecodedMethod.STORE_TEMP: storeArray(TEMPS, operand); break;
+			case DecodedMethod.STORE_LIT_VAR: storeAssociation(pc, jsqueak.Squeak.Assn_value); break;
+			case DecodedMethod.STORE_LIT_KEY: storeAssociation(pc, jsqueak.Squeak.Assn_key); break;
+			case DecodedMethod.STORE_POP_RCVR_VAR: storeArray(FIELDS, operand); adjustSp(-1); break;
+			case DecodedMethod.STORE_POP_TEMP: storeArray(TEMPS, operand); adjustSp(-1); break;
+			case DecodedMethod.STORE_POP_LIT_VAR: storeAssociation(pc, jsqueak.Squeak.Assn_value); adjustSp(-1); break;
+
+			case DecodedMethod.JUMP: branch(GOTO, operand+1); break;
+			case DecodedMethod.JUMP_BACK:
+				// pc is set to the target before the check, as in the interpreter
+				emit(ALOAD_0);
+				pushInt(operand);
+				emit(ILOAD, SP);
+				invoke(INVOKEVIRTUAL, BASE, "checkInterrupts", "(II)Z");
+				branch(IFNE, operand+1);
+				emit(RETURN);
+				break;
+			case DecodedMethod.JUMP_IF_TRUE: conditionalJump(pc, true, operand+1, next); break;
+			case DecodedMethod.JUMP_IF_FALSE: conditionalJump(pc, false, operand+1, next); break;
+
+			case 176: arithmetic(pc, "plus"); break;
+			case 177: arithmetic(pc, "minus"); break;
+			case 178: comparison(pc, next, "lessThan", true); break;
+			case 179: comparison(pc, next, "greaterThan", true); break;
+			case 180: comparison(pc, next, "lessOrEqual", true); break;
+			case 181: comparison(pc, next, "greaterOrEqual", true); break;
+			case 182: comparison(pc, next, "equal", true); break;
+			case 183: comparison(pc, next, "notEqual", true); break;
+			case 184: arithmetic(pc, "times"); break;
+			case 185: arithmetic(pc, "divide"); break;
+			case 186: arithmetic(pc, "mod"); break;
+			case 188: arithmetic(pc, "bitShift"); break;
+			case 189: arithmetic(pc, "div"); break;
+			case 190: arithmetic(pc, "bitAnd"); break;
+			case 191: arithmetic(pc, "bitOr"); break;
+			case 192: case 193: case 194: quickSend(pc, opcode&0xF); break;
+			case 198: comparison(pc, next, "identical", false); break;
+			case 199:
+				emit(ALOAD_0);
+				loadTop(0);
+				invoke(INVOKEVIRTUAL, BASE, "classOf", "(Ljava/lang/Object;)Ljava/lang/Object;");
+				storeTop();
+				break;
+
+			default:
+				// sends, returns, thisContext and the remaining specials
+				exitBefore(pc);
+		}
+	}
+
+	private void arithmetic(int pc, String helper) {
+		loadTop(1);
+		loadTop(0);
+		invoke(INVOKESTATIC, BASE, helper, OBJECT_2_OBJECT);
+		emit(DUP);
+		int ok= newLabel();
+		branch(IFNONNULL, ok);
+		emit(POP);
+		exitBefore(pc);
+		mark(ok);
+		emit(ASTORE, VALUE);
+		adjustSp(-1);
+		storeValueAtTop();
+	}
+
+	private void quickSend(int pc, int lobits) {
+		emit(ALOAD_0);
+		pushInt(lobits);
+		emit(ILOAD, SP);
+		invoke(INVOKEVIRTUAL, BASE, "quickSend", "(II)I");
+		emit(DUP);
+		int ok= newLabel();
+		branch(IFGE, ok);
+		emit(POP);
+		exitBefore(pc);
+		mark(ok);
+		emit(ISTORE, SP);
+	}
+
+	private void comparison(int pc, int next, String helper, boolean canFail) {
+		loadTop(1);
+		loadTop(0);
+		invoke(INVOKESTATIC, BASE, helper, OBJECT_2_INT);
+		if (canFail) {
+			emit(DUP);
+			int ok= newLabel();
+			branch(IFGE, ok);
+			emit(POP);
+			exitBefore(pc);
+			mark(ok);
+		}
+		emit(ISTORE, FLAG);
+		int jump= next < n ? code.opcodes[next] : -1;
+		if (jump == DecodedMethod.JUMP_IF_TRUE || jump == DecodedMethod.JUMP_IF_FALSE) {
+			// branch on the result instead of pushing and testing a Boolean
+			adjustSp(-2);
+			emit(ILOAD, FLAG);
+			branch(jump == DecodedMethod.JUMP_IF_TRUE ? IFNE : IFEQ, code.operands[next]+1);
+			branch(GOTO, code.lastBytes[next]+1);
+			return;
+		}
+		adjustSp(-1);
+		emit(ALOAD_0);
+		emit(ILOAD, FLAG);
+		invoke(INVOKEVIRTUAL, BASE, "bool", "(I)Ljava/lang/Object;");
+		emit(ASTORE, VALUE);
+		storeValueAtTop();
+	}
+
+	private void conditionalJump(int pc, boolean condition, int target, int next) {
+		loadTop(0);
+		emit(ASTORE, VALUE);
+		adjustSp(-1);
+		emit(ALOAD, VALUE);
+		emit(ALOAD_0);
+		getField("trueObj");
+		branch(IF_ACMPEQ, condition ? target : next);
+		emit(ALOAD, VALUE);
+		emit(ALOAD_0);
+		getField("falseObj");
+		branch(IF_ACMPEQ, condition ? next : target);
+		// not a Boolean: the interpreter sends mustBeBoolean
+		adjustSp(1);
+		exitBefore(pc);
+	}
+
+	// ----- code snippets -----
+
+	private void exitBefore(int pc) {
+		emit(ALOAD_0);
+		pushInt(pc-1);
+		emit(ILOAD, SP);
+		invoke(INVOKEVIRTUAL, BASE, "exit", "(II)V");
+		emit(RETURN);
+	}
+
+	private void loadTop(int depth) {
+		emit(ALOAD, STACK);
+		emit(ILOAD, SP);
+		if (depth > 0) {
+			pushInt(depth);
+			emit(ISUB);
+		}
+		emit(AALOAD);
+	}
+
+	private void push() {
+		emit(ASTORE, VALUE);
+		adjustSp(1);
+		storeValueAtTop();
+	}
+
+	private void storeValueAtTop() {
+		emit(ALOAD, STACK);
+		emit(ILOAD, SP);
+		emit(ALOAD, VALUE);
+		emit(AASTORE);
+	}
+
+	private void storeTop() {
+		emit(ASTORE, VALUE);
+		storeValueAtTop();
+	}
+
+	private void adjustSp(int delta) {
+		emit(IINC, SP);
+		emit(delta);
+	}
+
+	private void loadArray(int array, int index) {
+		emit(ALOAD, array);
+		pushInt(index);
+		emit(AALOAD);
+	}
+
+	private void storeArray(int array, int index) {
+		emit(ALOAD, array);
+		pushInt(index);
+		loadTop(0);
+		emit(AASTORE);
+	}
+
+	private void loadLiteral(int pc) {
+		emit(ALOAD_0);
+		getField("literals");
+		pushInt(pc);
+		emit(AALOAD);
+	}
+
+	private void loadAssociation(int pc) {
+		loadLiteral(pc);
+		emit(CHECKCAST);
+		emitShort(classRef("jsqueak/vm/SqueakObject"));
+	}
+
+	private void getPointer(int index) {
+		pushInt(index);
+		invoke(INVOKEVIRTUAL, "jsqueak/vm/SqueakObject", "getPointer", "(I)Ljava/lang/Object;");
+	}
+
+	private void storeAssociation(int pc, int index) {
+		loadAssociation(pc);
+		pushInt(index);
+		loadTop(0);
+		invoke(INVOKEVIRTUAL, "jsqueak/vm/SqueakObject", "setPointer", "(ILjava/lang/Object;)V");
+	}
+
+	private void getField(String name) {
+		emit(GETFIELD);
+		emitShort(memberRef(9, BASE, name, name.equals("literals") ? "[Ljava/lang/Object;" : "Ljava/lang/Object;"));
+	}
+
+	private void invoke(int opcode, String owner, String name, String desc) {
+		emit(opcode);
+		emitShort(memberRef(10, owner, name, desc));
+	}
+
+	private void pushInt(int value) {
+		if (value >= -1 && value <= 5)
+			emit(ICONST_0+value);
+		else if (value >= Byte.MIN_VALUE && value <= Byte.MAX_VALUE) {
+			emit(BIPUSH);
+			emit(value);
+		} else {
+			emit(SIPUSH);
+			emitShort(value);
+		}
+	}
+
+	// ----- code buffer and labels -----
+
+	private void emit(int b) {
+		if (length == bytes.length) {
+			byte[] grown= new byte[length*2];
+			System.arraycopy(bytes, 0, grown, 0, length);
+			bytes= grown;
+		}
+		bytes[length++]= (byte) b;
+	}
+
+	private void emit(int opcode, int localOrByte) {
+		emit(opcode);
+		emit(localOrByte);
+	}
+
+	private void emitShort(int value) {
+		emit(value >> 8);
+		emit(value);
+	}
+
+	private void emitInt(int value) {
+		emitShort(value >> 16);
+		emitShort(value);
+	}
+
+	private int newLabel() {
+		if (labelCount == labels.length) {
+			int[] grown= new int[labelCount*2];
+			System.arraycopy(labels, 0, grown, 0, labelCount);
+			labels= grown;
+		}
+		labels[labelCount]= -1;
+		return labelCount++;
+	}
+
+	private void mark(int label) {
+		labels[label]= length;
+	}
+
+	private void branch(int opcode, int label) {
+		int position= length;
+		emit(opcode);
+		addFixup(length, position, label);
+		emitShort(0);
+	}
+
+	private void branchTo32(int switchPos, int label) {
+		addFixup(~length, switchPos, label); // complemented: 32-bit offset
+		emitInt(0);
+	}
+
+	private void addFixup(int offsetPos, int instructionPos, int label) {
+		if (fixupCount+3 > fixups.length) {
+			int[] grown= new int[fixups.length*2];
+			System.arraycopy(fixups, 0, grown, 0, fixupCount);
+			fixups= grown;
+		}
+		fixups[fixupCount++]= offsetPos;
+		fixups[fixupCount++]= instructionPos;
+		fixups[fixupCount++]= label;
+	}
+
+	private boolean resolveFixups() {
+		for (int i= 0; i<fixupCount; i+= 3) {
+			int offset= labels[fixups[i+2]] - fixups[i+1];
+			int pos= fixups[i];
+			if (pos < 0) {
+				pos= ~pos;
+				bytes[pos]= (byte) (offset >> 24);
+				bytes[pos+1]= (byte) (offset >> 16);
+				bytes[pos+2]= (byte) (offset >> 8);
+				bytes[pos+3]= (byte) offset;
+			} else {
+				if (offset < Short.MIN_VALUE || offset > Short.MAX_VALUE)
+					return false;
+				bytes[pos]= (byte) (offset >> 8);
+				bytes[pos+1]= (byte) offset;
+			}
+		}
+		return true;
+	}
+
+	// ----- constant pool -----
+
+	private int constant(String key, int tag, int a, int b, String utf) {
+		Integer index= poolIndex.get(key);
+		if (index != null)
+			return index.intValue();
+		try {
+			poolOut.writeByte(tag);
+			if (utf != null)
+				poolOut.writeUTF(utf);
+			else {
+				poolOut.writeShort(a);
+				if (b >= 0)
+					poolOut.writeShort(b);
+			}
+		} catch (IOException e) {
+			throw new IllegalStateException(e); // cannot happen on a ByteArrayOutputStream
+		}
+		poolIndex.put(key, Integer.valueOf(poolCount));
+		return poolCount++;
+	}
+
+	private int utf8(String s) {
+		return constant("U" + s, 1, 0, -1, s);
+	}
+
+	private int classRef(String name) {
+		return constant("C" + name, 7, utf8(name), -1, null);
+	}
+
+	private int memberRef(int tag, String owner, String name, String desc) {
+		int nameAndType= constant("N" + name + desc, 12, utf8(name), utf8(desc), null);
+		return constant(tag + owner + "." + name + desc, tag, classRef(owner), nameAndType, null);
+	}
+
+	// ----- class file -----
+
+	private byte[] classFile() throws IOException {
+		if (!findInstructions())
+			return null;
+		translateRun();
+		if (!resolveFixups() || length > 65535)
+			return null;
+		byte[] runCode= new byte[length];
+		System.arraycopy(bytes, 0, runCode, 0, length);
+
+		length= 0;
+		emit(ALOAD_0);
+		emit(ALOAD, 1);
+		emit(ALOAD, 2);
+		invoke(INVOKESPECIAL, BASE, "<init>", "(Ljsqueak/vm/SqueakVM;[Ljava/lang/Object;)V");
+		emit(RETURN);
+		byte[] initCode= new byte[length];
+		System.arraycopy(bytes, 0, initCode, 0, length);
+
+		int thisClass= classRef(NAME);
+		int superClass= classRef(BASE);
+		int codeName= utf8("Code");
+		int initName= utf8("<init>");
+		int initDesc= utf8("(Ljsqueak/vm/SqueakVM;[Ljava/lang/Object;)V");
+		int runName= utf8("run");
+		int runDesc= utf8(RUN_DESC);
+
+		ByteArrayOutputStream classBytes= new ByteArrayOutputStream();
+		DataOutputStream out= new DataOutputStream(classBytes);
+		out.writeInt(0xCAFEBABE);
+		out.writeShort(0);
+		out.writeShort(49);
+		out.writeShort(poolCount);
+		pool.writeTo(out);
+		out.writeShort(0x0031); // public final super
+		out.writeShort(thisClass);
+		out.writeShort(superClass);
+		out.writeShort(0); // interfaces
+		out.writeShort(0); // fields
+		out.writeShort(2); // methods
+		writeMethod(out, 0x0001, initName, initDesc, codeName, 3, 3, initCode);
+		writeMethod(out, 0x0004, runName, runDesc, codeName, 8, FLAG+1, runCode);
+		out.writeShort(0); // attributes
+		return classBytes.toByteArray();
+	}
+
+	private static void writeMethod(DataOutputStream out, int access, int name, int desc, int codeName,
+			int maxStack, int maxLocals, byte[] code) throws IOException {
+		out.writeShort(access);
+		out.writeShort(name);
+		out.writeShort(desc);
+		out.writeShort(1);
+		out.writeShort(codeName);
+		out.writeInt(12 + code.length);
+		out.writeShort(maxStack);
+		out.writeShort(maxLocals);
+		out.writeInt(code.length);
+		out.write(code);
+		out.writeShort(0); // exception table
+		out.writeShort(0); // attributes
+	}
+}
@@ -9,10 +9,11 @@ public class MethodCache {
 		int primIndex;
 		int tempCount;
 	}
-	static int methodCacheSize= 1024; // must be power of two
-	static int methodCacheMask= methodCacheSize-1; // so this is a mask
+	// Per VM, like everything else the interpreter touches, so VMs in one JVM do not interfere
+	private final int methodCacheSize= 1024; // must be power of two
+	private final int methodCacheMask= methodCacheSize-1; // so this is a mask
 	MethodCacheEntry[] methodCache= new MethodCacheEntry[methodCacheSize];
-	static int randomish= 0;
+	private int randomish= 0;
 	public boolean clearMethodCache() {
 		// clear method cache entirely (prim 89)
 		for (int i = 0; i < methodCacheSize; i++) {
@@ -31,6 +32,16 @@ public class MethodCache {
 		}
 		return true;
 	}
+	void flushMethodCacheForBecome(BecomeCheck check) {
+		// clear the entries whose lookup went through an object become changed
+		for (int i = 0; i < methodCacheSize; i++) {
+			MethodCacheEntry entry = methodCache[i];
+			if (entry.method != null && check.affectsLookup(entry.lkupClass, entry.selector, entry.method)) {
+				entry.selector = null; // mark it free
+				entry.method = null; // release the method
+			}
+		}
+	}
 	public boolean flushMethodCacheForSelector(SqueakObject selector) {
 		// clear cache entries for selector (prim 119)
 		for (int i = 0; i < methodCacheSize; i++) {
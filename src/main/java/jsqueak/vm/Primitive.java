@@ -0,0 +1,24 @@
+package jsqueak.vm;
+
+/**
+ * A numbered primitive, registered in the VM's PrimitiveTable.
+ *
+ * execute() works on the active context's stack through the public stack
+ * access of SqueakVM: on success it pops the receiver and arguments and
+ * pushes the result, on failure it answers false and leaves the stack
+ * alone, so the Smalltalk code of the method runs instead.
+ */
+public abstract class Primitive {
+	private final String name;
+
+	protected Primitive(String name) {
+		this.name= name;
+	}
+
+	/** A short description for statistics, e.g. "SmallInteger +". */
+	public String getName() {
+		return name;
+	}
+
+	public abstract boolean execute(int argCount);
+}
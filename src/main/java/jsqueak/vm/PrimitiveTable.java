@@ -0,0 +1,103 @@
+package jsqueak.vm;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * The primitives of a VM, indexed by primitive number.  tryPrimitive()
+ * dispatches through it for everything but the quick primitives 256-519.
+ *
+ * Entries can be replaced or added between runs, or by the VM's own
+ * thread while it runs, e.g. from a primitive; a method picks up its new
+ * primitive on its next call.  The table is not synchronized, so a
+ * running interpreter may never see what another thread puts.  With
+ * statistics on, the table also counts calls, failures and the time
+ * spent in each primitive.
+ */
+public final class PrimitiveTable {
+	public static final int SIZE= 2048; // methodPrimitiveIndex() is below 2048
+
+	private final Primitive[] primitives= new Primitive[SIZE];
+	private boolean statistics;
+	private long[] calls;
+	private long[] failures;
+	private long[] nanos;
+
+	/** The primitive number index, null if there is none or index is out of range. */
+	public Primitive get(int index) {
+		return index >= 0 && index < SIZE ? primitives[index] : null;
+	}
+
+	/**
+	 * Installs primitive as number index, or removes the entry if it is
+	 * null.  Answers the primitive it replaces.  See the class comment for
+	 * the threads that may call it.
+	 */
+	public Primitive put(int index, Primitive primitive) {
+		if (index < 0 || index >= SIZE)
+			throw new IllegalArgumentException("primitive number " + index + " is not in 0-" + (SIZE - 1));
+		Primitive old= primitives[index];
+		primitives[index]= primitive;
+		return old;
+	}
+
+	/** Turning statistics on resets the counters. */
+	public void setStatistics(boolean statistics) {
+		if (statistics) {
+			calls= new long[SIZE];
+			failures= new long[SIZE];
+			nanos= new long[SIZE];
+		}
+		this.statistics= statistics;
+	}
+
+	public boolean isStatistics() {
+		return statistics;
+	}
+
+	void count(int index, boolean success, long elapsedNanos) {
+		calls[index]++;
+		if (!success)
+			failures[index]++;
+		nanos[index]+= elapsedNanos;
+	}
+
+	public long getCalls(int index) {
+		return statistics ? calls[index] : 0;
+	}
+
+	public long getFailures(int index) {
+		return statistics ? failures[index] : 0;
+	}
+
+	public long getNanos(int index) {
+		return statistics ? nanos[index] : 0;
+	}
+
+	/** The primitives that were called, most time spent first. */
+	public String report() {
+		if (!statistics)
+			return "Primitive statistics are off\n";
+		List<Integer> called= new ArrayList<Integer>();
+		for (int i= 0; i<SIZE; i++)
+			if (calls[i] > 0)
+				called.add(Integer.valueOf(i));
+		Collections.sort(called, new Comparator<Integer>() {
+			public int compare(Integer a, Integer b) {
+				long diff= nanos[b.intValue()] - nanos[a.intValue()];
+				return diff > 0 ? 1 : diff < 0 ? -1 : 0;
+			}
+		});
+		StringBuilder out= new StringBuilder();
+		out.append(String.format("%5s %12s %12s %10s  %s%n", "prim", "calls", "failures", "ms", "name"));
+		for (Integer each : called) {
+			int i= each.intValue();
+			Primitive primitive= primitives[i];
+			out.append(String.format("%5d %12d %12d %10.1f  %s%n", i, calls[i], failures[i], nanos[i] / 1e6,
+					primitive == null ? "" : primitive.getName()));
+		}
+		return out.toString();
+	}
+}
@@ -0,0 +1,82 @@
+package jsqueak.vm;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The registered objects whose pointers changed since the image last
+ * registered new objects (see SqueakImage.registerReachableObjects()).
+ * Only they and the contexts can refer to objects made since, so only
+ * they are scanned, however large the heap.  An object adds itself on
+ * its first such write, in the barrier that marks it dirty (see
+ * SqueakObject.markDirty()), to the set of the image whose VM runs on
+ * that thread (see bind()); the objects keep no reference to it.
+ */
+public final class RememberedSet {
+	private static final ThreadLocal<RememberedSet> bound= new ThreadLocal<RememberedSet>();
+	private static final AtomicInteger missed= new AtomicInteger(); // first writes on threads no set was bound to
+
+	private SqueakObject[] objects= new SqueakObject[256];
+	private int size;
+	private boolean enabled;
+	private int missedWhenEnabled;
+
+	/** Makes set the one that writes on this thread go to; answers the one bound before, to bind again after. */
+	public static RememberedSet bind(RememberedSet set) {
+		RememberedSet prior= bound.get();
+		bound.set(set);
+		return prior;
+	}
+
+	/** The barrier's: obj, registered, was first written since its set last forgot it. */
+	static void remember(SqueakObject obj) {
+		RememberedSet set= bound.get();
+		if (set == null)
+			missed.incrementAndGet();
+		else if (set.enabled)
+			set.add(obj);
+		// else the image does not remember yet; the scan that starts it forgets every object's writes
+	}
+
+	private void add(SqueakObject obj) {
+		if (size == objects.length)
+			objects= Arrays.copyOf(objects, 2*size);
+		objects[size++]= obj;
+	}
+
+	/** Starts remembering writes, the image having scanned the objects written until now. */
+	public void enable() {
+		clear();
+		enabled= true;
+		missedWhenEnabled= missed.get();
+	}
+
+	/** Stops remembering, until the image scans the whole table again. */
+	public void disable() {
+		clear();
+		enabled= false;
+	}
+
+	public boolean isEnabled() {
+		return enabled;
+	}
+
+	/** Whether every first write since enable() is here or was drained, none made where no set was bound. */
+	public boolean isComplete() {
+		return enabled && missed.get() == missedWhenEnabled;
+	}
+
+	/** The objects written since the last call, each once; they are remembered again on their next write. */
+	public SqueakObject[] drain() {
+		SqueakObject[] written= Arrays.copyOf(objects, size);
+		for (SqueakObject each : written)
+			each.forgetWrites();
+		clear();
+		return written;
+	}
+
+	private void clear() {
+		Arrays.fill(objects, 0, size, null);
+		size= 0;
+	}
+}
@@ -0,0 +1,50 @@
+package jsqueak.vm;
+
+import jsqueak.image.SqueakImage;
+
+/**
+ * A Float made by the VM, the result of a primitive or bytecode (see
+ * SqueakVM.makeFloat()).  The value is a double field rather than a Double
+ * in imageData, so each float result is one object instead of two.
+ * Floats read from an image keep their Double (see installBody()), so
+ * callers go through isFloat() and getFloatBits(), which cover both.
+ */
+public class SqueakFloat extends SqueakObject {
+	private double value;
+
+	SqueakFloat(SqueakObject floatClass, double value) {
+		super(floatClass, value);
+		this.value = value;
+	}
+
+	public boolean isFloat() {
+		return true;
+	}
+
+	public double getFloatBits() {
+		return value;
+	}
+
+	public void setFloatBits(double value) {
+		this.value = value;
+		markDirty();
+	}
+
+	/** The value boxed, as the image writers expect the bits of a Float. */
+	public Object getBits() {
+		return Double.valueOf(value);
+	}
+
+	public int bitsSize() {
+		return 2;
+	}
+
+	/** Floats made by the VM are not registered, so neither is the clone. */
+	public SqueakObject cloneIn(SqueakImage img) {
+		return new SqueakFloat(getSqClass(), value);
+	}
+
+	public SqueakObject isolatedCopy(SqueakObject symbolClass) {
+		return new SqueakFloat(getSqClass(), value);
+	}
+}
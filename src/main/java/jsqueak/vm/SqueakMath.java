@@ -39,10 +39,12 @@ public class SqueakMath {
 
 	public static int safeShift(int bitsToShift, int shiftCount) {
 		if (shiftCount < 0)
-			return bitsToShift >> -shiftCount; // OK ot lose bits shifting right
+			return bitsToShift >> Math.min(-shiftCount, 31); // OK ot lose bits shifting right
+		if (shiftCount > 31) // Java would only shift by shiftCount & 31
+			return bitsToShift == 0 ? 0 : NON_SMALL_INT;
 		// check for lost bits by seeing if computation is reversible
 		int shifted = bitsToShift << shiftCount;
-		if ((shifted >>> shiftCount) == bitsToShift)
+		if ((shifted >> shiftCount) == bitsToShift)
 			return shifted;
 		return NON_SMALL_INT; // non-small result will cause failure
 	}
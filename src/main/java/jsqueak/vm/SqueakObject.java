@@ -23,10 +23,11 @@ THE SOFTWARE.
 
 package jsqueak.vm;
 
+import java.nio.ByteBuffer;
 import java.util.Arrays;
-import java.util.Hashtable;
 
 import jsqueak.Squeak;
+import jsqueak.image.OopMap;
 import jsqueak.image.SqueakImage;
 
 /**
@@ -50,16 +51,28 @@ public class SqueakObject //Later make variants for common formats
 	}
 
 	public Object getBits() {
+		if ((flags & LAZY) != 0)
+			materialize();
 		return imageData;
 	}
 
 	public byte[] getBitsAsMethodBytes() {
+		if ((flags & LAZY) != 0)
+			materialize();
 		return (byte[])imageData;
 	}
 
 	Object sqClass;  //squeak class
     Object[] pointers; //pointer fields; fixed as well as indexable
-    private Object imageData;       //indexable binary data (bytes or ints)
+    private Object imageData;       //indexable binary data (bytes or ints); a BodySource until materialized
+    private byte flags;             //SHARED_BITS, DIRTY, REMEMBERED and LAZY below
+    private int snapshotOop;        //oop in the snapshot and checkpoints it was last written to or read from; 0 if none
+    private int otIndex= -1;        //where the image's object table has it (see SqueakImage.registerObject()); -1 if not registered
+    
+    private static final byte SHARED_BITS= 1; //imageData is another image's too, copy it before writing
+    private static final byte DIRTY= 2;       //changed since the image's last snapshot or checkpoint
+    private static final byte REMEMBERED= 4;  //written since the image's RememberedSet last forgot it (see markDirty())
+    private static final byte LAZY= 8;        //imageData is the BodySource of the pointers and bits, not read yet
     
     public SqueakObject(Integer squeakClass, int fmt, int hsh, int[] imageData) 
     {
@@ -70,10 +83,73 @@ public class SqueakObject //Later make variants for common formats
         this.imageData= imageData; 
     }
 
+    public SqueakObject() 
+    {
+        //Creation of an object that a native image fills in with load()
+    }
+
     SqueakObject(SqueakImage img) 
     {
-        //Creation of stub object (no pointers or bits)
-        setHash(img.registerObject(this)); 
+        //Creation of stub object (no pointers or bits), registered only if still reachable when enumerated
+        setHash(img.newHash()); 
+        flags= DIRTY; 
+    }
+
+    SqueakObject(SqueakObject template, SqueakObject symbolClass) 
+    {
+        //Copy for an isolated image: same hash, class and pointers not yet mapped
+        setHash(template.getHash());
+        format= template.format;
+        flags= (byte) (template.flags & DIRTY);
+        otIndex= template.otIndex;
+        snapshotOop= template.snapshotOop;
+        sqClass= template.sqClass;
+        imageData= template.imageData;
+        //Words (Bitmaps, Forms' bits) and Symbols are shared like method bytes; other bytes are
+        //mostly Strings and LargeIntegers, small and often written, so they are copied now
+        if (imageData instanceof int[] || (imageData instanceof byte[] 
+                && ((template.flags & SHARED_BITS) != 0 || format>=12 || template.sqClass==symbolClass))) 
+        {
+            flags|= SHARED_BITS;
+            template.flags|= SHARED_BITS; 
+        }
+        else if (imageData instanceof byte[])
+            imageData= ((byte[])imageData).clone(); 
+        if (template.pointers!=null)
+            pointers= (Object[])template.pointers.clone();
+    }
+
+    SqueakObject(SqueakObject floatClass, double value) 
+    {
+        //Float results of primitives and bytecodes, see SqueakFloat: not
+        //registered, so the object table never sees intermediate results
+        sqClass= floatClass;
+        format= 6;
+        long bits= Double.doubleToRawLongBits(value);
+        setHash((short) ((bits ^ (bits>>>32)) & 0xFFF));
+    }
+
+    /** A new instance of squeakClass, made a CompiledMethodObject if squeakClass makes methods. */
+    static SqueakObject instantiate(SqueakImage img, SqueakObject squeakClass, int indexableSize, SqueakObject filler) 
+    {
+        int instSpec= SqueakVM.intFromSmall(squeakClass.getPointerI(Squeak.CLASS_FORMAT));
+        if (((instSpec>>7) & 0xF) >= 12)
+            return new CompiledMethodObject(img, squeakClass, indexableSize, filler);
+        return new SqueakObject(img, squeakClass, indexableSize, filler); 
+    }
+
+    /** An object read from an image, made a CompiledMethodObject if fmt is a method's. */
+    public static SqueakObject read(Integer squeakClass, int fmt, int hsh, int[] imageData) 
+    {
+        if (fmt >= 12)
+            return new CompiledMethodObject(squeakClass, fmt, hsh, imageData);
+        return new SqueakObject(squeakClass, fmt, hsh, imageData); 
+    }
+
+    /** An object that a native image fills in with load(), made a CompiledMethodObject if fmt is a method's. */
+    public static SqueakObject ofFormat(int fmt) 
+    {
+        return fmt >= 12 ? new CompiledMethodObject() : new SqueakObject(); 
     }
 
     SqueakObject(SqueakImage img, SqueakObject squeakClass, int indexableSize, SqueakObject filler) 
@@ -132,9 +208,21 @@ public class SqueakObject //Later make variants for common formats
     
     public void setSqClass(Object sqClass) {
     	this.sqClass = sqClass;
+    	markDirty();
+    }
+
+    /**
+     * Points an isolated copy at its own image's copy of its class (see
+     * SqueakImage.isolate()).  Not a write: the copy stays as dirty as its
+     * template, and no barrier fires on the thread isolating.
+     */
+    public void mapIsolatedClass(SqueakObject sqClass) {
+    	this.sqClass = sqClass;
     }
      
     public Object[] getPointers() {
+    	if (pointers == null)
+    		materialize();
     	return pointers;
     }
     
@@ -147,28 +235,112 @@ public class SqueakObject //Later make variants for common formats
 	}
 
 	public Object getPointer(int zeroBasedIndex) {
+        if (pointers == null)
+            materialize();
         return pointers[zeroBasedIndex]; 
     }
     
     public SqueakObject getPointerNI(int zeroBasedIndex) {
         //Returns only SqueakObjects, not Integers
+        if (pointers == null)
+            materialize();
         return (SqueakObject) pointers[zeroBasedIndex]; 
     }
     
     public Integer getPointerI(int zeroBasedIndex) {
         //Returns only SmallIntegers
+        if (pointers == null)
+            materialize();
         return (Integer) pointers[zeroBasedIndex]; 
     }
     
     public void setPointer(int zeroBasedIndex, Object aPointer) {
+        if (pointers == null)
+            materialize();
         pointers[zeroBasedIndex]= aPointer; 
+        markDirty(); 
     }
     
     public int pointersSize() {
+        if (pointers == null)
+            materialize();
         return pointers==null? 0 : pointers.length; 
     }
     
+    /**
+     * Reads the pointers and bits of an object loaded lazily, on its first
+     * use; the accessors call this, code that takes the pointers array
+     * must get it through getPointers().  The accessors test a flag, not
+     * imageData's type: instanceof an interface is slow on the arrays
+     * imageData mostly holds.
+     */
+    public void materialize() {
+        if ((flags & LAZY) == 0)
+            return;
+        Object source= imageData;
+        if (source instanceof BodySource) // another thread may have read it meanwhile
+            ((BodySource) source).materialize(this); 
+    }
+    
+    public boolean isMaterialized() {
+        return (flags & LAZY) == 0; 
+    }
+    
+    /** Whether this is a CompiledMethod with a translation, which the VM checks after a become. */
+    public boolean isTranslated() {
+        return false; 
+    }
+    
+    /**
+     * Records a change made without the setters, e.g. to the pointers array
+     * in bulk, so the next checkpoint writes this object, and the image
+     * scans it for new objects to register: the first write to a
+     * registered object goes to the image's RememberedSet.
+     */
+    public void markDirty() {
+        flags|= DIRTY; 
+        if ((flags & REMEMBERED) == 0 && otIndex >= 0) 
+        {
+            flags|= REMEMBERED;
+            RememberedSet.remember(this);
+        }
+    }
+    
+    public boolean isDirty() {
+        return (flags & DIRTY) != 0; 
+    }
+    
+    public boolean isRegistered() {
+        return otIndex >= 0; 
+    }
+    
+    /** Called as the image registers this object, or scans it: its next write is remembered again. */
+    public void forgetWrites() {
+        flags&= ~REMEMBERED; 
+    }
+    
+    public int getOtIndex() {
+        return otIndex; 
+    }
+    
+    /** Kept by the object table, whose compaction moves objects down. */
+    public void setOtIndex(int index) {
+        otIndex= index; 
+    }
+    
+    public int getSnapshotOop() {
+        return snapshotOop; 
+    }
+    
+    /** Called once this object is in a snapshot or checkpoint as oop. */
+    public void setSnapshotOop(int oop) {
+        snapshotOop= oop;
+        flags&= ~DIRTY; 
+    }
+    
     public int bitsSize() {
+        if ((flags & LAZY) != 0)
+            materialize();
         if (imageData==null) 
             return 0;
         if (imageData instanceof byte[]) 
@@ -182,7 +354,7 @@ public class SqueakObject //Later make variants for common formats
         if (format>4 || format==2) //indexable fields only 
             return 0; 
         if (format<2)  //indexable fields only
-            return pointers.length;
+            return pointersSize();
         return ((SqueakObject)sqClass).classInstSize();  //0-255
     }
 
@@ -197,12 +369,41 @@ public class SqueakObject //Later make variants for common formats
     
     public SqueakObject cloneIn(SqueakImage img) {
         //Need to get new hash, OT entry...
-        SqueakObject clone= new SqueakObject(img);
+        SqueakObject clone= format>=12 ? new CompiledMethodObject(img) : new SqueakObject(img);
         clone.copyStateFrom(this);
         return clone; 
     }
     
+    /**
+     * A copy for an image isolated from this one's (see SqueakImage.isolate()).
+     * Its class and pointers still refer to this image's objects until the
+     * caller maps them; the bytes of methods and symbols are shared until
+     * either of the two writes them.
+     */
+    public SqueakObject isolatedCopy(SqueakObject symbolClass) {
+        if (format>=12)
+            return new CompiledMethodObject(this, symbolClass);
+        return new SqueakObject(this, symbolClass); 
+    }
+
+    /**
+     * imageData for writing, copied first if it is shared with an isolated
+     * image.  The object counts as changed for the next checkpoint.
+     */
+    public Object getBitsForWrite() {
+        if ((flags & LAZY) != 0)
+            materialize();
+        flags|= DIRTY;
+        if ((flags & SHARED_BITS) != 0) 
+        {
+            imageData= imageData instanceof int[] ? ((int[])imageData).clone() : ((byte[])imageData).clone();
+            flags&= ~SHARED_BITS; 
+        }
+        return imageData; 
+    }
+
     private void copyStateFrom(SqueakObject other) {
+        other.materialize();
         sqClass= other.sqClass;
         format= other.format;
         pointers= (Object[])other.pointers.clone();
@@ -215,12 +416,17 @@ public class SqueakObject //Later make variants for common formats
             imageData= ((int[])other.imageData).clone(); 
     }
         
+    public boolean isFloat() {
+        return imageData instanceof Double; //Floats are never loaded lazily
+    }
+    
     public double getFloatBits() { // isn't this slow?'
         return ((Double)imageData).doubleValue(); 
     }
     
     public void setFloatBits(double value) {
-        imageData= new Double(value); 
+        imageData= Double.valueOf(value); 
+        flags|= DIRTY; 
     }
     
     //CompiledMethods
@@ -255,6 +461,7 @@ public class SqueakObject //Later make variants for common formats
 
     public void methodAddPointers(Object[] headerAndLits) {
         pointers= headerAndLits; 
+        markDirty(); 
     }
     
     public int methodTempCount() {
@@ -283,14 +490,65 @@ public class SqueakObject //Later make variants for common formats
     //Methods below here are only used for reading the Squeak image format
     
     
-    public void install(Hashtable oopMap, Integer[] ccArray, SqueakObject floatClass) {
+    /**
+     * Sets the state of an object read from a native image, which is
+     * already decoded: nothing is left to install.
+     */
+    public void load(SqueakObject squeakClass, int fmt, int hsh, Object[] ptrs, Object bits, int oop) {
+        sqClass= squeakClass;
+        format= (short)fmt;
+        setHash((short)hsh);
+        pointers= ptrs;
+        imageData= bits;
+        snapshotOop= oop; 
+    }
+    
+    /** Leaves the pointers and bits to be read from source when first used. */
+    public void setBodySource(BodySource source) {
+        pointers= null;
+        imageData= source; 
+        flags|= LAZY; 
+    }
+    
+    /** The pointers and bits a BodySource read, already decoded. */
+    public void setBody(Object[] ptrs, Object bits) {
+        pointers= ptrs;
+        imageData= bits; 
+        flags&= ~LAZY; 
+    }
+    
+    /**
+     * Takes over the raw state of an object read from a checkpoint, which
+     * is this object changed; install() then decodes it.
+     */
+    public void reload(SqueakObject changed) {
+        sqClass= changed.sqClass;
+        format= changed.format;
+        setHash(changed.getHash());
+        imageData= changed.imageData;
+        flags&= ~(SHARED_BITS|LAZY);
+        pointers= null; 
+    }
+    
+    public void install(OopMap oopMap, int[] ccArray, SqueakObject floatClass) {
         //Install this object by decoding format, and rectifying pointers
+        installClass(oopMap, ccArray);
+        installBody((int[]) imageData, oopMap, floatClass);
+    }
+
+    public void installClass(OopMap oopMap, int[] ccArray) {
         int ccInt= ((Integer)sqClass).intValue();
         if ((ccInt>0) && (ccInt<32))
             sqClass= oopMap.get(ccArray[ccInt-1]);
         else
-            sqClass= oopMap.get(sqClass);
-        int nWords= ((int[]) imageData).length;
+            sqClass= oopMap.get(ccInt);
+    }
+
+    /** Decodes the raw words of this object's body, whose class is installed. */
+    public void installBody(int[] data, OopMap oopMap, SqueakObject floatClass) {
+        imageData= data;
+        flags&= ~LAZY;
+        int nWords= data.length;
         if (format<5) 
         {
             //Formats 0...4 -- Pointer fields
@@ -316,16 +574,16 @@ public class SqueakObject //Later make variants for common formats
             else if (sqClass==floatClass) 
             {
                 //Floats need two ints to be converted to double
-                long longBits= (((long)((int[])imageData)[0])<<32) | (((long)((int[])imageData)[0])&0xFFFFFFFF);
+                long longBits= (((long)((int[])imageData)[0])<<32) | (((int[])imageData)[1]&0xFFFFFFFFL);
                 //System.err.println();
                 //System.err.println(((int[])bits)[0] + " " + ((int[])bits)[1] + " -> " + longBits);
-                imageData= new Double(Double.longBitsToDouble(longBits)); 
+                imageData= Double.valueOf(Double.longBitsToDouble(longBits)); 
             }
             //System.err.println((Double)bits + " " + Double.doubleToRawLongBits(((Double)bits).doubleValue()));
         }
     }
 
-    private Object[] decodePointers(int nWords,int[]theBits,Hashtable oopMap) {
+    private Object[] decodePointers(int nWords,int[]theBits,OopMap oopMap) {
         //Convert small ints and look up object pointers in oopMap
         Object[] ptrs= new Object[nWords];
         for (int i=0; i<nWords; i++) 
@@ -334,24 +592,21 @@ public class SqueakObject //Later make variants for common formats
             if ((oldOop&1)==1)
                 ptrs[i]= SqueakVM.smallFromInt(oldOop>>1);
             else
-                ptrs[i]= oopMap.get(new Integer (oldOop)); 
+                ptrs[i]= oopMap.get(oldOop); 
         }
         return ptrs; 
     }
 
     private byte[] decodeBytes(int nWords,int[]theBits,int wordOffset,int fmtLoBits) {
-        //Adjust size for low bits and extract bytes from ints
+        //Adjust size for low bits and extract bytes from ints, most significant first
         int nBytes= (nWords*4) - (format&3);
         byte[]newBits= new byte[nBytes];
-        int wordIx= wordOffset;
-        int fourBytes= 0;
-        for (int i=0; i<nBytes; i++) {
-            if ((i&3)==0)
-                fourBytes= theBits[wordIx++];
-            int pickByte= (fourBytes>>(8*(3-(i&3))))&255;
-            if (pickByte>=128)
-                pickByte= pickByte-256;
-            newBits[i]= (byte) pickByte; 
+        int fullWords= nBytes>>2;
+        ByteBuffer.wrap(newBits).asIntBuffer().put(theBits, wordOffset, fullWords);
+        if (fullWords < nWords) {
+            int lastWord= theBits[wordOffset+fullWords];
+            for (int i=fullWords*4; i<nBytes; i++)
+                newBits[i]= (byte) (lastWord>>(8*(3-(i&3)))); 
         }
         return newBits; 
     }
@@ -362,6 +617,7 @@ public class SqueakObject //Later make variants for common formats
     
     public String asString() {
         // debugging only: if body consists of bytes, make a Java String from them
+        materialize();
         if (imageData != null && imageData instanceof byte[]) {
             if (pointers != null) 
                 return "a CompiledMethod";
@@ -384,7 +640,7 @@ public class SqueakObject //Later make variants for common formats
      * FIXME: what is the right way to achieve this?
      */
     void setByte( int zeroBasedIndex, byte value ) {
-        byte[] bytes = (byte[]) imageData;
+        byte[] bytes = (byte[]) getBitsForWrite();
         
         bytes[ zeroBasedIndex ] = value;
     }
@@ -393,7 +649,7 @@ public class SqueakObject //Later make variants for common formats
      * FIXME: what is the right way to achieve this?
      */
     byte getByte( int zeroBasedIndex ) {
-        byte[] bytes = (byte[]) imageData;
+        byte[] bytes = (byte[]) getBits();
         
         return bytes[ zeroBasedIndex ];
     }
@@ -57,6 +57,7 @@ class SqueakPrimitiveHandler
     private final BitBlt bitbltTable;
 
     private final FileSystemPrimitives fileSystemPrimitives = new FileSystemPrimitives( this );
+    private final PrimitiveTable primitives= new PrimitiveTable();
     
     private Screen theDisplay;
     private Keyboard theKeyboard;
@@ -76,6 +77,7 @@ class SqueakPrimitiveHandler
         image= vm.getImage();
         bitbltTable= new BitBlt(vm);
         atCache = new AtCache(vm, this); 
+        installPrimitives();
     }
     
     /**
@@ -151,10 +153,18 @@ class SqueakPrimitiveHandler
     }
     
     private Object primitiveBitShift() {
-        int rcvr= stackPos32BitValue(1);
+        long rcvr= stackPos32BitValue(1) & 0xFFFFFFFFL;
         int arg= stackInteger(0);
-
-        return pos32BitIntFor(safeShift(rcvr, arg));
+        long shifted;
+        if (arg < 0)
+            shifted= rcvr >> Math.min(-arg, 32);
+        else if (arg <= 32)
+            shifted= rcvr << arg;
+        else
+            shifted= rcvr == 0 ? 0 : -1;
+        if (shifted < 0 || shifted > 0xFFFFFFFFL)
+            throw PrimitiveFailed; // not a positive 32-bit result
+        return pos32BitIntFor((int) shifted);
     }
     
     private int doQuo(int rcvr, int arg) {
@@ -175,204 +185,18 @@ class SqueakPrimitiveHandler
         }
     }
     
+    /**
+     * Primitive entry from tryPrimitive(): dispatches through the table,
+     * counting if its statistics are on.
+     */
     boolean doPrimitive(int index, int argCount) {
+        Primitive primitive= primitives.get(index);
+        if (primitive == null)
+            return false;
+        if (primitives.isStatistics())
+            return doCountedPrimitive(index, primitive, argCount);
         try {
-            switch (index) {
-                // 0..127
-                case 1: popNandPushInt(2,stackInteger(1)+stackInteger(0));  // Integer.add
-                        break;
-                case 2: popNandPushInt(2,stackInteger(1)-stackInteger(0));  // Integer.subtract
-                        break;
-                case 3: return pop2andDoBool(stackInteger(1)<stackInteger(0));  // Integer.less
-                case 4: return pop2andDoBool(stackInteger(1)>stackInteger(0));  // Integer.greater
-                case 5: return pop2andDoBool(stackInteger(1)<=stackInteger(0));  // Integer.leq
-                case 6: return pop2andDoBool(stackInteger(1)>=stackInteger(0));  // Integer.geq
-                case 7: return pop2andDoBool(stackInteger(1)==stackInteger(0));  // Integer.equal
-                case 8: return pop2andDoBool(stackInteger(1)!=stackInteger(0));  // Integer.notequal
-                case 9: popNandPushInt(2, safeMultiply(stackInteger(1), stackInteger(0)));  // Integer.multiply *
-                        break;
-                case 10: popNandPushInt(2, quickDivide(stackInteger(1), stackInteger(0)));  // Integer.divide /  (fails unless exact exact)
-                         break;
-                case 11: return false; //popNandPushIntIfOK(2,doMod(stackInteger(1),stackInteger(0)));  // Integer.mod \\
-                case 12: popNandPushInt(2, div(stackInteger(1), stackInteger(0)));  // Integer.div //
-                         break;
-                case 13: popNandPushInt(2,doQuo(stackInteger(1),stackInteger(0)));  // Integer.quo
-                         break;
-                case 14: popNandPush(2,primitiveBitAnd());  // SmallInt.bitAnd
-                         break;
-                case 15: popNandPush(2,primitiveBitOr());  // SmallInt.bitOr
-                         break;
-                case 16: popNandPush(2,primitiveBitXor());  // SmallInt.bitXor
-                         break;
-                case 17: popNandPush(2,primitiveBitShift());  // SmallInt.bitShift
-                         break;
-                case 18: return primitiveMakePoint();
-                case 40: popNandPush(1, primitiveAsFloat() );
-                         break;
-                case 41: popNandPushFloat(2,stackFloat(1)+stackFloat(0));  // Float +        // +
-                         break;
-                case 42: popNandPushFloat(2,stackFloat(1)-stackFloat(0));  // Float -
-                         break;
-                case 43: return pop2andDoBool(stackFloat(1)<stackFloat(0));  // Float <
-                case 44: return pop2andDoBool(stackFloat(1)>stackFloat(0));  // Float >
-                case 45: return pop2andDoBool(stackFloat(1)<=stackFloat(0));  // Float <=
-                case 46: return pop2andDoBool(stackFloat(1)>=stackFloat(0));  // Float >=
-                case 47: return pop2andDoBool(stackFloat(1)==stackFloat(0));  // Float =
-                case 48: return pop2andDoBool(stackFloat(1)!=stackFloat(0));  // Float !=
-                case 49: popNandPushFloat(2,stackFloat(1)*stackFloat(0));  // Float.mul
-                         break;
-                case 50: popNandPushFloat(2,safeFDiv(stackFloat(1),stackFloat(0)));  // Float.div
-                         break;
-                case 51: popNandPush( 1, primitiveTruncate() );
-                         break;
-                case 58: popNandPushFloat(1,StrictMath.log(stackFloat(0)));  // Float.ln
-                         break;
-                case 60: popNandPush(2,primitiveAt(false,false,false)); // basicAt:
-                         break;
-                case 61: popNandPush(3,primitiveAtPut(false,false,false)); // basicAt:put:
-                         break;
-                case 62: popNandPush(1,primitiveSize()); // size
-                         break;
-                case 63: popNandPush(2,primitiveAt(false,true,false)); // basicAt:
-                         break;
-                case 64: popNandPush(3,primitiveAtPut(false,true,false)); // basicAt:put:
-                         break;
-                case 68: popNandPush(2,primitiveAt(false,false,true)); // Method.objectAt:
-                         break;
-                case 69: popNandPush(3,primitiveAtPut(false,false,true)); // Method.objectAt:put:
-                         break;
-                case 70: popNandPush(1,vm.instantiateClass( stackNonInteger( 0 ), 0 ) ); // Class.new
-                         break;
-                case 71: popNandPush(2,primitiveNewWithSize()); // Class.new
-                         break;
-                case 72: popNandPush(2,primitiveArrayBecome());
-                         break;
-                case 73: popNandPush(2,primitiveAt(false,false,true)); // instVarAt:
-                         break;
-                case 74: popNandPush(3,primitiveAtPut(false,false,true)); // instVarAt:put:
-                         break;
-                case 75: popNandPush(1,primitiveHash()); // Class.identityHash
-                         break;
-                case 77: popNandPush(1,primitiveSomeInstance(stackNonInteger(0))); // Class.someInstance
-                         break;
-                case 78: popNandPush(1,primitiveNextInstance(stackNonInteger(0))); // Class.someInstance
-                         break;
-                case 79: popNandPush(3,primitiveNewMethod()); // Compiledmethod.new
-                         break;
-                case 80: popNandPush(2,primitiveBlockCopy()); // Context.blockCopy:
-                         break;
-                case 81: primitiveBlockValue(argCount); // BlockContext.value
-                         break;
-                case 83: return vm.primitivePerform(argCount); // rcvr.perform:(with:)*
-                case 84: return vm.primitivePerformWithArgs(vm.getClass(vm.stackValue(2))); // rcvr.perform:withArguments:
-                case 85: semaphoreSignal(); // Semaphore.wait
-                         break;
-                case 86: semaphoreWait(); // Semaphore.wait
-                         break;
-                case 87: processResume(); // Process.resume
-                         break;
-                case 88: processSuspend(); // Process.suspend
-                         break;
-                case 89: return vm.clearMethodCache();  // selective
-                case 90: popNandPush(1,primitiveMousePoint()); // mousePoint
-                         break;
-                case 96: if (argCount==0) 
-                             primitiveCopyBits((SqueakObject)vm.top(),0);
-                         else 
-                             primitiveCopyBits((SqueakObject)vm.stackValue(1),1);
-                         break;
-                case 97: primitiveSnapshot();
-                         break;
-                case 100: return vm.primitivePerformInSuperclass((SqueakObject)vm.top()); // rcvr.perform:withArguments:InSuperclass
-                case 101: beCursor(argCount); // Cursor.beCursor
-                          break;
-                case 102: beDisplay((SqueakObject)vm.top()); // DisplayScreen.beDisplay
-                          break;
-                case 105: popNandPush(5,primitiveStringReplace()); // string and array replace
-                          break;
-                case 106: popNandPush(1,makePointWithXandY(SqueakVM.smallFromInt(640),SqueakVM.smallFromInt(480))); // actualScreenSize // FIXME: Use real size
-                          break;
-                case 107: popNandPush(1,primitiveMouseButtons()); // Sensor mouseButtons
-                          break;
-                case 108: popNandPush(1,primitiveKbdNext()); // Sensor kbdNext
-                          break;
-                case 109: popNandPush(1,primitiveKbdPeek()); // Sensor kbdPeek
-                          break;
-                case 110: popNandPush(2,(vm.stackValue(1) == vm.stackValue(0))? vm.getTrueObj() : vm.getFalseObj()); // ==
-                          break;
-                case 112: popNandPush(1,SqueakVM.smallFromInt(image.spaceLeft())); // bytesLeft
-                          break;
-                case 113: System.exit(0);
-                case 116: return vm.flushMethodCacheForMethod((SqueakObject)vm.top());
-                case 119: return vm.flushMethodCacheForSelector((SqueakObject)vm.top());
-                case 121: popNandPush(1, primitiveImageFileName( argCount  ) );
-                          break;
-                case 122: BWMask= ~BWMask;
-                          break;
-                case 124: popNandPush(2,registerSemaphore(Squeak.splOb_TheLowSpaceSemaphore));
-                          break;
-                case 125: popNandPush(2,setLowSpaceThreshold());
-                          break;
-                case 128: popNandPush(2,primitiveArrayBecomeBothWays());
-                          break;
-                case 129: popNandPush(1,image.getSpecialObjectsArray());
-                          break;
-                case 130: popNandPush(1,SqueakVM.smallFromInt(image.fullGC())); // GC
-                          break;
-                case 131: popNandPush(1,SqueakVM.smallFromInt(image.partialGC())); // GCmost
-                          break;
-                case 134: popNandPush(2,registerSemaphore(Squeak.splOb_TheInterruptSemaphore));
-                          break;
-                case 135: popNandPush(1,millisecondClockValue());
-                          break;
-                case 136: popNandPush(3,primitiveSignalAtMilliseconds()); //Delay signal:atMs:());
-                          break;
-                case 137: popNandPush(1,primSeconds()); //Seconds since Jan 1, 1901
-                          break;
-                case 138: popNandPush(1,primitiveSomeObject()); // Class.someInstance
-                          break;
-                case 139: popNandPush(1,primitiveNextObject(stackNonInteger(0))); // Class.someInstance
-                          break;
-                case 142: popNandPush(1, primitiveVmPath() );
-                          break;
-                case 148: popNandPush(1,((SqueakObject)vm.top()).cloneIn(image)); //imageName
-                          break;
-                case 149: popNandPush(2,vm.nilObj); //getAttribute
-                          break;
-                          
-                // File System primitives
-                case 150: popNandPush( 2, fileSystemPrimitives.fileAtEnd( argCount ) );
-                          break;
-                case 151: popNandPush( 2, fileSystemPrimitives.fileClose( argCount ) );
-                          break;
-                case 152: popNandPush( 2, fileSystemPrimitives.getPosition( argCount ) );
-                          break;
-                case 153: popNandPush( 3, fileSystemPrimitives.openWritable( argCount ) );
-                          break;
-                case 154: popNandPush( 5, fileSystemPrimitives.readIntoStartingAtCount( argCount ) );
-                          break;
-                case 155: popNandPush( 3, fileSystemPrimitives.fileSetPosition( argCount ) );
-                          break;
-                case 156: popNandPush( 2, fileSystemPrimitives.fileDelete( argCount ) );
-                          break;
-                case 157: popNandPush( 2, fileSystemPrimitives.fileSize( argCount ) );
-                          break;
-                case 158: popNandPush( 5, fileSystemPrimitives.fileWrite( argCount ) );
-                          break;
-                case 159: popNandPush( 3, fileSystemPrimitives.fileRename( argCount ) );
-                          break;
-                case 160: popNandPush( 2, fileSystemPrimitives.directoryCreate( argCount ) );
-                          break;
-                case 161: popNandPush( 1, fileSystemPrimitives.directoryDelimitor()); //path delimiter
-                          break;
-                case 162: popNandPush( 3, fileSystemPrimitives.lookupEntryInIndex( argCount ) ); //path delimiter
-                          break;
-                          
-                case 230: primitiveYield(argCount); //yield for 10ms
-                          break;
-                default: return false; 
-            }
-            return true;
+            return primitive.execute(argCount);
         }
         catch ( PrimitiveFailedException exception )
         {
@@ -380,6 +204,559 @@ class SqueakPrimitiveHandler
         }
     }
 
+    private boolean doCountedPrimitive(int index, Primitive primitive, int argCount) {
+        long start= System.nanoTime();
+        boolean success;
+        try {
+            success= primitive.execute(argCount);
+        }
+        catch ( PrimitiveFailedException exception )
+        {
+            success= false;
+        }
+        primitives.count(index, success, System.nanoTime() - start);
+        return success;
+    }
+
+    PrimitiveTable getPrimitiveTable() {
+        return primitives;
+    }
+
+    private void installPrimitives() {
+        installArithmeticPrimitives();
+        installStoragePrimitives();
+        installControlPrimitives();
+        installIOPrimitives();
+        installSystemPrimitives();
+        installFilePrimitives();
+    }
+
+    // SmallInteger and Float arithmetic
+    private void installArithmeticPrimitives() {
+        primitives.put(1, new Primitive("SmallInteger +") {
+            public boolean execute(int argCount) {
+                popNandPushInt(2,stackInteger(1)+stackInteger(0));
+                return true;
+            }});
+        primitives.put(2, new Primitive("SmallInteger -") {
+            public boolean execute(int argCount) {
+                popNandPushInt(2,stackInteger(1)-stackInteger(0));
+                return true;
+            }});
+        primitives.put(3, new Primitive("SmallInteger <") {
+            public boolean execute(int argCount) {
+                return pop2andDoBool(stackInteger(1)<stackInteger(0));
+            }});
+        primitives.put(4, new Primitive("SmallInteger >") {
+            public boolean execute(int argCount) {
+                return pop2andDoBool(stackInteger(1)>stackInteger(0));
+            }});
+        primitives.put(5, new Primitive("SmallInteger <=") {
+            public boolean execute(int argCount) {
+                return pop2andDoBool(stackInteger(1)<=stackInteger(0));
+            }});
+        primitives.put(6, new Primitive("SmallInteger >=") {
+            public boolean execute(int argCount) {
+                return pop2andDoBool(stackInteger(1)>=stackInteger(0));
+            }});
+        primitives.put(7, new Primitive("SmallInteger =") {
+            public boolean execute(int argCount) {
+                return pop2andDoBool(stackInteger(1)==stackInteger(0));
+            }});
+        primitives.put(8, new Primitive("SmallInteger ~=") {
+            public boolean execute(int argCount) {
+                return pop2andDoBool(stackInteger(1)!=stackInteger(0));
+            }});
+        primitives.put(9, new Primitive("SmallInteger *") {
+            public boolean execute(int argCount) {
+                popNandPushInt(2, safeMultiply(stackInteger(1), stackInteger(0)));
+                return true;
+            }});
+        primitives.put(10, new Primitive("SmallInteger /") {
+            public boolean execute(int argCount) {
+                popNandPushInt(2, quickDivide(stackInteger(1), stackInteger(0)));
+                return true;
+            }});
+        // 11 (SmallInteger \\) is left to the Smalltalk code
+        primitives.put(12, new Primitive("SmallInteger //") {
+            public boolean execute(int argCount) {
+                popNandPushInt(2, div(stackInteger(1), stackInteger(0)));
+                return true;
+            }});
+        primitives.put(13, new Primitive("SmallInteger quo:") {
+            public boolean execute(int argCount) {
+                popNandPushInt(2,doQuo(stackInteger(1),stackInteger(0)));
+                return true;
+            }});
+        primitives.put(14, new Primitive("SmallInteger bitAnd:") {
+            public boolean execute(int argCount) {
+                popNandPush(2,primitiveBitAnd());
+                return true;
+            }});
+        primitives.put(15, new Primitive("SmallInteger bitOr:") {
+            public boolean execute(int argCount) {
+                popNandPush(2,primitiveBitOr());
+                return true;
+            }});
+        primitives.put(16, new Primitive("SmallInteger bitXor:") {
+            public boolean execute(int argCount) {
+                popNandPush(2,primitiveBitXor());
+                return true;
+            }});
+        primitives.put(17, new Primitive("SmallInteger bitShift:") {
+            public boolean execute(int argCount) {
+                popNandPush(2,primitiveBitShift());
+                return true;
+            }});
+        primitives.put(18, new Primitive("Number @") {
+            public boolean execute(int argCount) {
+                return primitiveMakePoint();
+            }});
+        primitives.put(40, new Primitive("SmallInteger asFloat") {
+            public boolean execute(int argCount) {
+                popNandPush(1, primitiveAsFloat() );
+                return true;
+            }});
+        primitives.put(41, new Primitive("Float +") {
+            public boolean execute(int argCount) {
+                popNandPushFloat(2,stackFloat(1)+stackFloat(0));
+                return true;
+            }});
+        primitives.put(42, new Primitive("Float -") {
+            public boolean execute(int argCount) {
+                popNandPushFloat(2,stackFloat(1)-stackFloat(0));
+                return true;
+            }});
+        primitives.put(43, new Primitive("Float <") {
+            public boolean execute(int argCount) {
+                return pop2andDoBool(stackFloat(1)<stackFloat(0));
+            }});
+        primitives.put(44, new Primitive("Float >") {
+            public boolean execute(int argCount) {
+                return pop2andDoBool(stackFloat(1)>stackFloat(0));
+            }});
+        primitives.put(45, new Primitive("Float <=") {
+            public boolean execute(int argCount) {
+                return pop2andDoBool(stackFloat(1)<=stackFloat(0));
+            }});
+        primitives.put(46, new Primitive("Float >=") {
+            public boolean execute(int argCount) {
+                return pop2andDoBool(stackFloat(1)>=stackFloat(0));
+            }});
+        primitives.put(47, new Primitive("Float =") {
+            public boolean execute(int argCount) {
+                return pop2andDoBool(stackFloat(1)==stackFloat(0));
+            }});
+        primitives.put(48, new Primitive("Float ~=") {
+            public boolean execute(int argCount) {
+                return pop2andDoBool(stackFloat(1)!=stackFloat(0));
+            }});
+        primitives.put(49, new Primitive("Float *") {
+            public boolean execute(int argCount) {
+                popNandPushFloat(2,stackFloat(1)*stackFloat(0));
+                return true;
+            }});
+        primitives.put(50, new Primitive("Float /") {
+            public boolean execute(int argCount) {
+                popNandPushFloat(2,safeFDiv(stackFloat(1),stackFloat(0)));
+                return true;
+            }});
+        primitives.put(51, new Primitive("Float truncated") {
+            public boolean execute(int argCount) {
+                popNandPush( 1, primitiveTruncate() );
+                return true;
+            }});
+        primitives.put(58, new Primitive("Float ln") {
+            public boolean execute(int argCount) {
+                popNandPushFloat(1,StrictMath.log(stackFloat(0)));
+                return true;
+            }});
+    }
+
+    // Indexing, instantiation, identity and enumeration
+    private void installStoragePrimitives() {
+        primitives.put(60, new Primitive("basicAt:") {
+            public boolean execute(int argCount) {
+                popNandPush(2,primitiveAt(false,false,false));
+                return true;
+            }});
+        primitives.put(61, new Primitive("basicAt:put:") {
+            public boolean execute(int argCount) {
+                popNandPush(3,primitiveAtPut(false,false,false));
+                return true;
+            }});
+        primitives.put(62, new Primitive("size") {
+            public boolean execute(int argCount) {
+                popNandPush(1,primitiveSize());
+                return true;
+            }});
+        primitives.put(63, new Primitive("String at:") {
+            public boolean execute(int argCount) {
+                popNandPush(2,primitiveAt(false,true,false));
+                return true;
+            }});
+        primitives.put(64, new Primitive("String at:put:") {
+            public boolean execute(int argCount) {
+                popNandPush(3,primitiveAtPut(false,true,false));
+                return true;
+            }});
+        primitives.put(68, new Primitive("CompiledMethod objectAt:") {
+            public boolean execute(int argCount) {
+                popNandPush(2,primitiveAt(false,false,true));
+                return true;
+            }});
+        primitives.put(69, new Primitive("CompiledMethod objectAt:put:") {
+            public boolean execute(int argCount) {
+                popNandPush(3,primitiveAtPut(false,false,true));
+                return true;
+            }});
+        primitives.put(70, new Primitive("Behavior basicNew") {
+            public boolean execute(int argCount) {
+                popNandPush(1,vm.instantiateClass( stackNonInteger( 0 ), 0 ) );
+                return true;
+            }});
+        primitives.put(71, new Primitive("Behavior basicNew:") {
+            public boolean execute(int argCount) {
+                popNandPush(2,primitiveNewWithSize());
+                return true;
+            }});
+        primitives.put(72, new Primitive("Array elementsForwardIdentityTo:") {
+            public boolean execute(int argCount) {
+                vm.materializeContexts();
+                popNandPush(2,primitiveArrayBecome());
+                return true;
+            }});
+        primitives.put(73, new Primitive("instVarAt:") {
+            public boolean execute(int argCount) {
+                popNandPush(2,primitiveAt(false,false,true));
+                return true;
+            }});
+        primitives.put(74, new Primitive("instVarAt:put:") {
+            public boolean execute(int argCount) {
+                popNandPush(3,primitiveAtPut(false,false,true));
+                return true;
+            }});
+        primitives.put(75, new Primitive("identityHash") {
+            public boolean execute(int argCount) {
+                popNandPush(1,primitiveHash());
+                return true;
+            }});
+        primitives.put(77, new Primitive("Behavior someInstance") {
+            public boolean execute(int argCount) {
+                vm.materializeContexts();
+                popNandPush(1,primitiveSomeInstance(stackNonInteger(0)));
+                return true;
+            }});
+        primitives.put(78, new Primitive("nextInstance") {
+            public boolean execute(int argCount) {
+                vm.materializeContexts();
+                popNandPush(1,primitiveNextInstance(stackNonInteger(0)));
+                return true;
+            }});
+        primitives.put(79, new Primitive("CompiledMethod newMethod:header:") {
+            public boolean execute(int argCount) {
+                popNandPush(3,primitiveNewMethod());
+                return true;
+            }});
+        primitives.put(105, new Primitive("replaceFrom:to:with:startingAt:") {
+            public boolean execute(int argCount) {
+                popNandPush(5,primitiveStringReplace());
+                return true;
+            }});
+        primitives.put(110, new Primitive("==") {
+            public boolean execute(int argCount) {
+                popNandPush(2,(vm.stackValue(1) == vm.stackValue(0))? vm.getTrueObj() : vm.getFalseObj());
+                return true;
+            }});
+        primitives.put(128, new Primitive("Array elementsExchangeIdentityWith:") {
+            public boolean execute(int argCount) {
+                vm.materializeContexts();
+                popNandPush(2,primitiveArrayBecomeBothWays());
+                return true;
+            }});
+        primitives.put(138, new Primitive("someObject") {
+            public boolean execute(int argCount) {
+                vm.materializeContexts();
+                popNandPush(1,primitiveSomeObject());
+                return true;
+            }});
+        primitives.put(139, new Primitive("nextObject") {
+            public boolean execute(int argCount) {
+                vm.materializeContexts();
+                popNandPush(1,primitiveNextObject(stackNonInteger(0)));
+                return true;
+            }});
+        primitives.put(148, new Primitive("clone") {
+            public boolean execute(int argCount) {
+                popNandPush(1,((SqueakObject)vm.top()).cloneIn(image));
+                return true;
+            }});
+    }
+
+    // Blocks, perform, processes and method caches
+    private void installControlPrimitives() {
+        primitives.put(80, new Primitive("ContextPart blockCopy:") {
+            public boolean execute(int argCount) {
+                popNandPush(2,primitiveBlockCopy());
+                return true;
+            }});
+        primitives.put(81, new Primitive("BlockContext value") {
+            public boolean execute(int argCount) {
+                primitiveBlockValue(argCount);
+                return true;
+            }});
+        primitives.put(83, new Primitive("perform:") {
+            public boolean execute(int argCount) {
+                return vm.primitivePerform(argCount);
+            }});
+        primitives.put(84, new Primitive("perform:withArguments:") {
+            public boolean execute(int argCount) {
+                return vm.primitivePerformWithArgs(vm.getClass(vm.stackValue(2)));
+            }});
+        primitives.put(85, new Primitive("Semaphore signal") {
+            public boolean execute(int argCount) {
+                semaphoreSignal();
+                return true;
+            }});
+        primitives.put(86, new Primitive("Semaphore wait") {
+            public boolean execute(int argCount) {
+                semaphoreWait();
+                return true;
+            }});
+        primitives.put(87, new Primitive("Process resume") {
+            public boolean execute(int argCount) {
+                processResume();
+                return true;
+            }});
+        primitives.put(88, new Primitive("Process suspend") {
+            public boolean execute(int argCount) {
+                processSuspend();
+                return true;
+            }});
+        primitives.put(89, new Primitive("flushCache") {
+            public boolean execute(int argCount) {
+                return vm.clearMethodCache();
+            }});
+        primitives.put(100, new Primitive("perform:withArguments:inSuperclass:") {
+            public boolean execute(int argCount) {
+                return vm.primitivePerformInSuperclass((SqueakObject)vm.top());
+            }});
+        primitives.put(116, new Primitive("CompiledMethod flushCache") {
+            public boolean execute(int argCount) {
+                return vm.flushMethodCacheForMethod((SqueakObject)vm.top());
+            }});
+        primitives.put(119, new Primitive("Symbol flushCache") {
+            public boolean execute(int argCount) {
+                return vm.flushMethodCacheForSelector((SqueakObject)vm.top());
+            }});
+        primitives.put(230, new Primitive("relinquishProcessor") {
+            public boolean execute(int argCount) {
+                primitiveYield(argCount);
+                return true;
+            }});
+    }
+
+    // Display, cursor, sensor and clocks
+    private void installIOPrimitives() {
+        primitives.put(90, new Primitive("Sensor mousePoint") {
+            public boolean execute(int argCount) {
+                popNandPush(1,primitiveMousePoint());
+                return true;
+            }});
+        primitives.put(96, new Primitive("BitBlt copyBits") {
+            public boolean execute(int argCount) {
+                if (argCount==0)
+                    primitiveCopyBits((SqueakObject)vm.top(),0);
+                else
+                    primitiveCopyBits((SqueakObject)vm.stackValue(1),1);
+                return true;
+            }});
+        primitives.put(101, new Primitive("Cursor beCursor") {
+            public boolean execute(int argCount) {
+                beCursor(argCount);
+                return true;
+            }});
+        primitives.put(102, new Primitive("DisplayScreen beDisplay") {
+            public boolean execute(int argCount) {
+                beDisplay((SqueakObject)vm.top());
+                return true;
+            }});
+        primitives.put(106, new Primitive("DisplayScreen actualScreenSize") {
+            public boolean execute(int argCount) {
+                popNandPush(1,makePointWithXandY(SqueakVM.smallFromInt(640),SqueakVM.smallFromInt(480))); // FIXME: Use real size
+                return true;
+            }});
+        primitives.put(107, new Primitive("Sensor mouseButtons") {
+            public boolean execute(int argCount) {
+                popNandPush(1,primitiveMouseButtons());
+                return true;
+            }});
+        primitives.put(108, new Primitive("Sensor kbdNext") {
+            public boolean execute(int argCount) {
+                popNandPush(1,primitiveKbdNext());
+                return true;
+            }});
+        primitives.put(109, new Primitive("Sensor kbdPeek") {
+            public boolean execute(int argCount) {
+                popNandPush(1,primitiveKbdPeek());
+                return true;
+            }});
+        primitives.put(122, new Primitive("DisplayScreen reverse") {
+            public boolean execute(int argCount) {
+                BWMask= ~BWMask;
+                return true;
+            }});
+        primitives.put(135, new Primitive("millisecondClock") {
+            public boolean execute(int argCount) {
+                popNandPush(1,millisecondClockValue());
+                return true;
+            }});
+        primitives.put(136, new Primitive("Delay signal:atMilliseconds:") {
+            public boolean execute(int argCount) {
+                popNandPush(3,primitiveSignalAtMilliseconds());
+                return true;
+            }});
+        primitives.put(137, new Primitive("secondsClock") {
+            public boolean execute(int argCount) {
+                popNandPush(1,primSeconds());
+                return true;
+            }});
+    }
+
+    // Memory, snapshot and the image
+    private void installSystemPrimitives() {
+        primitives.put(97, new Primitive("snapshot") {
+            public boolean execute(int argCount) {
+                vm.materializeContexts();
+                primitiveSnapshot();
+                return true;
+            }});
+        primitives.put(112, new Primitive("bytesLeft") {
+            public boolean execute(int argCount) {
+                popNandPush(1,SqueakVM.smallFromInt(image.spaceLeft()));
+                return true;
+            }});
+        primitives.put(113, new Primitive("quit") {
+            public boolean execute(int argCount) {
+                System.exit(0);
+                return true;
+            }});
+        primitives.put(121, new Primitive("imageName") {
+            public boolean execute(int argCount) {
+                popNandPush(argCount+1, primitiveImageFileName( argCount  ) );
+                return true;
+            }});
+        primitives.put(124, new Primitive("lowSpaceSemaphore:") {
+            public boolean execute(int argCount) {
+                popNandPush(2,registerSemaphore(Squeak.splOb_TheLowSpaceSemaphore));
+                return true;
+            }});
+        primitives.put(125, new Primitive("signalAtBytesLeft:") {
+            public boolean execute(int argCount) {
+                popNandPush(2,setLowSpaceThreshold());
+                return true;
+            }});
+        primitives.put(129, new Primitive("specialObjectsArray") {
+            public boolean execute(int argCount) {
+                popNandPush(1,image.getSpecialObjectsArray());
+                return true;
+            }});
+        primitives.put(130, new Primitive("garbageCollect") {
+            public boolean execute(int argCount) {
+                popNandPush(1,SqueakVM.smallFromInt(image.fullGC()));
+                return true;
+            }});
+        primitives.put(131, new Primitive("incrementalGarbageCollect") {
+            public boolean execute(int argCount) {
+                popNandPush(1,SqueakVM.smallFromInt(image.partialGC()));
+                return true;
+            }});
+        primitives.put(134, new Primitive("interruptSemaphore:") {
+            public boolean execute(int argCount) {
+                popNandPush(2,registerSemaphore(Squeak.splOb_TheInterruptSemaphore));
+                return true;
+            }});
+        primitives.put(142, new Primitive("vmPath") {
+            public boolean execute(int argCount) {
+                popNandPush(1, primitiveVmPath() );
+                return true;
+            }});
+        primitives.put(149, new Primitive("getSystemAttribute:") {
+            public boolean execute(int argCount) {
+                popNandPush(2,vm.nilObj);
+                return true;
+            }});
+    }
+
+    // Files and directories
+    private void installFilePrimitives() {
+        primitives.put(150, new Primitive("File atEnd") {
+            public boolean execute(int argCount) {
+                popNandPush( 2, fileSystemPrimitives.fileAtEnd( argCount ) );
+                return true;
+            }});
+        primitives.put(151, new Primitive("File close") {
+            public boolean execute(int argCount) {
+                popNandPush( 2, fileSystemPrimitives.fileClose( argCount ) );
+                return true;
+            }});
+        primitives.put(152, new Primitive("File getPosition") {
+            public boolean execute(int argCount) {
+                popNandPush( 2, fileSystemPrimitives.getPosition( argCount ) );
+                return true;
+            }});
+        primitives.put(153, new Primitive("File open:writable:") {
+            public boolean execute(int argCount) {
+                popNandPush( 3, fileSystemPrimitives.openWritable( argCount ) );
+                return true;
+            }});
+        primitives.put(154, new Primitive("File read:into:startingAt:count:") {
+            public boolean execute(int argCount) {
+                popNandPush( 5, fileSystemPrimitives.readIntoStartingAtCount( argCount ) );
+                return true;
+            }});
+        primitives.put(155, new Primitive("File setPosition:") {
+            public boolean execute(int argCount) {
+                popNandPush( 3, fileSystemPrimitives.fileSetPosition( argCount ) );
+                return true;
+            }});
+        primitives.put(156, new Primitive("File delete") {
+            public boolean execute(int argCount) {
+                popNandPush( 2, fileSystemPrimitives.fileDelete( argCount ) );
+                return true;
+            }});
+        primitives.put(157, new Primitive("File size") {
+            public boolean execute(int argCount) {
+                popNandPush( 2, fileSystemPrimitives.fileSize( argCount ) );
+                return true;
+            }});
+        primitives.put(158, new Primitive("File write:from:startingAt:count:") {
+            public boolean execute(int argCount) {
+                popNandPush( 5, fileSystemPrimitives.fileWrite( argCount ) );
+                return true;
+            }});
+        primitives.put(159, new Primitive("File rename:") {
+            public boolean execute(int argCount) {
+                popNandPush( 3, fileSystemPrimitives.fileRename( argCount ) );
+                return true;
+            }});
+        primitives.put(160, new Primitive("Directory create") {
+            public boolean execute(int argCount) {
+                popNandPush( 2, fileSystemPrimitives.directoryCreate( argCount ) );
+                return true;
+            }});
+        primitives.put(161, new Primitive("Directory delimiter") {
+            public boolean execute(int argCount) {
+                popNandPush( 1, fileSystemPrimitives.directoryDelimitor());
+                return true;
+            }});
+        primitives.put(162, new Primitive("Directory lookupEntry:index:") {
+            public boolean execute(int argCount) {
+                popNandPush( 3, fileSystemPrimitives.lookupEntryInIndex( argCount ) );
+                return true;
+            }});
+    }
+
     /**
      * snapshotPrimitive
      *    "Primitive. Write the current state of the object memory on a file in the
@@ -391,13 +768,20 @@ class SqueakPrimitiveHandler
      *     ^nil "indicates error writing image file"
      */
     private void primitiveSnapshot() {
-        System.out.println( "Saving the image" );
+        // As in Squeak, the saved image resumes with true, this one goes on with false
+        Object rcvr= vm.pop();
+        vm.push(vm.getTrueObj());
+        vm.storeContextRegisters();
+        SqueakObject activeProc= getScheduler().getPointerNI(Squeak.ProcSched_activeProcess);
+        activeProc.setPointer(Squeak.Proc_suspendedContext, vm.getActiveContext());
         try {
-            vm.getImage().save( new File( "/tmp/image.gz" ) );
+            vm.getImage().save( vm.getImage().imageFile() );
         } catch ( IOException e ) {
             e.printStackTrace();
+            vm.popNandPush(1, rcvr);
             throw PrimitiveFailed;
         }
+        vm.popNandPush(1, vm.getFalseObj());
     }
     
     /**
@@ -411,8 +795,13 @@ class SqueakPrimitiveHandler
         if ( argCount == 0 )
             return makeStString( vm.getImage().imageFile().getAbsolutePath() );
         
-        if ( argCount == 1 )
-            new Exception( "Cannot set the image name yet, argument is '" + stackNonInteger( 0 ) + "'" ).printStackTrace();
+        if ( argCount == 1 ) {
+            SqueakObject name= stackNonInteger( 0 );
+            if ( !(name.getBits() instanceof byte[]) )
+                throw PrimitiveFailed;
+            vm.getImage().setImageFile( new File( name.asString() ) );
+            return vm.stackValue( 1 );
+        }
 
         throw PrimitiveFailed;
     }
@@ -520,18 +909,19 @@ class SqueakPrimitiveHandler
 
         byte[] bytes= (byte[])((SqueakObject)stackVal).getBits();
         int value= 0;
-        for(int i=0; i<4; i++)
-            value= value + ((bytes[i]&255)<<(8*i));
+        for(int i=0; i<bytes.length; i++) {
+            if (i >= 4) {
+                if (bytes[i] != 0)
+                    throw PrimitiveFailed; // more than 32 bits
+            } else
+                value= value + ((bytes[i]&255)<<(8*i));
+        }
         return value; 
     }
 
     Object pos32BitIntFor( long pos32Val ) {
-        if ( pos32Val < Integer.MIN_VALUE ||
-             pos32Val > Integer.MAX_VALUE )
-        {
-            new Exception( "long to int overflow" ).printStackTrace();
+        if ( pos32Val < 0 || pos32Val > 0xFFFFFFFFL )
             throw PrimitiveFailed;
-        }
         
         return pos32BitIntFor( (int) pos32Val ); 
     }
@@ -601,14 +991,11 @@ class SqueakPrimitiveHandler
         if ( !(-1073741824.0 <= floatVal) && (floatVal <= 1073741823.0)) 
             throw PrimitiveFailed;
         
-        return SqueakVM.smallFromInt( (new Double(floatVal)).intValue()); //**must be a better way  Probably Math.round()?
+        return SqueakVM.smallFromInt( (int) floatVal); //truncates toward zero, as Double.intValue() does
     }
             
     private SqueakObject makeFloat(double value) {
-        SqueakObject floatClass= vm.getSpecialObject(Squeak.splOb_ClassFloat);
-        SqueakObject newFloat= vm.instantiateClass(floatClass,-1);
-        newFloat.setFloatBits(value);
-        return newFloat; 
+        return vm.makeFloat(value); 
     }
     
     boolean primitiveMakePoint() {
@@ -742,6 +1129,8 @@ class SqueakPrimitiveHandler
         }
         if (index<1 || index>info.size)
             throw PrimitiveFailed;
+        if (array instanceof CompiledMethodObject)
+            ((CompiledMethodObject)array).dropTranslation(); // literals or bytecodes change; retranslate
 
         Object objToPut= vm.stackValue(0);
         if (includeInstVars) {
@@ -759,7 +1148,7 @@ class SqueakPrimitiveHandler
             // words...
             intToPut= stackPos32BitValue(0);
 
-            ((int[])array.getBits())[index-1]= intToPut;
+            ((int[])array.getBitsForWrite())[index-1]= intToPut;
             return objToPut; 
         }
         // bytes...
@@ -789,7 +1178,7 @@ class SqueakPrimitiveHandler
 
         if (array.format<8) {
             // bytes...
-            ((byte[])array.getBits())[index-1]= (byte)intToPut;
+            ((byte[])array.getBitsForWrite())[index-1]= (byte)intToPut;
             return objToPut; 
         }
         // methods (format>=12) must simulate Squeak's method indexing
@@ -797,7 +1186,7 @@ class SqueakPrimitiveHandler
         if (index-1-offset < 0)
             throw PrimitiveFailed;   //writing lits as bytes 
 
-        ((byte[])array.getBits())[index-1-offset]= (byte)intToPut;
+        ((byte[])array.getBitsForWrite())[index-1-offset]= (byte)intToPut;
         return objToPut; 
     }
     
@@ -819,11 +1208,11 @@ class SqueakPrimitiveHandler
     }
     
     private SqueakObject primitiveStringReplace() {
-        SqueakObject dst= (SqueakObject)vm.stackValue(4);
+        SqueakObject dst= stackNonInteger(4);
         int dstPos= stackInteger(3)-1;
         int count= stackInteger(2) - dstPos;
         //  if (count<=0) {success= false; return dst; } //fail for compat, later succeed
-        SqueakObject src= (SqueakObject)vm.stackValue(1);
+        SqueakObject src= stackNonInteger(1);
         int srcPos= stackInteger(0)-1;
         short srcFmt= src.format;
         short dstFmt= dst.format;
@@ -832,6 +1221,8 @@ class SqueakPrimitiveHandler
                 throw PrimitiveFailed;
             else if ((dstFmt&0xC) != (srcFmt&0xC)) //incompatible formats
                 throw PrimitiveFailed;
+        if (dst instanceof CompiledMethodObject)
+            ((CompiledMethodObject)dst).dropTranslation(); // bytecodes change; retranslate
         if (srcFmt<4) {
             //pointer type objects
             int totalLength= src.pointersSize();
@@ -846,7 +1237,8 @@ class SqueakPrimitiveHandler
             if ((dstPos < 0) || (dstPos + count) > totalLength)  //would go out of bounds
                 throw PrimitiveFailed;
             
-            System.arraycopy(src.pointers, srcPos, dst.pointers, dstPos, count);
+            System.arraycopy(src.getPointers(), srcPos, dst.getPointers(), dstPos, count);
+            dst.markDirty();
             return dst; 
         } else {
             //bits type objects
@@ -856,7 +1248,7 @@ class SqueakPrimitiveHandler
             totalLength= dst.bitsSize();
             if ((dstPos < 0) || (dstPos + count) > totalLength)  //would go out of bounds
                 throw PrimitiveFailed;
-            System.arraycopy(src.getBits(), srcPos, dst.getBits(), dstPos, count);
+            System.arraycopy(src.getBits(), srcPos, dst.getBitsForWrite(), dstPos, count);
             return dst; 
         }
     }
@@ -866,7 +1258,7 @@ class SqueakPrimitiveHandler
         // Otherwise failure will lead to proper message lookup of at: and
         // subsequent installation in the cache if appropriate."
         SqueakObject stream= stackNonInteger(0);
-        Object[] streamBody= stream.pointers;
+        Object[] streamBody= stream.getPointers();
         if (streamBody == null || streamBody.length < (Squeak.Stream_limit+1))
             return false;
         Object array= streamBody[Squeak.Stream_array];
@@ -892,6 +1284,7 @@ class SqueakPrimitiveHandler
     }
     
     private SqueakObject primitiveBlockCopy() {
+        vm.materializeContexts(); // the block makes its home and senders reachable
         Object rcvr= vm.stackValue(1);
         if (SqueakVM.isSmallInt(rcvr))
             throw PrimitiveFailed;
@@ -936,7 +1329,7 @@ class SqueakPrimitiveHandler
         System.arraycopy((Object)vm.getActiveContext().pointers,vm.getSp()-argCount+1,(Object)block.pointers,Squeak.CONTEXT_TEMP_FRAME_START,argCount);
         Integer initialIP= block.getPointerI(Squeak.BLOCK_CONTEXT_INITIAL_IP);
         block.setPointer(Squeak.CONTEXT_INSTRUCTION_POINTER,initialIP);
-        block.setPointer(Squeak.CONTEXT_STACK_POINTER,new Integer(argCount));
+        block.setPointer(Squeak.CONTEXT_STACK_POINTER,SqueakVM.smallFromInt(argCount));
         block.setPointer(Squeak.BLOCK_CONTEXT_CALLER,vm.getActiveContext());
         vm.popN(argCount+1);
         vm.newActiveContext(block);
@@ -947,7 +1340,7 @@ class SqueakPrimitiveHandler
         if (SqueakVM.isSmallInt(rcvr))
             throw PrimitiveFailed;
 
-        return new Integer(((SqueakObject)rcvr).getHash()); 
+        return SqueakVM.smallFromInt(((SqueakObject)rcvr).getHash()); 
     }
     
     private Object setLowSpaceThreshold() {
@@ -1049,6 +1442,7 @@ class SqueakPrimitiveHandler
         //Record a process to be awakened on the next interpreter cycle.
         SqueakObject sched=  getScheduler();
         SqueakObject oldProc= sched.getPointerNI(Squeak.ProcSched_activeProcess);
+        vm.materializeContexts();
         sched.setPointer(Squeak.ProcSched_activeProcess,newProc);
         oldProc.setPointer(Squeak.Proc_suspendedContext,vm.getActiveContext());
         //int prio= vm.intFromSmall((Integer)newProc.pointers[Squeak.Proc_priority]);
@@ -1142,7 +1536,7 @@ class SqueakPrimitiveHandler
         //Note that the millisecond clock wraps around periodically.
         //The range is limited to SmallInteger maxVal / 2 to allow
         //delays of up to that length without overflowing a SmallInteger."
-        return SqueakVM.smallFromInt(((int) (System.currentTimeMillis() & (long)(SqueakVM.MAX_SMALL_INT>>1)))); 
+        return SqueakVM.smallFromInt(SqueakVM.millisecondClock()); 
     }
     
     private void beDisplay(SqueakObject displayObj) {
@@ -1150,7 +1544,7 @@ class SqueakPrimitiveHandler
         if (disp.getSqueakForm()==null) 
             throw PrimitiveFailed;
         vm.setSpecialObject(Squeak.splOb_TheDisplay,displayObj);
-        displayBitmap= disp.getBits();
+        displayBitmap= (int[]) ((SqueakObject) displayObj.getPointer(0)).getBitsForWrite(); //BitBlt writes it in place, so unshare it now
         boolean remap= theDisplay != null;
         if (remap) {
             Dimension requestedExtent= new Dimension(disp.getWidth(), disp.getHeight());
@@ -1162,7 +1556,8 @@ class SqueakPrimitiveHandler
             theDisplay= screenFactory.createScreen("Squeak", 
             		disp.getWidth(),disp.getHeight(),disp.getDepth(),
             		vm, theKeyboard);
-            theDisplay.getFrame().addWindowListener(new WindowAdapter() {
+            if (theDisplay.getFrame() != null) // no frame when headless
+                theDisplay.getFrame().addWindowListener(new WindowAdapter() {
 		                public void windowClosing(WindowEvent evt) 
 		                {
 		                    // TODO ask before shutdown
@@ -1229,10 +1624,11 @@ class SqueakPrimitiveHandler
         // try { synchronized (vm) { vm.wait(); }
         //         } catch (InterruptedException e) { }
         // TODO how to handle third-party interruptions?
+        vm.idle();
         try {
             synchronized(vm) 
             {
-                while(!vm.isScreenEvent()) vm.wait(millis);
+                while(!vm.isScreenEvent() && !vm.isInterruptCheckNeeded()) vm.wait(millis);
             } 
         }
         catch(InterruptedException e) {}
@@ -1308,13 +1704,15 @@ class SqueakPrimitiveHandler
     private SqueakObject primitiveMousePoint() {
         SqueakObject pointClass= (SqueakObject)vm.getSpecialObject(Squeak.splOb_ClassPoint);
         SqueakObject newPoint= vm.instantiateClass(pointClass,0);
-        Point lastMouse= theDisplay.getLastMousePoint();
+        Point lastMouse= theDisplay == null ? new Point(0,0) : theDisplay.getLastMousePoint();
         newPoint.setPointer(Squeak.POINT_X,SqueakVM.smallFromInt(lastMouse.x));
         newPoint.setPointer(Squeak.POINT_Y,SqueakVM.smallFromInt(lastMouse.y));
         return newPoint; 
     }
     
     private Integer primitiveMouseButtons() {
+        if (theDisplay == null) 
+            return SqueakVM.smallFromInt(0);
         return SqueakVM.smallFromInt(theDisplay.getLastMouseButtonStatus()); 
     }
     
@@ -1330,12 +1728,12 @@ class SqueakPrimitiveHandler
     }
     
     private SqueakObject primitiveArrayBecome() {
-        // Should flush method cache
+        // The image has the VM flush its caches for the objects involved
         SqueakObject rcvr= stackNonInteger(1);
         SqueakObject arg= stackNonInteger(0);
         
         try { 
-        	image.bulkMutate(rcvr.pointers, arg.pointers); 
+        	image.bulkMutate(rcvr.getPointers(), arg.getPointers()); 
             return rcvr;    
         } catch (RuntimeException e) {
         	throw PrimitiveFailed;
@@ -1343,12 +1741,12 @@ class SqueakPrimitiveHandler
     }
     
     private SqueakObject primitiveArrayBecomeBothWays() {
-        // Should flush method cache
+        // The image has the VM flush its caches for the objects involved
         SqueakObject rcvr= stackNonInteger(1);
         SqueakObject arg= stackNonInteger(0);
         
         try {
-        	image.bulkMutateTwoWay(rcvr.pointers, arg.pointers);
+        	image.bulkMutateTwoWay(rcvr.getPointers(), arg.getPointers());
             return rcvr;    
         } catch (RuntimeException e) {
         	throw PrimitiveFailed;
@@ -1407,4 +1805,8 @@ class SqueakPrimitiveHandler
 	public void clearAtCache() {
 		atCache.clearAtCache();
 	}
+
+	void flushAtCacheForBecome(BecomeCheck check) {
+		atCache.flushAtCacheForBecome(check);
+	}
 }
\ No newline at end of file
@@ -25,8 +25,16 @@ package jsqueak.vm;
 
 import static jsqueak.vm.SqueakMath.*;
 
+import java.io.File;
 import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.PrintStream;
 import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
 
 import jsqueak.Squeak;
 import jsqueak.display.ScreenFactory;
@@ -41,6 +49,7 @@ import jsqueak.monitor.Monitor;
  */
 public class SqueakVM {
     private static final int MAX_STACK_DEPTH = 100;
+    private static final int MAX_FRAMES = 1024;
 	private static final int MAX_COUNTER = 100000;
 	// static state:
     private SqueakImage image;
@@ -54,32 +63,54 @@ public class SqueakVM {
     // dynamic state:
     Object receiver= nilObj;
     private SqueakObject activeContext= nilObj;
+    private Object[] activeStack; // pointers of activeContext
     SqueakObject homeContext= nilObj;
+    private Object[] homeFrame; // pointers of homeContext; contexts are never lazy
+    private Object[] receiverFields; // pointers of receiver, materialized on activation; null for a SmallInteger
     private int sp;
     private SqueakObject method= nilObj;
     byte[] methodBytes;
     private int pc;
+    private DecodedMethod decoded; // translation of method, only maintained when threadedCode is on
     private boolean success;
     private SqueakObject freeContexts;
     private SqueakObject freeLargeContexts;
     private int reclaimableContextCount; //Not #available, but how far down the current stack is recyclable
+    // Frame stack: suspended senders whose pc and sp are kept here instead of in their contexts
+    private SqueakObject[] frameContexts= new SqueakObject[MAX_FRAMES];
+    private int[] framePcs= new int[MAX_FRAMES];
+    private int[] frameSps= new int[MAX_FRAMES];
+    private int frameCount;
+    private boolean activeUnstored; // activeContext's pc and sp were never stored, so the image has not seen it
     private SqueakObject verifyAtSelector;
     private SqueakObject verifyAtClass;
     
     private boolean screenEvent = false;
+    private boolean threadedCode = false;
+    private int translationEpoch = 0; // bumped to invalidate all DecodedMethods
+    private boolean inlineCaching = true;
+    private int inlineCacheEpoch = 0; // bumped to empty all InlineCaches
+    private boolean tieredCompilation = false;
+    private int compileThreshold = 1000;
+    private boolean superinstructions = false;
+    private BytecodeProfile bytecodeProfile; // only while profiling
+    private double floatRcvr, floatArg; // operands of the Float fast path, see floatOperands()
     
-    private int lowSpaceThreshold;
-    private int interruptCheckCounter;
-    private int interruptCheckCounterFeedBackReset;
-    private int interruptChecksEveryNms;
+    private volatile int lowSpaceThreshold; // read by the Ticker too
+    private int lastLowSpaceCollection; // when a low reading was last checked by collecting
+    private volatile boolean interruptCheckNeeded; // set by the Ticker and other threads
+    private Ticker ticker;
     private int nextPollTick;
-    private int nextWakeupTick;
+    private volatile int nextWakeupTick;
     private int lastTick;
     private int interruptKeycode;
-    private boolean interruptPending;
-    private boolean semaphoresUseBufferA;
-    private int semaphoresToSignalCountA;
-    private int semaphoresToSignalCountB;
+    private volatile boolean interruptPending;
+    private final Queue<Integer> externalSignals= new ConcurrentLinkedQueue<Integer>();
+    private SqueakObject stopContext; // run() ends when a return reaches it, see perform()
+    private SqueakObject stopProcess; // the Process stopContext runs in
+    private String notUnderstood; // the first send perform() ran into that was not understood
+    private final Map<String,SqueakObject> symbols= new HashMap<String,SqueakObject>();
+    private TranscriptPrimitive transcript; // once setTranscript() patched the image
     private boolean deferDisplayUpdates;
     private int pendingFinalizationSignals;
     
@@ -87,6 +118,15 @@ public class SqueakVM {
 	public static final int MAX_SMALL_INT =  0x3FFFFFFF;
 	public static final int MIN_SMALL_INT = -0x40000000;
 	public static final int MILLISECOND_CLOCK_MASK = MAX_SMALL_INT>>1; //keeps ms logic in small int range
+	// Preallocated boxes, so loop counters and indexes past Integer.valueOf's
+	// -128..127 do not allocate; covers 64k indexes and the 16-bit bitmap words
+	private static final int MIN_CACHED_SMALL_INT = -1024;
+	private static final int MAX_CACHED_SMALL_INT = 0xFFFF;
+	private static final Integer[] SMALL_INTS = new Integer[MAX_CACHED_SMALL_INT - MIN_CACHED_SMALL_INT + 1];
+	static {
+		for (int i = 0; i < SMALL_INTS.length; i++)
+			SMALL_INTS[i] = Integer.valueOf(i + MIN_CACHED_SMALL_INT);
+	}
     
     int byteCount= 0;
     FileInputStream byteTracker;
@@ -121,12 +161,12 @@ public class SqueakVM {
     
 	private void loadImageState() {
 		SqueakObject specialObjectsArray = getImage().getSpecialObjectsArray();
-		specialObjects = specialObjectsArray.pointers;
+		specialObjects = specialObjectsArray.getPointers();
 		nilObj = getSpecialObject(Squeak.splOb_NilObject);
 		falseObj = getSpecialObject(Squeak.splOb_FalseObject);
 		trueObj = getSpecialObject(Squeak.splOb_TrueObject);
 		SqueakObject ssObj = getSpecialObject(Squeak.splOb_SpecialSelectors);
-		specialSelectors = ssObj.pointers;
+		specialSelectors = ssObj.getPointers();
 	}
 
 	public SqueakObject getSpecialObject(int zeroBasedIndex) {
@@ -142,17 +182,12 @@ public class SqueakVM {
 	}
 	
 	private void initVMState() {
-		interruptCheckCounter = 0;
-		interruptCheckCounterFeedBackReset = 1000;
-		interruptChecksEveryNms = 3;
+		interruptCheckNeeded = false;
 		nextPollTick = 0;
 		setNextWakeupTick(0);
 		lastTick = 0;
 		interruptKeycode = 2094; // "cmd-."
 		interruptPending = false;
-		semaphoresUseBufferA = true;
-		semaphoresToSignalCountA = 0;
-		semaphoresToSignalCountB = 0;
 		deferDisplayUpdates = false;
 		pendingFinalizationSignals = 0;
 		freeContexts = nilObj;
@@ -166,6 +201,7 @@ public class SqueakVM {
 		SqueakObject sched = schedAssn.getPointerNI(Squeak.Assn_value);
 		SqueakObject proc = sched.getPointerNI(Squeak.ProcSched_activeProcess);
 		activeContext = proc.getPointerNI(Squeak.Proc_suspendedContext);
+		activeStack = activeContext.getPointers();
 		fetchContextRegisters(getActiveContext());
 		setReclaimableContextCount(0);
 	}
@@ -173,6 +209,7 @@ public class SqueakVM {
 	public void newActiveContext(SqueakObject newContext) {
 		storeContextRegisters();
 		activeContext = newContext; // We're off and running...
+		activeStack = newContext.getPointers();
 		fetchContextRegisters(newContext);
 	}
         
@@ -189,15 +226,56 @@ public class SqueakVM {
 			// meth= meth; // <-- break here
 			homeContext = (SqueakObject) ctxt;
 		}
-		receiver = homeContext.getPointer(Squeak.CONTEXT_RECEIVER);
+		homeFrame = homeContext.getPointers();
+		receiver = homeFrame[Squeak.CONTEXT_RECEIVER];
+		receiverFields = fieldsOf(receiver);
 		method = (SqueakObject) meth;
-		methodBytes = getMethod().getBitsAsMethodBytes();
+		if (threadedCode) {
+			decoded = decodedMethodFor(method);
+			methodBytes = decoded.bytes;
+		} else
+			methodBytes = getMethod().getBitsAsMethodBytes();
+		if (frameCount > 0 && frameContexts[frameCount - 1] == ctxt) {
+			// returning into a sender on the frame stack
+			frameCount--;
+			frameContexts[frameCount] = null;
+			pc = framePcs[frameCount];
+			sp = frameSps[frameCount];
+			activeUnstored = true;
+			return;
+		}
+		activeUnstored = false;
 		pc = decodeSqueakPC(
 				ctxt.getPointerI(Squeak.CONTEXT_INSTRUCTION_POINTER), method);
 		if (getPc() < -1)
 			dumpStack();
 		sp = decodeSqueakSP(ctxt.getPointerI(Squeak.CONTEXT_STACK_POINTER));
 	}
+
+	/**
+	 * Stores the registers of all senders on the frame stack into their
+	 * contexts.  Must happen before the image can reach those contexts.
+	 */
+	private void flushFrames() {
+		for (int i = 0; i < frameCount; i++) {
+			SqueakObject ctxt = frameContexts[i];
+			ctxt.setPointer(Squeak.CONTEXT_INSTRUCTION_POINTER, encodeSqueakPC(
+					framePcs[i], ctxt.getPointerNI(Squeak.CONTEXT_METHOD)));
+			ctxt.setPointer(Squeak.CONTEXT_STACK_POINTER, encodeSqueakSP(frameSps[i]));
+			frameContexts[i] = null;
+		}
+		frameCount = 0;
+	}
+
+	/**
+	 * Makes the active context and all its senders real: called wherever
+	 * the image may look at contexts (thisContext, blockCopy:, process
+	 * switches, object enumeration, become and snapshot).
+	 */
+	public void materializeContexts() {
+		flushFrames();
+		storeContextRegisters();
+	}
     
 	public void storeContextRegisters() {
 		// Save pc, sp into activeContext object, prior to change of context
@@ -208,6 +286,7 @@ public class SqueakVM {
 				encodeSqueakPC(getPc(), getMethod()));
 		getActiveContext().setPointer(Squeak.CONTEXT_STACK_POINTER,
 				encodeSqueakSP(getSp()));
+		activeUnstored = false;
 	}
     
 	public Integer encodeSqueakPC(int intPC, SqueakObject aMethod) {
@@ -237,6 +316,8 @@ public class SqueakVM {
 	}
     
 	public static Integer smallFromInt(int raw) {
+		if (raw >= MIN_CACHED_SMALL_INT && raw <= MAX_CACHED_SMALL_INT)
+			return SMALL_INTS[raw - MIN_CACHED_SMALL_INT];
 		if (canBeSmallInt(raw))
 			return Integer.valueOf(raw);
 		else
@@ -276,7 +357,7 @@ public class SqueakVM {
     
     public Object pop() {
         //Note leaves garbage above SP.  Serious reclaim should store nils above SP
-        return getActiveContext().getPointer(sp--);
+        return activeStack[sp--];
     }
     
     public void popN(int nToPop) {
@@ -284,20 +365,20 @@ public class SqueakVM {
     }
     
     public void push(Object oop) {
-        getActiveContext().setPointer(++sp,oop);
+        activeStack[++sp]= oop;
     }
     
     public void popNandPush(int nToPop, Object oop) {
 	    sp -= nToPop-1;
-        getActiveContext().setPointer(sp,oop);
+        activeStack[sp]= oop;
     }
     
     public Object top() {
-        return getActiveContext().getPointer(getSp());
+        return activeStack[sp];
     }
     
     public Object stackValue(int depthIntoStack) {
-        return getActiveContext().getPointer(getSp()-depthIntoStack);
+        return activeStack[sp-depthIntoStack];
     }
     
     // INNER BYTECODE INTERPRETER:
@@ -306,6 +387,21 @@ public class SqueakVM {
     }
     
     public void run() throws java.io.IOException {
+    	// First writes to registered objects on this thread go to the image's set
+    	RememberedSet priorSet = RememberedSet.bind(image.getRememberedSet());
+    	try {
+    		startTicker();
+    		if (threadedCode)
+    			runDecoded();
+    		else
+    			runBytes();
+    	}
+    	finally {
+    		RememberedSet.bind(priorSet);
+    	}
+    }
+
+    private void runBytes() {
     	long masterCounter = 0;  
     	long counter = MAX_COUNTER;
     	monitor.logMessage("Entered the main RUN LOOP");
@@ -327,12 +423,12 @@ public class SqueakVM {
               // load receiver variable
               case 0: case 1: case 2: case 3: case 4: case 5: case 6: case 7: 
               case 8: case 9: case 10: case 11: case 12: case 13: case 14: case 15: 
-                  push(((SqueakObject)receiver).getPointer(byteCode&0xF)); break;
+                  push(receiverFields[byteCode&0xF]); break;
       
               // load temporary variable
               case 16: case 17: case 18: case 19: case 20: case 21: case 22: case 23: 
               case 24: case 25: case 26: case 27: case 28: case 29: case 30: case 31: 
-                  push(homeContext.getPointer(Squeak.CONTEXT_TEMP_FRAME_START+(byteCode&0xF))); break;
+                  push(homeFrame[Squeak.CONTEXT_TEMP_FRAME_START+(byteCode&0xF)]); break;
       
               // loadLiteral
               case 32: case 33: case 34: case 35: case 36: case 37: case 38: case 39: 
@@ -350,9 +446,9 @@ public class SqueakVM {
       
               // storeAndPop rcvr, temp
               case 96: case 97: case 98: case 99: case 100: case 101: case 102: case 103: 
-                  ((SqueakObject)receiver).setPointer(byteCode&7,pop()); break;
+                  storeReceiverField(byteCode&7,pop()); break;
               case 104: case 105: case 106: case 107: case 108: case 109: case 110: case 111: 
-                  homeContext.setPointer(Squeak.CONTEXT_TEMP_FRAME_START+(byteCode&7),pop()); break;
+                  homeFrame[Squeak.CONTEXT_TEMP_FRAME_START+(byteCode&7)]= pop(); break;
       
               // Quick push constant
               case 112: push(receiver); break;
@@ -365,12 +461,12 @@ public class SqueakVM {
               case 119: push(smallFromInt(2)); break;
       
               // Quick return
-              case 120: doReturn(receiver,homeContext.getPointerNI(Squeak.CONTEXT_SENDER)); break;
-              case 121: doReturn(getTrueObj(),homeContext.getPointerNI(Squeak.CONTEXT_SENDER)); break;
-              case 122: doReturn(getFalseObj(),homeContext.getPointerNI(Squeak.CONTEXT_SENDER)); break;
-              case 123: doReturn(nilObj,homeContext.getPointerNI(Squeak.CONTEXT_SENDER)); break;
-              case 124: doReturn(pop(),homeContext.getPointerNI(Squeak.CONTEXT_SENDER)); break;
-              case 125: doReturn(pop(),getActiveContext().getPointerNI(Squeak.BLOCK_CONTEXT_CALLER)); break;
+              case 120: doReturn(receiver,(SqueakObject)homeFrame[Squeak.CONTEXT_SENDER]); break;
+              case 121: doReturn(getTrueObj(),(SqueakObject)homeFrame[Squeak.CONTEXT_SENDER]); break;
+              case 122: doReturn(getFalseObj(),(SqueakObject)homeFrame[Squeak.CONTEXT_SENDER]); break;
+              case 123: doReturn(nilObj,(SqueakObject)homeFrame[Squeak.CONTEXT_SENDER]); break;
+              case 124: doReturn(pop(),(SqueakObject)homeFrame[Squeak.CONTEXT_SENDER]); break;
+              case 125: doReturn(pop(),(SqueakObject)activeStack[Squeak.BLOCK_CONTEXT_CALLER]); break;
               case 126: nono(); break;
               case 127: nono(); break;
   
@@ -388,7 +484,7 @@ public class SqueakVM {
               case 135: pop(); break; // pop
               case 136: push(top()); break;   // dup
               // push thisContext
-              case 137: push(getActiveContext()); setReclaimableContextCount(0); break;
+              case 137: materializeContexts(); push(getActiveContext()); setReclaimableContextCount(0); break;
   
               //Unused...
               case 138: case 139: case 140: case 141: case 142: case 143: 
@@ -414,38 +510,38 @@ public class SqueakVM {
                   jumpif (false,(byteCode&3)*256 + nextByte()); break;
   
               // Arithmetic Ops... + - < > <= >= = ~=    * / \ @ lshift: lxor: land: lor:
-              case 176: setSuccess(true);
-                  if (!pop2AndPushIntResult(stackInteger(1)+stackInteger(0))) sendSpecial(byteCode&0xF); break;   // PLUS +
-              case 177: setSuccess(true);
-                  if (!pop2AndPushIntResult(stackInteger(1)-stackInteger(0))) sendSpecial(byteCode&0xF); break;   // PLUS +
+              case 176:
+                  if (!arithmeticSpecial(byteCode)) sendSpecial(byteCode&0xF); break;   // PLUS +
+              case 177:
+                  if (!arithmeticSpecial(byteCode)) sendSpecial(byteCode&0xF); break;   // PLUS +
               case 178: setSuccess(true);
-                  if (!pushBoolAndPeek(stackInteger(1) < stackInteger(0))) sendSpecial(byteCode&0xF); break;  // LESS <
+                  if (!pushBoolAndPeek(stackInteger(1) < stackInteger(0)) && !floatComparison(byteCode)) sendSpecial(byteCode&0xF); break;  // LESS <
               case 179: setSuccess(true);
-                  if (!pushBoolAndPeek(stackInteger(1) > stackInteger(0))) sendSpecial(byteCode&0xF); break;  // GRTR >
+                  if (!pushBoolAndPeek(stackInteger(1) > stackInteger(0)) && !floatComparison(byteCode)) sendSpecial(byteCode&0xF); break;  // GRTR >
               case 180: setSuccess(true);
-                  if (!pushBoolAndPeek(stackInteger(1) <= stackInteger(0)))  sendSpecial(byteCode&0xF); break;  // LEQ <=
+                  if (!pushBoolAndPeek(stackInteger(1) <= stackInteger(0)) && !floatComparison(byteCode))  sendSpecial(byteCode&0xF); break;  // LEQ <=
               case 181: setSuccess(true);
-                  if (!pushBoolAndPeek(stackInteger(1) >= stackInteger(0)))  sendSpecial(byteCode&0xF); break;  // GEQ >=
+                  if (!pushBoolAndPeek(stackInteger(1) >= stackInteger(0)) && !floatComparison(byteCode))  sendSpecial(byteCode&0xF); break;  // GEQ >=
               case 182: setSuccess(true);
-                  if (!pushBoolAndPeek(stackInteger(1) == stackInteger(0)))  sendSpecial(byteCode&0xF); break;  // EQU =
+                  if (!pushBoolAndPeek(stackInteger(1) == stackInteger(0)) && !floatComparison(byteCode))  sendSpecial(byteCode&0xF); break;  // EQU =
               case 183: setSuccess(true);
-                  if (!pushBoolAndPeek(stackInteger(1) != stackInteger(0)))  sendSpecial(byteCode&0xF); break;  // NEQ ~=
-              case 184: setSuccess(true);
-                  if (!pop2AndPushIntResult(safeMultiply(stackInteger(1), stackInteger(0)))) sendSpecial(byteCode&0xF); break;  // TIMES *
-              case 185: setSuccess(true);
-                  if (!pop2AndPushIntResult(quickDivide(stackInteger(1), stackInteger(0)))) sendSpecial(byteCode&0xF); break;  // Divide /
-              case 186: setSuccess(true);
-                  if (!pop2AndPushIntResult(mod(stackInteger(1), stackInteger(0)))) sendSpecial(byteCode&0xF); break;  // MOD \\
+                  if (!pushBoolAndPeek(stackInteger(1) != stackInteger(0)) && !floatComparison(byteCode))  sendSpecial(byteCode&0xF); break;  // NEQ ~=
+              case 184:
+                  if (!arithmeticSpecial(byteCode)) sendSpecial(byteCode&0xF); break;  // TIMES *
+              case 185:
+                  if (!arithmeticSpecial(byteCode)) sendSpecial(byteCode&0xF); break;  // Divide /
+              case 186:
+                  if (!arithmeticSpecial(byteCode)) sendSpecial(byteCode&0xF); break;  // MOD \\
               case 187: setSuccess(true);
                   if (!primHandler.primitiveMakePoint()) sendSpecial(byteCode&0xF); break;  // MakePt int@int
-              case 188: setSuccess(true); // Something is wrong with this one...
-                  /*if (!pop2AndPushIntResult(safeShift(stackInteger(1),stackInteger(0))))*/ sendSpecial(byteCode&0xF); break; // bitShift:
-              case 189: setSuccess(true);
-                  if (!pop2AndPushIntResult(div(stackInteger(1), stackInteger(0)))) sendSpecial(byteCode&0xF); break;  // Divide //
-              case 190: setSuccess(true);
-                  if (!pop2AndPushIntResult(stackInteger(1) & stackInteger(0))) sendSpecial(byteCode&0xF); break; // bitAnd:
-              case 191: setSuccess(true);
-                  if (!pop2AndPushIntResult(stackInteger(1) | stackInteger(0))) sendSpecial(byteCode&0xF); break; // bitOr:
+              case 188:
+                  if (!arithmeticSpecial(byteCode)) sendSpecial(byteCode&0xF); break; // bitShift:
+              case 189:
+                  if (!arithmeticSpecial(byteCode)) sendSpecial(byteCode&0xF); break;  // Divide //
+              case 190:
+                  if (!arithmeticSpecial(byteCode)) sendSpecial(byteCode&0xF); break; // bitAnd:
+              case 191:
+                  if (!arithmeticSpecial(byteCode)) sendSpecial(byteCode&0xF); break; // bitOr:
   
               // at:, at:put:, size, next, nextPut:, ...
               case 192: case 193: case 194: case 195: case 196: case 197: case 198: case 199: 
@@ -467,14 +563,372 @@ public class SqueakVM {
         }
     }
 
+    /**
+     * The threaded-code variant of run(): dispatches over the DecodedMethod
+     * of the active method instead of the raw bytes.  Literals, selectors,
+     * operand indexes and jump targets were resolved when the method was
+     * translated, so each step is a single table lookup and switch.
+     * pc keeps its usual meaning (the last byte consumed).
+     */
+    private void runDecoded() {
+        monitor.logMessage("Entered the threaded-code RUN LOOP");
+        while(true) {
+            DecodedMethod code= decoded;
+            if (code.jvmCode != null) {
+                if (code.storesFields && receiver instanceof SqueakObject)
+                    ((SqueakObject)receiver).markDirty(); // compiled stores bypass setPointer()
+                enterCompiledCode(code.jvmCode);
+                code= decoded; // may have switched processes
+            }
+            int ip= ++pc;
+            pc= code.lastBytes[ip];
+            int opcode= code.superOpcodes[ip];
+            if (bytecodeProfile != null)
+                bytecodeProfile.record(getActiveContext(),ip,opcode,pc);
+            switch (opcode) {
+              case DecodedMethod.PUSH_RCVR_VAR: push(receiverFields[code.operands[ip]]); break;
+              case DecodedMethod.PUSH_TEMP: push(homeFrame[code.operands[ip]]); break;
+              case DecodedMethod.PUSH_CONST: push(code.literals[ip]); break;
+              case DecodedMethod.PUSH_LIT_VAR: push(((SqueakObject)code.literals[ip]).getPointer(Squeak.Assn_value)); break;
+              case DecodedMethod.PUSH_LIT_KEY: push(((SqueakObject)code.literals[ip]).getPointer(Squeak.Assn_key)); break;
+              case DecodedMethod.PUSH_RCVR: push(receiver); break;
+              case DecodedMethod.PUSH_THIS_CONTEXT: materializeContexts(); push(getActiveContext()); setReclaimableContextCount(0); break;
+              case DecodedMethod.DUP: push(top()); break;
+              case DecodedMethod.POP: pop(); break;
+
+              case DecodedMethod.STORE_RCVR_VAR: storeReceiverField(code.operands[ip],top()); break;
+              case DecodedMethod.STORE_TEMP: homeFrame[code.operands[ip]]= top(); break;
+              case DecodedMethod.STORE_LIT_VAR: ((SqueakObject)code.literals[ip]).setPointer(Squeak.Assn_value,top()); break;
+              case DecodedMethod.STORE_LIT_KEY: ((SqueakObject)code.literals[ip]).setPointer(Squeak.Assn_key,top()); break;
+              case DecodedMethod.STORE_POP_RCVR_VAR: storeReceiverField(code.operands[ip],pop()); break;
+              case DecodedMethod.STORE_POP_TEMP: homeFrame[code.operands[ip]]= pop(); break;
+              case DecodedMethod.STORE_POP_LIT_VAR: ((SqueakObject)code.literals[ip]).setPointer(Squeak.Assn_value,pop()); break;
+
+              case DecodedMethod.RETURN_RCVR: doReturn(receiver,(SqueakObject)homeFrame[Squeak.CONTEXT_SENDER]); break;
+              case DecodedMethod.RETURN_CONST: doReturn(code.literals[ip],(SqueakObject)homeFrame[Squeak.CONTEXT_SENDER]); break;
+              case DecodedMethod.RETURN_TOP: doReturn(pop(),(SqueakObject)homeFrame[Squeak.CONTEXT_SENDER]); break;
+              case DecodedMethod.BLOCK_RETURN_TOP: doReturn(pop(),(SqueakObject)activeStack[Squeak.BLOCK_CONTEXT_CALLER]); break;
+
+              case DecodedMethod.JUMP: pc= code.operands[ip]; break;
+              case DecodedMethod.JUMP_BACK: pc= code.operands[ip];
+                  if (tieredCompilation) countHotness(code);
+                  checkForInterrupts(); break;
+              case DecodedMethod.JUMP_IF_TRUE: jumpif(true,code.operands[ip]-pc); break;
+              case DecodedMethod.JUMP_IF_FALSE: jumpif(false,code.operands[ip]-pc); break;
+
+              case DecodedMethod.SEND: case DecodedMethod.SUPER_SEND: send((InlineCache)code.literals[ip]); break;
+
+              // Superinstructions; when they don't apply only the first instruction is done here
+              case DecodedMethod.PUSH_TEMP_CONST_SPECIAL: {
+                  Object value= homeFrame[code.operands[ip]];
+                  if (!fusedSpecial(code,ip,value,code.literals[pc+1])) push(value); break; }
+              case DecodedMethod.PUSH_TEMP_TEMP_SPECIAL: {
+                  Object value= homeFrame[code.operands[ip]];
+                  if (!fusedSpecial(code,ip,value,homeFrame[code.operands[pc+1]])) push(value); break; }
+              case DecodedMethod.PUSH_RCVR_CONST_SPECIAL:
+                  if (!fusedSpecial(code,ip,receiver,code.literals[pc+1])) push(receiver); break;
+              case DecodedMethod.PUSH_RCVR_VAR_RETURN:
+                  doReturn(receiverFields[code.operands[ip]],(SqueakObject)homeFrame[Squeak.CONTEXT_SENDER]); break;
+
+              // Arithmetic Ops and special selectors keep their bytecode as opcode (same code as in run())
+              case 176:
+                  if (!arithmeticSpecial(opcode)) sendSpecial(opcode&0xF); break;   // PLUS +
+              case 177:
+                  if (!arithmeticSpecial(opcode)) sendSpecial(opcode&0xF); break;   // PLUS +
+              case 178: setSuccess(true);
+                  if (!pushBoolAndPeek(stackInteger(1) < stackInteger(0)) && !floatComparison(opcode)) sendSpecial(opcode&0xF); break;  // LESS <
+              case 179: setSuccess(true);
+                  if (!pushBoolAndPeek(stackInteger(1) > stackInteger(0)) && !floatComparison(opcode)) sendSpecial(opcode&0xF); break;  // GRTR >
+              case 180: setSuccess(true);
+                  if (!pushBoolAndPeek(stackInteger(1) <= stackInteger(0)) && !floatComparison(opcode))  sendSpecial(opcode&0xF); break;  // LEQ <=
+              case 181: setSuccess(true);
+                  if (!pushBoolAndPeek(stackInteger(1) >= stackInteger(0)) && !floatComparison(opcode))  sendSpecial(opcode&0xF); break;  // GEQ >=
+              case 182: setSuccess(true);
+                  if (!pushBoolAndPeek(stackInteger(1) == stackInteger(0)) && !floatComparison(opcode))  sendSpecial(opcode&0xF); break;  // EQU =
+              case 183: setSuccess(true);
+                  if (!pushBoolAndPeek(stackInteger(1) != stackInteger(0)) && !floatComparison(opcode))  sendSpecial(opcode&0xF); break;  // NEQ ~=
+              case 184:
+                  if (!arithmeticSpecial(opcode)) sendSpecial(opcode&0xF); break;  // TIMES *
+              case 185:
+                  if (!arithmeticSpecial(opcode)) sendSpecial(opcode&0xF); break;  // Divide /
+              case 186:
+                  if (!arithmeticSpecial(opcode)) sendSpecial(opcode&0xF); break;  // MOD \\
+              case 187: setSuccess(true);
+                  if (!primHandler.primitiveMakePoint()) sendSpecial(opcode&0xF); break;  // MakePt int@int
+              case 188:
+                  if (!arithmeticSpecial(opcode)) sendSpecial(opcode&0xF); break; // bitShift:
+              case 189:
+                  if (!arithmeticSpecial(opcode)) sendSpecial(opcode&0xF); break;  // Divide //
+              case 190:
+                  if (!arithmeticSpecial(opcode)) sendSpecial(opcode&0xF); break; // bitAnd:
+              case 191:
+                  if (!arithmeticSpecial(opcode)) sendSpecial(opcode&0xF); break; // bitOr:
+
+              // at:, at:put:, size, next, nextPut:, ...
+              case 192: case 193: case 194: case 195: case 196: case 197: case 198: case 199: 
+              case 200: case 201: case 202: case 203: case 204: case 205: case 206: case 207: 
+                  if (!primHandler.quickSendOther(receiver,opcode&0xF))
+                      sendSpecial((opcode&0xF)+16); break;
+              default: nono();
+            }
+        }
+    }
+
+    /**
+     * The special selector of a push-push-special superinstruction on two
+     * SmallIntegers, together with a storePopTemp or conditional jump that
+     * follows it.  Answers false, having done nothing, for other operands
+     * or an overflow.
+     */
+    private boolean fusedSpecial(DecodedMethod code, int ip, Object first, Object second) {
+        if (!(first instanceof Integer && second instanceof Integer))
+            return false;
+        int a= ((Integer)first).intValue();
+        int b= ((Integer)second).intValue();
+        int special= code.superOperands[ip];
+        switch (code.opcodes[special]) {
+          case 176: return fusedResult(code,special,smallFromInt(a+b));
+          case 177: return fusedResult(code,special,smallFromInt(a-b));
+          case 178: return fusedCompare(code,special,a<b);
+          case 179: return fusedCompare(code,special,a>b);
+          case 180: return fusedCompare(code,special,a<=b);
+          case 181: return fusedCompare(code,special,a>=b);
+          case 182: return fusedCompare(code,special,a==b);
+          case 183: return fusedCompare(code,special,a!=b);
+          case 190: return fusedResult(code,special,smallFromInt(a&b));
+          case 191: return fusedResult(code,special,smallFromInt(a|b));
+        }
+        return false;
+    }
+
+    private boolean fusedResult(DecodedMethod code, int special, Integer result) {
+        if (result == null)
+            return false;
+        int next= code.lastBytes[special]+1;
+        if (next < code.opcodes.length && code.opcodes[next] == DecodedMethod.STORE_POP_TEMP) {
+            homeFrame[code.operands[next]]= result;
+            pc= code.lastBytes[next];
+        } else {
+            push(result);
+            pc= code.lastBytes[special];
+        }
+        return true;
+    }
+
+    private boolean fusedCompare(DecodedMethod code, int special, boolean result) {
+        int next= code.lastBytes[special]+1;
+        int opcode= next < code.opcodes.length ? code.opcodes[next] : DecodedMethod.NONO;
+        if (opcode == DecodedMethod.JUMP_IF_FALSE)
+            pc= result ? code.lastBytes[next] : code.operands[next];
+        else if (opcode == DecodedMethod.JUMP_IF_TRUE)
+            pc= result ? code.operands[next] : code.lastBytes[next];
+        else {
+            push(result ? trueObj : falseObj);
+            pc= code.lastBytes[special];
+        }
+        return true;
+    }
+
+    private void enterCompiledCode(JvmCode code) {
+        code.run(receiver,receiverFields,activeStack,homeFrame,sp,pc+1);
+    }
+
+    /** The pointers of a receiver, read now if it was loaded lazily, so the bytecodes can index them directly. */
+    private static Object[] fieldsOf(Object receiver) {
+        return receiver instanceof SqueakObject ? ((SqueakObject)receiver).getPointers() : null;
+    }
+
+    /** Stores into the receiver's fields, marking it changed as setPointer() would. */
+    private void storeReceiverField(int index, Object value) {
+        receiverFields[index]= value;
+        ((SqueakObject)receiver).markDirty();
+    }
+
+    /** Called by compiled code when it hands over to the interpreter. */
+    void resumeAt(int pc, int sp) {
+        this.pc= pc;
+        this.sp= sp;
+    }
+
+    private void countHotness(DecodedMethod code) {
+        if (++code.hotness != compileThreshold)
+            return;
+        try {
+            code.jvmCode= JvmCompiler.compile(this, code);
+        } catch (java.io.IOException e) {
+            monitor.logMessage("Could not compile " + code.method + ": " + e);
+        } catch (LinkageError e) {
+            monitor.logMessage("Could not compile " + code.method + ": " + e);
+        }
+    }
+
+    DecodedMethod decodedMethodFor(SqueakObject aMethod) {
+        // Translate on first activation, and again after the caches were cleared
+        CompiledMethodObject cached= (CompiledMethodObject) aMethod;
+        DecodedMethod translation= cached.decodedMethod;
+        if (translation == null || translation.epoch != translationEpoch) {
+            translation= new DecodedMethod(this, aMethod, translationEpoch);
+            cached.decodedMethod= translation;
+        }
+        return translation;
+    }
+
+    /**
+     * Selects the threaded-code interpreter loop (runDecoded) instead of the
+     * classic byte-dispatch loop.  Must be set before run() is entered.
+     */
+    public void setThreadedCode(boolean threadedCode) {
+        this.threadedCode = threadedCode;
+        if (threadedCode)
+            decoded = decodedMethodFor(method);
+    }
+
+    public boolean isThreadedCode() {
+        return threadedCode;
+    }
+
+    /**
+     * Enables the per-send-site InlineCaches of the threaded-code loop;
+     * when off its sends probe the global MethodCache like run() does.
+     */
+    public void setInlineCaching(boolean inlineCaching) {
+        this.inlineCaching = inlineCaching;
+    }
+
+    public boolean isInlineCaching() {
+        return inlineCaching;
+    }
+
+    /**
+     * Tiered mode: methods that get hot in the threaded-code loop are
+     * compiled to JVM classes by JvmCompiler.  Turns on threaded code.
+     */
+    public void setTieredCompilation(boolean tieredCompilation) {
+        this.tieredCompilation = tieredCompilation;
+        if (tieredCompilation)
+            setThreadedCode(true);
+    }
+
+    public boolean isTieredCompilation() {
+        return tieredCompilation;
+    }
+
+    /** Activations plus backward jumps after which a method is compiled. */
+    public void setCompileThreshold(int compileThreshold) {
+        this.compileThreshold = compileThreshold;
+    }
+
+    /**
+     * Lets DecodedMethod fuse frequent instruction sequences into single
+     * superinstructions of the threaded-code loop.  Off by default.
+     */
+    public void setSuperinstructions(boolean superinstructions) {
+        this.superinstructions = superinstructions;
+        retranslate();
+    }
+
+    public boolean isSuperinstructions() {
+        return superinstructions;
+    }
+
+    /**
+     * Counts the instructions, pairs and triples the threaded-code loop
+     * executes (see getBytecodeProfile()).  Superinstructions are not
+     * used while profiling, so the counts show the plain sequences.
+     * Instructions run by compiled code in tiered mode are not counted.
+     */
+    public void setBytecodeProfiling(boolean profiling) {
+        bytecodeProfile = profiling ? new BytecodeProfile() : null;
+        retranslate();
+    }
+
+    public boolean isBytecodeProfiling() {
+        return bytecodeProfile != null;
+    }
+
+    /** The most frequent top entries of the profile, or null when not profiling. */
+    public String getBytecodeProfile(int top) {
+        return bytecodeProfile == null ? null : bytecodeProfile.report(top);
+    }
+
+    /**
+     * The primitives of this VM by number.  Entries can be replaced while
+     * the VM runs, e.g. to add an external primitive or to wrap one for
+     * debugging; statistics are switched on through the table as well.
+     */
+    public PrimitiveTable getPrimitiveTable() {
+        return primHandler.getPrimitiveTable();
+    }
+
+    private void retranslate() {
+        translationEpoch++;
+        if (threadedCode)
+            decoded = decodedMethodFor(method);
+    }
+
+    boolean fusesInstructions() {
+        return superinstructions && bytecodeProfile == null;
+    }
+
+    /** The millisecond clock, masked so it wraps within the SmallIntegers. */
+    static int millisecondClock() {
+        return (int) (System.currentTimeMillis() & (long)MILLISECOND_CLOCK_MASK);
+    }
+
+    private synchronized void startTicker() {
+        if (ticker == null) {
+            ticker= new Ticker(this);
+            ticker.start();
+        }
+    }
+
+    /** Stops the clock thread; run() starts it again. */
+    public synchronized void stopTicker() {
+        if (ticker != null) {
+            ticker.interrupt();
+            ticker= null;
+        }
+    }
+
+    /**
+     * Makes the next send or backward jump run checkForInterrupts(), and
+     * wakes the VM if it is idle in relinquishProcessor.  Callable from
+     * any thread.
+     */
+    void requestInterruptCheck() {
+        interruptCheckNeeded= true;
+        synchronized (this) {
+            notify();
+        }
+    }
+
+    boolean isInterruptCheckNeeded() {
+        return interruptCheckNeeded;
+    }
+
+    /** The user typed the interrupt key (see getInterruptKeycode()). */
+    public void interruptKeyPressed() {
+        interruptPending= true;
+        requestInterruptCheck();
+    }
+
+    /**
+     * Signals the Semaphore at the one-based index in the external
+     * objects array at the next interrupt check.  Callable from any thread.
+     */
+    public void signalSemaphoreWithIndex(int index) {
+        externalSignals.add(Integer.valueOf(index));
+        requestInterruptCheck();
+    }
+
     public void checkForInterrupts()  {
         //Check for interrupts at sends and backward jumps
         SqueakObject sema;
         int now;
-        if (interruptCheckCounter-- > 0) 
-            return; //only really check every 100 times or so
-        //Mask so same wrap as primitiveMillisecondClock
-        now= (int) (System.currentTimeMillis() & (long)MILLISECOND_CLOCK_MASK);
+        if (!interruptCheckNeeded) 
+            return; //only when the Ticker or another thread asked for it
+        interruptCheckNeeded= false;
+        now= millisecondClock();
         if (now < lastTick) 
         {
             //millisecond clock wrapped"
@@ -482,24 +936,14 @@ public class SqueakVM {
             if (getNextWakeupTick() != 0)
                 setNextWakeupTick(now + (getNextWakeupTick() - lastTick)); 
         }
-        //Feedback logic attempts to keep interrupt response around 3ms...
-        if ((now - lastTick) < interruptChecksEveryNms)  //wrapping is not a concern
-        {
-            interruptCheckCounterFeedBackReset += 10;
-        }
-        else
+        lastTick= now; //used to detect wraparound of millisecond clock
+        if (isLowOnSpace(now)) 
         {
-            if (interruptCheckCounterFeedBackReset <= 1000)
-                interruptCheckCounterFeedBackReset= 1000;
-            else
-                interruptCheckCounterFeedBackReset -= 12; 
+            lowSpaceThreshold= 0; //signal once, until the image sets it again
+            sema= getSpecialObject(Squeak.splOb_TheLowSpaceSemaphore);
+            if (sema != nilObj)
+                primHandler.synchronousSignal(sema); 
         }
-        interruptCheckCounter= interruptCheckCounterFeedBackReset; //reset the interrupt check counter"
-        lastTick= now; //used to detect wraparound of millisecond clock
-        //  if (signalLowSpace) {
-        //            signalLowSpace= false; //reset flag
-        //            sema= getSpecialObject(Squeak.splOb_TheLowSpaceSemaphore);
-        //            if (sema != nilObj) synchronousSignal(sema); }
         //  if (now >= nextPollTick) {
         //            ioProcessEvents(); //sets interruptPending if interrupt key pressed
         //            nextPollTick= now + 500; } //msecs to wait before next call to ioProcessEvents"
@@ -521,8 +965,33 @@ public class SqueakVM {
         //            sema= getSpecialObject(Squeak.splOb_ThefinalizationSemaphore);
         //            pendingFinalizationSignals= 0;
         //            if (sema != nilObj) primHandler.synchronousSignal(sema); }
-        //  if ((semaphoresToSignalCountA > 0) || (semaphoresToSignalCountB > 0)) {
-        //            signalExternalSemaphores(); }  //signal all semaphores in semaphoresToSignal
+        Integer index;
+        while ((index= externalSignals.poll()) != null)
+            signalExternalSemaphore(index.intValue());
+    }
+
+    /**
+     * Whether the Java heap has less room left than the image asked to be
+     * warned at (see primitive 125).  Garbage counts as used until it is
+     * collected, so a low reading is checked by collecting, at most once a
+     * second.
+     */
+    private boolean isLowOnSpace(int now) {
+        if (lowSpaceThreshold <= 0 || getImage().spaceLeft() >= lowSpaceThreshold)
+            return false;
+        if (now - lastLowSpaceCollection < 1000)
+            return false;
+        lastLowSpaceCollection= now;
+        return getImage().partialGC() < lowSpaceThreshold;
+    }
+
+    private void signalExternalSemaphore(int index) {
+        SqueakObject externalObjects= getSpecialObject(Squeak.splOb_ExternalObjectsArray);
+        if (externalObjects == nilObj || index < 1 || index > externalObjects.pointersSize())
+            return;
+        Object sema= externalObjects.getPointer(index - 1);
+        if (getClass(sema) == getSpecialObject(Squeak.splOb_ClassSemaphore))
+            primHandler.synchronousSignal((SqueakObject) sema);
     }
 
     private void jumpif (boolean condition, int delta) {
@@ -538,6 +1007,95 @@ public class SqueakVM {
         send((SqueakObject) specialObjects[Squeak.splOb_SelectorMustBeBoolean],1,false); 
     }
     
+    /**
+     * SmallInteger fast path of the arithmetic specials (all of 176-191
+     * except the comparisons and @).  The result is computed exactly, so
+     * overflow out of the SmallInteger range is detected rather than
+     * wrapped; answers false, leaving the stack alone, if the selector has
+     * to be sent instead.  + - * / on Floats go to floatArithmetic().
+     */
+    private boolean arithmeticSpecial(int bytecode) {
+        Object arg= activeStack[sp];
+        Object rcvr= activeStack[sp-1];
+        if (!(rcvr instanceof Integer && arg instanceof Integer))
+            return floatArithmetic(bytecode);
+        int a= ((Integer)rcvr).intValue();
+        int b= ((Integer)arg).intValue();
+        long result;
+        switch (bytecode) {
+          case 176: result= (long)a + b; break;
+          case 177: result= (long)a - b; break;
+          case 184: result= (long)a * b; break;
+          case 185: result= quickDivide(a,b); break;
+          case 186: result= mod(a,b); break;
+          case 188: result= safeShift(a,b); break;
+          case 189: result= div(a,b); break;
+          case 190: result= a & b; break;
+          case 191: result= a | b; break;
+          default: return false;
+        }
+        if (result < MIN_SMALL_INT || result > MAX_SMALL_INT)
+            return false; // includes the NON_SMALL_INT failure of SqueakMath
+        activeStack[--sp]= smallFromInt((int)result);
+        return true;
+    }
+
+    /**
+     * Loads floatRcvr and floatArg from the top two stack slots if one is
+     * a Float and the other a Float or SmallInteger, which is what the
+     * Float primitives answer after coercing a SmallInteger argument.
+     */
+    private boolean floatOperands() {
+        Object arg= activeStack[sp];
+        Object rcvr= activeStack[sp-1];
+        boolean rcvrIsFloat= rcvr instanceof SqueakObject && ((SqueakObject)rcvr).isFloat();
+        boolean argIsFloat= arg instanceof SqueakObject && ((SqueakObject)arg).isFloat();
+        if (!(rcvrIsFloat ? argIsFloat || arg instanceof Integer : argIsFloat && rcvr instanceof Integer))
+            return false;
+        floatRcvr= rcvrIsFloat ? ((SqueakObject)rcvr).getFloatBits() : ((Integer)rcvr).intValue();
+        floatArg= argIsFloat ? ((SqueakObject)arg).getFloatBits() : ((Integer)arg).intValue();
+        return true;
+    }
+
+    private boolean floatArithmetic(int bytecode) {
+        if (bytecode > 185 || !floatOperands())
+            return false;
+        double result;
+        switch (bytecode) {
+          case 176: result= floatRcvr + floatArg; break;
+          case 177: result= floatRcvr - floatArg; break;
+          case 184: result= floatRcvr * floatArg; break;
+          case 185: if (floatArg == 0.0d) return false; // ZeroDivide is signalled by the image
+                    result= floatRcvr / floatArg; break;
+          default: return false;
+        }
+        activeStack[--sp]= makeFloat(result);
+        return true;
+    }
+
+    /** Float fast path of the comparison specials 178-183. */
+    private boolean floatComparison(int bytecode) {
+        if (!floatOperands())
+            return false;
+        boolean result;
+        switch (bytecode) {
+          case 178: result= floatRcvr < floatArg; break;
+          case 179: result= floatRcvr > floatArg; break;
+          case 180: result= floatRcvr <= floatArg; break;
+          case 181: result= floatRcvr >= floatArg; break;
+          case 182: result= floatRcvr == floatArg; break;
+          case 183: result= floatRcvr != floatArg; break;
+          default: return false;
+        }
+        setSuccess(true);
+        return pushBoolAndPeek(result);
+    }
+
+    /** A new Float, not registered in the object table. */
+    SqueakObject makeFloat(double value) {
+        return new SqueakFloat((SqueakObject)specialObjects[Squeak.splOb_ClassFloat], value);
+    }
+
     public void sendSpecial(int lobits) {
         send((SqueakObject) specialSelectors[lobits*2],
              ((Integer) specialSelectors[(lobits*2)+1]).intValue(),
@@ -547,8 +1105,8 @@ public class SqueakVM {
     public void extendedPush(int nextByte) {
         int lobits= nextByte&63;
         switch (nextByte>>6) {
-            case 0: push(((SqueakObject)receiver).getPointer(lobits));break;
-            case 1: push(homeContext.getPointer(Squeak.CONTEXT_TEMP_FRAME_START+lobits)); break;
+            case 0: push(receiverFields[lobits]);break;
+            case 1: push(homeFrame[Squeak.CONTEXT_TEMP_FRAME_START+lobits]); break;
             case 2: push(getMethod().methodGetLiteral(lobits)); break;
             case 3: push(((SqueakObject)getMethod().methodGetLiteral(lobits)).getPointer(Squeak.Assn_value)); break;
         }
@@ -557,8 +1115,8 @@ public class SqueakVM {
     public void extendedStore(int nextByte) {
         int lobits= nextByte&63;
         switch (nextByte>>6) {
-            case 0: ((SqueakObject)receiver).setPointer(lobits,top()); break;
-            case 1: homeContext.setPointer(Squeak.CONTEXT_TEMP_FRAME_START+lobits,top()); break;
+            case 0: storeReceiverField(lobits,top()); break;
+            case 1: homeFrame[Squeak.CONTEXT_TEMP_FRAME_START+lobits]= top(); break;
             case 2: nono(); break;
             case 3: ((SqueakObject)getMethod().methodGetLiteral(lobits)).setPointer(Squeak.Assn_value,top()); break;
         }
@@ -567,8 +1125,8 @@ public class SqueakVM {
     public void extendedStorePop(int nextByte) {
         int lobits= nextByte&63;
         switch (nextByte>>6) {
-            case 0: ((SqueakObject)receiver).setPointer(lobits,pop()); break;
-            case 1: homeContext.setPointer(Squeak.CONTEXT_TEMP_FRAME_START+lobits,pop()); break;
+            case 0: storeReceiverField(lobits,pop()); break;
+            case 1: homeFrame[Squeak.CONTEXT_TEMP_FRAME_START+lobits]= pop(); break;
             case 2: nono(); break;
             case 3: ((SqueakObject)getMethod().methodGetLiteral(lobits)).setPointer(Squeak.Assn_value,pop()); break;
         }
@@ -579,11 +1137,11 @@ public class SqueakVM {
         switch (nextByte>>5) {
             case 0: send(getMethod().methodGetSelector(byte3),nextByte&31,false); break;
             case 1: send(getMethod().methodGetSelector(byte3),nextByte&31,true); break;
-            case 2: push(((SqueakObject)receiver).getPointer(byte3)); break;
+            case 2: push(receiverFields[byte3]); break;
             case 3: push(getMethod().methodGetLiteral(byte3)); break;
             case 4: push(((SqueakObject)getMethod().methodGetLiteral(byte3)).getPointer(Squeak.Assn_key)); break;
-            case 5: ((SqueakObject)receiver).setPointer(byte3,top()); break;
-            case 6: ((SqueakObject)receiver).setPointer(byte3,pop()); break;
+            case 5: storeReceiverField(byte3,top()); break;
+            case 6: storeReceiverField(byte3,pop()); break;
             case 7: ((SqueakObject)getMethod().methodGetLiteral(byte3)).setPointer(Squeak.Assn_key,top()); break;
         }
     }
@@ -591,7 +1149,12 @@ public class SqueakVM {
 	public void doReturn(Object returnValue, SqueakObject targetContext) {
 		if (targetContext == nilObj)
 			cannotReturn();
-		if (targetContext.getPointer(Squeak.CONTEXT_INSTRUCTION_POINTER) == nilObj)
+		// A sender on the frame stack is live, though its pc was never stored
+		boolean intoFrame = frameCount > 0 && frameContexts[frameCount - 1] == targetContext
+				&& getActiveContext().getPointer(Squeak.CONTEXT_SENDER) == targetContext;
+		if (frameCount > 0 && !intoFrame)
+			flushFrames(); // not a plain return to the sender
+		if (!intoFrame && targetContext.getPointer(Squeak.CONTEXT_INSTRUCTION_POINTER) == nilObj)
 			cannotReturn();
 		SqueakObject thisContext = getActiveContext();
 		while (thisContext != targetContext) {
@@ -616,9 +1179,214 @@ public class SqueakVM {
 			thisContext = nextContext;
 		}
 		activeContext = thisContext;
+		activeStack = thisContext.getPointers();
 		fetchContextRegisters(getActiveContext());
 		push(returnValue);
 		// System.err.println("***returning " + printString(returnValue));
+		if (thisContext == stopContext)
+			throw Stop;
+	}
+
+	/**
+	 * Thrown out of run() when perform()'s send returns.  A singleton, like
+	 * the primitive handler's PrimitiveFailedException.
+	 */
+	private static class StopException extends RuntimeException {
+		private static final long serialVersionUID = 1L;
+
+		StopException() {
+			super(null, null, false, false);
+		}
+	}
+
+	private static final StopException Stop = new StopException();
+
+	/**
+	 * Sends selector to receiver from the active context, as if that
+	 * context had made the send, and runs until it returns; answers the
+	 * result.  Strings among the arguments become Smalltalk Strings.  Must
+	 * not be called while run() is running in another thread.
+	 *
+	 * The send runs in the active Process, so a fresh VM runs it before
+	 * the image's own startup code.  Throws EvaluationFailedException if
+	 * the image goes idle with no Delay pending, which in a headless VM
+	 * means the send is stuck, typically in a notifier or debugger; the
+	 * exception then names the error the notifier was opened for, or if
+	 * there is none, the first send that was not understood.  The VM
+	 * should then be discarded.
+	 */
+	public Object perform(Object receiver, String selector, Object... args) throws IOException {
+		SqueakObject caller = getActiveContext();
+		notUnderstood = null;
+		RememberedSet priorSet = RememberedSet.bind(image.getRememberedSet());
+		try {
+			push(receiver);
+			for (Object each : args)
+				push(each instanceof String ? primHandler.makeStString((String) each) : each);
+			send(symbol(selector), args.length, false);
+			if (getActiveContext() != caller) {
+				SqueakObject priorStop = stopContext;
+				SqueakObject priorProcess = stopProcess;
+				stopContext = caller;
+				stopProcess = getSpecialObject(Squeak.splOb_SchedulerAssociation).getPointerNI(Squeak.Assn_value)
+						.getPointerNI(Squeak.ProcSched_activeProcess);
+				try {
+					run();
+				}
+				catch (StopException done) {
+					// the send returned into caller
+				}
+				finally {
+					stopContext = priorStop;
+					stopProcess = priorProcess;
+				}
+			}
+		}
+		finally {
+			RememberedSet.bind(priorSet);
+		}
+		return pop();
+	}
+
+	/** Evaluates Smalltalk source with the image's Compiler, see perform(). */
+	public Object evaluate(String source) throws IOException {
+		return perform(globalAt("Compiler"), "evaluate:", source);
+	}
+
+	/**
+	 * Writes the objects changed since the image's last snapshot or
+	 * checkpoint to file (see SqueakImage.checkpoint()), with the active
+	 * Process suspended where this VM is, so the image read back resumes
+	 * here.  Like perform(), not while run() is running in another thread.
+	 */
+	public void checkpoint(File file) throws IOException {
+		materializeContexts();
+		SqueakObject sched = getSpecialObject(Squeak.splOb_SchedulerAssociation).getPointerNI(Squeak.Assn_value);
+		sched.getPointerNI(Squeak.ProcSched_activeProcess).setPointer(Squeak.Proc_suspendedContext, getActiveContext());
+		image.checkpoint(file);
+	}
+
+	/** Sends printString to object, answering the result as a Java String. */
+	public String printStringOf(Object object) throws IOException {
+		return ((SqueakObject) perform(object, "printString")).asString();
+	}
+
+	/**
+	 * Sends what the image writes to its Transcript to out as well.  The
+	 * first call compiles TranscriptStream>>endEntry to do so through a
+	 * primitive; the image is changed, so do not snapshot it afterwards.
+	 */
+	public void setTranscript(PrintStream out) throws IOException {
+		if (transcript != null) {
+			transcript.setOut(out);
+			return;
+		}
+		transcript = new TranscriptPrimitive(this, out);
+		getPrimitiveTable().put(TranscriptPrimitive.INDEX, transcript);
+		evaluate("TranscriptStream compile: 'javaShow: aString <primitive: " + TranscriptPrimitive.INDEX + ">'"
+				+ " classified: 'headless' notifying: nil."
+				+ " TranscriptStream compile: 'endEntry self javaShow: self contents. self reset'"
+				+ " classified: 'headless' notifying: nil");
+	}
+
+	/** Called by relinquishProcessor: fails perform() if nothing can wake it. */
+	void idle() {
+		if (stopContext != null && nextWakeupTick == 0 && !interruptCheckNeeded && !screenEvent) {
+			String error = errorNotified();
+			if (error == null)
+				error = notUnderstood;
+			throw new EvaluationFailedException(error != null
+					? error + " (the image went idle in its notifier)"
+					: "The image went idle with nothing to wake it");
+		}
+	}
+
+	/**
+	 * The error a notifier was opened for in the evaluation perform() runs:
+	 * the label Object>>error: passed to Debugger class>>openContext:label:contents:
+	 * in the outermost such send above stopContext, or the send not
+	 * understood if doesNotUnderstand: made it.  Null if there is none.
+	 */
+	private String errorNotified() {
+		Object debugger;
+		try {
+			debugger = globalAt("Debugger");
+		} catch (EvaluationFailedException e) {
+			return null;
+		}
+		SqueakObject openNotifier = methodFor(getClass(debugger), symbol("openContext:label:contents:"));
+		SqueakObject opened = null;
+		for (Object each = stopProcess.getPointer(Squeak.Proc_suspendedContext);
+				each instanceof SqueakObject && each != nilObj && each != stopContext;
+				each = ((SqueakObject) each).getPointer(Squeak.CONTEXT_SENDER))
+			if (((SqueakObject) each).getPointer(Squeak.CONTEXT_METHOD) == openNotifier)
+				opened = (SqueakObject) each;
+		if (opened == null)
+			return null;
+		Object sender = opened.getPointer(Squeak.CONTEXT_SENDER);
+		if (sender instanceof SqueakObject && sender != nilObj) {
+			Object dnuReceiver = ((SqueakObject) sender).getPointer(Squeak.CONTEXT_RECEIVER);
+			SqueakObject dnuSel = getSpecialObject(Squeak.splOb_SelectorDoesNotUnderstand);
+			Object message = ((SqueakObject) sender).getPointer(Squeak.CONTEXT_TEMP_FRAME_START);
+			if (((SqueakObject) sender).getPointer(Squeak.CONTEXT_METHOD) == methodFor(getClass(dnuReceiver), dnuSel)
+					&& message instanceof SqueakObject && getClass(message) == getSpecialObject(Squeak.splOb_ClassMessage))
+				return classNameOf(getClass(dnuReceiver)) + " does not understand #"
+						+ ((SqueakObject) message).getPointerNI(Squeak.Message_selector).asString();
+		}
+		Object label = opened.getPointer(Squeak.CONTEXT_TEMP_FRAME_START + 1);
+		if (label instanceof SqueakObject && getClass(label) == getSpecialObject(Squeak.splOb_ClassString))
+			return ((SqueakObject) label).asString();
+		return null;
+	}
+
+	/** The method instances of cls run for selector, or nil. */
+	private SqueakObject methodFor(SqueakObject cls, SqueakObject selector) {
+		for (Object each = cls; each instanceof SqueakObject && each != nilObj;
+				each = ((SqueakObject) each).getPointer(Squeak.CLASS_SUPERCLASS)) {
+			SqueakObject method = lookupSelectorInDict(((SqueakObject) each).getPointerNI(Squeak.CLASS_MDICT), selector);
+			if (method != nilObj)
+				return method;
+		}
+		return nilObj;
+	}
+
+	/** cls's name; a metaclass has its sole instance where a class has its name. */
+	private String classNameOf(SqueakObject cls) {
+		if (cls.pointersSize() <= Squeak.CLASS_NAME || !(cls.getPointer(Squeak.CLASS_NAME) instanceof SqueakObject))
+			return "an unnamed class";
+		SqueakObject name = cls.classGetName();
+		if (name.getSqClass() == ((SqueakObject) getSpecialSelector(0)).getSqClass())
+			return name.asString();
+		return classNameOf(name) + " class";
+	}
+
+	/** The Symbol named name; fails if there is none. */
+	public SqueakObject symbol(String name) {
+		SqueakObject symbol = symbols.get(name);
+		if (symbol == null) {
+			SqueakObject symbolClass = ((SqueakObject) getSpecialSelector(0)).getSqClass();
+			for (SqueakObject each = getImage().nextInstance(0, symbolClass); each != nilObj;
+					each = getImage().nextInstance(getImage().otIndexOfObject(each) + 1, symbolClass))
+				if (each.asString().equals(name)) {
+					symbol = each;
+					break;
+				}
+			if (symbol == null)
+				throw new EvaluationFailedException("No Symbol " + name);
+			symbols.put(name, symbol);
+		}
+		return symbol;
+	}
+
+	/** The value of the global variable name, e.g. a class. */
+	public Object globalAt(String name) {
+		SqueakObject key = symbol(name);
+		SqueakObject associationClass = getSpecialObject(Squeak.splOb_SchedulerAssociation).getSqClass();
+		for (SqueakObject each = getImage().nextInstance(0, associationClass); each != nilObj;
+				each = getImage().nextInstance(getImage().otIndexOfObject(each) + 1, associationClass))
+			if (each.getPointer(Squeak.Assn_key) == key)
+				return each.getPointer(Squeak.Assn_value);
+		throw new EvaluationFailedException("No global " + name);
 	}
     
     public void cannotReturn() {}
@@ -716,6 +1484,50 @@ public class SqueakVM {
 				primIndex);
 	} // DNU may affect argCount
 
+	/**
+	 * Send from a send site of a DecodedMethod.  The site's InlineCache is
+	 * probed first; only misses and megamorphic sites look in the global
+	 * MethodCache.  Sends that end in doesNotUnderstand: are not cached.
+	 */
+	void send(InlineCache cache) {
+		SqueakObject selector = cache.selector;
+		int argCount = cache.argCount;
+		if (!inlineCaching) {
+			send(selector, argCount, cache.isSuper);
+			return;
+		}
+		Object newRcvr = stackValue(argCount);
+		SqueakObject lookupClass;
+		if (cache.isSuper)
+			lookupClass = getMethod().methodClassForSuper().getPointerNI(Squeak.CLASS_SUPERCLASS);
+		else
+			lookupClass = getClass(newRcvr);
+		if (cache.epoch != inlineCacheEpoch)
+			cache.flush(inlineCacheEpoch);
+		SqueakObject newMethod;
+		int primIndex;
+		int i = cache.indexOf(lookupClass);
+		if (i >= 0) {
+			newMethod = cache.methods[i];
+			primIndex = cache.primIndexes[i];
+		} else {
+			int priorSP = getSp(); // to check if DNU changes argCount
+			MethodCache.MethodCacheEntry entry = findSelectorInClass(selector, argCount,
+					lookupClass);
+			newMethod = entry.method;
+			primIndex = entry.primIndex;
+			if (entry.selector == selector && !cache.megamorphic)
+				cache.add(lookupClass, newMethod, primIndex);
+			argCount += getSp() - priorSP;
+		}
+		if (primIndex > 0) {
+			// note details for verification of at/atput primitives
+			setVerifyAtSelector(selector);
+			setVerifyAtClass(lookupClass);
+		}
+		executeNewMethod(newRcvr, newMethod, argCount, primIndex);
+	}
+
 	public MethodCache.MethodCacheEntry findSelectorInClass(SqueakObject selector,
 			int argCount, SqueakObject startingClass) {
 		MethodCache.MethodCacheEntry cacheEntry 
@@ -753,6 +1565,8 @@ public class SqueakVM {
 								// unrecoverable error.
 			throw new RuntimeException(
 					"Recursive not understood error encountered");
+		if (stopContext != null && notUnderstood == null)
+			notUnderstood = classNameOf(startingClass) + " does not understand #" + selector.asString();
 		SqueakObject dnuMsg = createActualMessage(selector, argCount,
 				startingClass); // The argument to doesNotUnderstand:
 		popNandPush(argCount, dnuMsg);
@@ -811,44 +1625,64 @@ public class SqueakVM {
 		if (primitiveIndex > 0)
 			if (tryPrimitive(primitiveIndex, argumentCount))
 				return; // Primitive succeeded -- end of story
-		SqueakObject newContext = allocateOrRecycleContext(newMethod
-				.methodNeedsLargeFrame());
-		int methodNumLits = getMethod().methodNumLits();
+		// The threaded-code loop has the header decoded already
+		DecodedMethod newCode = threadedCode ? decodedMethodFor(newMethod) : null;
+		SqueakObject newContext = allocateOrRecycleContext(newCode != null ? newCode.largeFrame
+				: newMethod.methodNeedsLargeFrame());
 		// Our initial IP is -1, so first fetch gets bits[0]
 		// The stored IP should be 1-based index of *next* instruction, offset
 		// by hdr and lits
 		int newPC = -1;
-		int tempCount = newMethod.methodTempCount();
+		int tempCount = newCode != null ? newCode.tempCount : newMethod.methodTempCount();
 		int newSP = tempCount;
 		newSP += Squeak.CONTEXT_TEMP_FRAME_START - 1; // -1 for z-rel addressing
-		newContext.setPointer(Squeak.CONTEXT_METHOD, newMethod);
+		// Contexts are stored into directly: the image scans and writes them
+		// whether they are marked dirty or not
+		Object[] newFrame = newContext.pointers;
+		newFrame[Squeak.CONTEXT_METHOD] = newMethod;
 		// Following store is in case we alloc without init; all other fields
 		// get stored
-		newContext.setPointer(Squeak.BLOCK_CONTEXT_INITIAL_IP, nilObj);
-		newContext.setPointer(Squeak.CONTEXT_SENDER, getActiveContext());
+		newFrame[Squeak.BLOCK_CONTEXT_INITIAL_IP] = nilObj;
+		newFrame[Squeak.CONTEXT_SENDER] = getActiveContext();
 		// Copy receiver and args to new context
 		// Note this statement relies on the receiver slot being contiguous with
 		// args...
-		System.arraycopy(getActiveContext().pointers, getSp() - argumentCount,
-				newContext.pointers, Squeak.CONTEXT_TEMP_FRAME_START - 1,
+		System.arraycopy(activeStack, getSp() - argumentCount,
+				newFrame, Squeak.CONTEXT_TEMP_FRAME_START - 1,
 				argumentCount + 1);
 		// ...and fill the remaining temps with nil
-		Arrays.fill(newContext.pointers, Squeak.CONTEXT_TEMP_FRAME_START
+		Arrays.fill(newFrame, Squeak.CONTEXT_TEMP_FRAME_START
 				+ argumentCount, Squeak.CONTEXT_TEMP_FRAME_START + tempCount,
 				nilObj);
 		popN(argumentCount + 1);
 		setReclaimableContextCount(getReclaimableContextCount() + 1);
-		storeContextRegisters();
+		if (activeUnstored && frameCount < MAX_FRAMES) {
+			// the image has not seen the sender yet; keep its registers unboxed
+			frameContexts[frameCount] = getActiveContext();
+			framePcs[frameCount] = pc;
+			frameSps[frameCount] = sp;
+			frameCount++;
+		} else
+			storeContextRegisters();
 		activeContext = newContext; // We're off and running...
+		activeStack = newFrame;
 		// Following are more efficient than fetchContextRegisters in
 		// newActiveContext:
 		homeContext = newContext;
+		homeFrame = newFrame;
 		method = newMethod;
-		methodBytes = (byte[]) getMethod().getBits();
+		if (newCode != null) {
+			decoded = newCode;
+			methodBytes = newCode.bytes;
+			if (tieredCompilation)
+				countHotness(newCode);
+		} else
+			methodBytes = (byte[]) getMethod().getBits();
 		pc = newPC;
 		sp = newSP;
-		storeContextRegisters(); // not really necessary, I claim
-		receiver = newContext.getPointer(Squeak.CONTEXT_RECEIVER);
+		activeUnstored = true;
+		receiver = newFrame[Squeak.CONTEXT_RECEIVER];
+		receiverFields = fieldsOf(receiver);
 		if (receiver != newRcvr)
 			System.err.println("receiver doesnt match");
 		checkForInterrupts();
@@ -934,10 +1768,11 @@ public class SqueakVM {
 		if (isSmallInt(stackValue(0)))
 			return false;
 		SqueakObject args = (SqueakObject) stackValue(0);
-		if (args.pointers == null)
+		Object[] argPointers = args.getPointers();
+		if (argPointers == null)
 			return false;
-		int trueArgCount = args.pointers.length;
-		System.arraycopy(args.pointers, 0, getActiveContext().pointers, getSp() - 1,
+		int trueArgCount = argPointers.length;
+		System.arraycopy(argPointers, 0, getActiveContext().pointers, getSp() - 1,
 				trueArgCount);
 		sp = sp - 2 + trueArgCount; // pop selector and array then push args
 		MethodCache.MethodCacheEntry entry 
@@ -1023,7 +1858,7 @@ public class SqueakVM {
     // FIXME: remove this method
 	public SqueakObject instantiateClass(SqueakObject theClass,
 			int indexableSize) {
-		return new SqueakObject(getImage(), theClass, indexableSize, nilObj);
+		return SqueakObject.instantiate(getImage(), theClass, indexableSize, nilObj);
 	}
     
 	public void printContext() {
@@ -1163,6 +1998,10 @@ public class SqueakVM {
 		this.reclaimableContextCount = reclaimableContextCount;
 	}
 
+	public int getInterruptKeycode() {
+		return interruptKeycode;
+	}
+
 	public int getNextWakeupTick() {
 		return nextWakeupTick;
 	}
@@ -1176,14 +2015,63 @@ public class SqueakVM {
 	}
 
 	public boolean clearMethodCache() {
+		translationEpoch++;
+		inlineCacheEpoch++;
 		return methodCache.clearMethodCache();
 	}
 
 	public boolean flushMethodCacheForMethod(SqueakObject method) {
+		if (method instanceof CompiledMethodObject)
+			((CompiledMethodObject) method).dropTranslation();
+		inlineCacheEpoch++;
 		return methodCache.flushMethodCacheForMethod(method);
 	}
 
+	/**
+	 * Flushes what the caches hold about the objects a become changed, the
+	 * keys of mutations and what replaced them (see BecomeCheck), and only
+	 * that: MethodCache entries and InlineCache sites whose lookup went
+	 * through one, AtCache entries for one or an instance of one, and the
+	 * translations among translatedMethods whose literals include one or
+	 * that send one as a selector, which their InlineCaches hold for good.
+	 */
+	public void flushCachesForBecome(Map<SqueakObject, Object> mutations, List<SqueakObject> translatedMethods) {
+		BecomeCheck check = new BecomeCheck(mutations, nilObj);
+		methodCache.flushMethodCacheForBecome(check);
+		primHandler.flushAtCacheForBecome(check);
+		for (SqueakObject each : translatedMethods) {
+			CompiledMethodObject method = (CompiledMethodObject) each;
+			DecodedMethod code = method.decodedMethod;
+			if (code == null)
+				continue;
+			boolean stale = false;
+			for (Object literal : code.literals) {
+				if (literal instanceof InlineCache) {
+					InlineCache cache = (InlineCache) literal;
+					if (check.involves(cache.selector))
+						stale = true;
+					else
+						flushInlineCacheForBecome(cache, check);
+				} else if (literal != null && mutations.containsKey(literal))
+					stale = true;
+			}
+			if (stale)
+				method.dropTranslation();
+		}
+	}
+
+	private void flushInlineCacheForBecome(InlineCache cache, BecomeCheck check) {
+		if (cache.epoch != inlineCacheEpoch)
+			return; // empties itself on its next send anyway
+		for (int i = 0; i < cache.size; i++)
+			if (check.affectsLookup(cache.classes[i], cache.selector, cache.methods[i])) {
+				cache.flush(inlineCacheEpoch);
+				return;
+			}
+	}
+
 	public boolean flushMethodCacheForSelector(SqueakObject selector) {
+		inlineCacheEpoch++;
 		return methodCache.flushMethodCacheForSelector(selector);
 	}
 }
@@ -0,0 +1,43 @@
+package jsqueak.vm;
+
+/**
+ * The VM's clock: a daemon thread that asks for an interrupt check when
+ * the timer semaphore is due or the millisecond clock wrapped, and once a
+ * second while the image wants to hear of low space, so the
+ * interpreter only tests a flag at sends and backward jumps instead of
+ * reading the clock.  The interrupt key and external semaphore signals
+ * ask for their check directly, from the thread they come from.
+ */
+final class Ticker extends Thread {
+	private static final int PERIOD_MS= 1;
+	private static final int SPACE_CHECK_MS= 1000;
+
+	private final SqueakVM vm;
+	private int lastNow;
+	private int lastSpaceCheck;
+
+	Ticker(SqueakVM vm) {
+		super("JSqueak ticker");
+		setDaemon(true);
+		this.vm= vm;
+	}
+
+	public void run() {
+		try {
+			while (!isInterrupted()) {
+				Thread.sleep(PERIOD_MS);
+				int now= SqueakVM.millisecondClock();
+				int wakeup= vm.getNextWakeupTick();
+				boolean spaceCheckDue= vm.getLowSpaceThreshold() > 0 && now - lastSpaceCheck >= SPACE_CHECK_MS;
+				if (spaceCheckDue)
+					lastSpaceCheck= now;
+				if (now < lastNow || (wakeup != 0 && now >= wakeup) || spaceCheckDue)
+					vm.requestInterruptCheck();
+				lastNow= now;
+			}
+		}
+		catch (InterruptedException e) {
+			// stopped
+		}
+	}
+}
@@ -0,0 +1,42 @@
+package jsqueak.vm;
+
+import java.io.PrintStream;
+
+/**
+ * Writes a String argument to a Java stream, turning the image's CRs into
+ * line separators.  SqueakVM.setTranscript() makes TranscriptStream>>endEntry
+ * call it.
+ */
+final class TranscriptPrimitive extends Primitive {
+	static final int INDEX= 1000;
+
+	private final SqueakVM vm;
+	private volatile PrintStream out;
+
+	TranscriptPrimitive(SqueakVM vm, PrintStream out) {
+		super("Transcript show:");
+		this.vm= vm;
+		this.out= out;
+	}
+
+	void setOut(PrintStream out) {
+		this.out= out;
+	}
+
+	public boolean execute(int argCount) {
+		Object string= vm.stackValue(0);
+		if (argCount != 1 || !(string instanceof SqueakObject) || !(((SqueakObject) string).getBits() instanceof byte[]))
+			return false;
+		byte[] bytes= (byte[]) ((SqueakObject) string).getBits();
+		PrintStream stream= out;
+		for (int i= 0; i<bytes.length; i++) {
+			if (bytes[i] == '\r')
+				stream.println();
+			else
+				stream.write(bytes[i]);
+		}
+		stream.flush();
+		vm.pop(); // answer the receiver
+		return true;
+	}
+}
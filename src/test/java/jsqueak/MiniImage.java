@@ -0,0 +1,51 @@
+package jsqueak;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+
+import jsqueak.display.impl.NullScreenFactory;
+import jsqueak.image.SqueakImage;
+import jsqueak.io.impl.NullKeyboardFactory;
+import jsqueak.monitor.LogMonitor;
+import jsqueak.monitor.Monitor;
+import jsqueak.vm.SqueakVM;
+
+/** The mini image the VM starts by default, for tests. */
+public class MiniImage {
+	public static final Monitor MONITOR = new LogMonitor(null);
+
+	private static final String RESOURCE = "/mini.image.gz";
+
+	public static SqueakImage load() throws IOException {
+		InputStream in = MiniImage.class.getResourceAsStream(RESOURCE);
+		try {
+			return new SqueakImage(in, MONITOR);
+		} finally {
+			in.close();
+		}
+	}
+
+	/** Writes the compressed image to file, e.g. to load it from there. */
+	public static void copyTo(File file) throws IOException {
+		InputStream in = MiniImage.class.getResourceAsStream(RESOURCE);
+		try {
+			Files.copy(in, file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+		} finally {
+			in.close();
+		}
+	}
+
+	/** A headless VM on image, configured as Starter would. */
+	public static SqueakVM newVM(SqueakImage image) {
+		SqueakVM vm = new SqueakVM(image, MONITOR, new NullScreenFactory(), new NullKeyboardFactory());
+		Starter.configure(vm);
+		return vm;
+	}
+
+	public static SqueakVM newVM() throws IOException {
+		return newVM(load());
+	}
+}
@@ -0,0 +1,97 @@
+package jsqueak;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.math.BigInteger;
+
+import jsqueak.vm.EvaluationFailedException;
+
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.ClassRule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class SmalltalkTest {
+	@ClassRule
+	public static final TemporaryFolder folder = new TemporaryFolder();
+
+	private static Smalltalk smalltalk;
+
+	@BeforeClass
+	public static void setUpClass() throws Exception {
+		File image = folder.newFile("mini.image.gz");
+		MiniImage.copyTo(image);
+		smalltalk = new Smalltalk(image.getPath());
+	}
+
+	@AfterClass
+	public static void tearDownClass() {
+		smalltalk.close();
+	}
+
+	@Test
+	public void testConvertsValues() throws Exception {
+		assertEquals(Integer.valueOf(7), value("3 + 4"));
+		assertNull(value("nil"));
+		assertEquals(Boolean.TRUE, value("3 > 2"));
+		assertEquals(Boolean.FALSE, value("3 < 2"));
+		assertEquals(Double.valueOf(2.5), value("5 / 2.0"));
+		assertEquals("abc", value("'abc'"));
+		assertEquals("foo", value("#foo"));
+		assertEquals(Character.valueOf('a'), value("$a"));
+		assertEquals(Long.valueOf(1L << 40), value("1 bitShift: 40"));
+		assertEquals(Long.valueOf(-(1L << 40)), value("(1 bitShift: 40) negated"));
+		assertEquals(new BigInteger("2").pow(100), value("2 raisedTo: 100"));
+		assertArrayEquals(new Object[] {Integer.valueOf(1), "x", null}, (Object[]) value("Array with: 1 with: 'x' with: nil"));
+		assertEquals("an Object", value("Object new"));
+	}
+
+	@Test
+	public void testConvertsArrayCycles() throws Exception {
+		Object[] array = (Object[]) value("| a | a := Array new: 1. a at: 1 put: a. a");
+		assertTrue(array[0] == array);
+	}
+
+	@Test
+	public void testReportsPrintStringAndTranscript() throws Exception {
+		SmalltalkCallResult result = smalltalk.eval("Transcript show: 'hello'. 3/4");
+		assertEquals("(3/4)", result.getPrintString());
+		assertEquals("hello", result.getTranscript());
+	}
+
+	@Test
+	public void testReplacesVMOfFailedEvaluation() throws Exception {
+		value("Smalltalk at: #SmalltalkTestGlobal put: 42");
+		assertEquals(Integer.valueOf(42), value("Smalltalk at: #SmalltalkTestGlobal"));
+		try {
+			value("nil foo");
+			fail("evaluated");
+		} catch (EvaluationFailedException e) {
+			assertTrue(e.getMessage(), e.getMessage().contains("UndefinedObject does not understand #foo"));
+		}
+		// A fresh copy of the image, without what the failed VM changed
+		assertEquals(Integer.valueOf(0), value("Smalltalk at: #SmalltalkTestGlobal ifAbsent: [0]"));
+		assertEquals(Integer.valueOf(7), value("3 + 4"));
+	}
+
+	@Test
+	public void testReportsErrorThatStoppedEvaluation() throws Exception {
+		try {
+			value("1 / 0.0");
+			fail("evaluated");
+		} catch (EvaluationFailedException e) {
+			// not the send the notifier itself did not understand
+			assertEquals("division by 0 (the image went idle in its notifier)", e.getMessage());
+		}
+	}
+
+	private static Object value(String expression) throws Exception {
+		return smalltalk.eval(expression).getValue();
+	}
+}
@@ -0,0 +1,246 @@
+package jsqueak.image;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import jsqueak.MiniImage;
+import jsqueak.display.impl.BitBlt;
+import jsqueak.vm.Primitive;
+import jsqueak.vm.SqueakObject;
+import jsqueak.vm.SqueakVM;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class ImagePersistenceTest {
+	private static final String STORE = "Smalltalk at: #PersistenceTest put: (Array with: 42 with: 'abc' with: 2.5)";
+	private static final String STORED = "(42 'abc' 2.5 )";
+	private static final String FETCH = "Smalltalk at: #PersistenceTest ifAbsent: [nil]";
+	private static final int CHECKPOINT_PRIMITIVE = 1001;
+	/** nestA, nestB and nestC send each other; nestC takes a checkpoint, nestA counts its runs. */
+	private static final String NESTED_SENDS = "Smalltalk at: #NestCount put: 0."
+			+ " UndefinedObject compile: 'nestCheckpoint <primitive: " + CHECKPOINT_PRIMITIVE + ">' classified: 'test' notifying: nil."
+			+ " UndefinedObject compile: 'nestA Smalltalk at: #NestCount put: (Smalltalk at: #NestCount) + 1. ^1 + self nestB'"
+			+ " classified: 'test' notifying: nil."
+			+ " UndefinedObject compile: 'nestB ^10 + self nestC' classified: 'test' notifying: nil."
+			+ " UndefinedObject compile: 'nestC self nestCheckpoint. ^100' classified: 'test' notifying: nil";
+
+	@Rule
+	public final TemporaryFolder folder = new TemporaryFolder();
+
+	@Test
+	public void testSavesAndReloadsCompressed() throws Exception {
+		File file = folder.newFile("saved.image.gz");
+		saveAfter(STORE, MiniImage.load(), file, false);
+		assertEquals(STORED, evaluate(new SqueakImage(file, MiniImage.MONITOR), FETCH));
+	}
+
+	@Test
+	public void testSavesAndReloads() throws Exception {
+		File file = folder.newFile("saved.image");
+		saveAfter(STORE, MiniImage.load(), file, false);
+		assertEquals(STORED, evaluate(new SqueakImage(file, MiniImage.MONITOR), FETCH));
+	}
+
+	@Test
+	public void testReloadsChainOfCheckpoints() throws Exception {
+		File base = folder.newFile("mini.image.gz");
+		MiniImage.copyTo(base);
+		File first = folder.newFile("first.checkpoint");
+		File second = folder.newFile("second.checkpoint");
+		SqueakVM vm = MiniImage.newVM(new SqueakImage(base, MiniImage.MONITOR));
+		try {
+			vm.evaluate(STORE);
+			vm.checkpoint(first);
+			vm.evaluate("(Smalltalk at: #PersistenceTest) at: 1 put: 43. Smalltalk at: #PersistenceTest2 put: 'def' , 'ghi'");
+			vm.checkpoint(second);
+		} finally {
+			vm.stopTicker();
+		}
+		assertEquals(STORED, evaluate(new SqueakImage(base, Collections.singletonList(first), MiniImage.MONITOR), FETCH));
+		assertEquals("((43 'abc' 2.5 ) 'defghi' )", evaluate(new SqueakImage(base, Arrays.asList(first, second), MiniImage.MONITOR),
+				"Array with: (Smalltalk at: #PersistenceTest) with: (Smalltalk at: #PersistenceTest2)"));
+	}
+
+	@Test
+	public void testRefusesCheckpointsOutOfOrder() throws Exception {
+		File base = folder.newFile("mini.image.gz");
+		MiniImage.copyTo(base);
+		File first = folder.newFile("first.checkpoint");
+		File second = folder.newFile("second.checkpoint");
+		SqueakVM vm = MiniImage.newVM(new SqueakImage(base, MiniImage.MONITOR));
+		try {
+			vm.checkpoint(first);
+			vm.checkpoint(second);
+		} finally {
+			vm.stopTicker();
+		}
+		try {
+			new SqueakImage(base, Collections.singletonList(second), MiniImage.MONITOR);
+			fail("read the second checkpoint without the first");
+		} catch (IOException e) {
+			// expected
+		}
+	}
+
+	@Test
+	public void testSavesAndReloadsNative() throws Exception {
+		File file = folder.newFile("saved.jsq");
+		saveAfter(STORE, MiniImage.load(), file, true);
+		SqueakImage image = new SqueakImage(file, false, MiniImage.MONITOR);
+		assertEquals(STORED, evaluate(image, FETCH));
+	}
+
+	@Test
+	public void testNativeImageStaysNative() throws Exception {
+		File file = folder.newFile("saved.jsq");
+		saveAfter(STORE, MiniImage.load(), file, true);
+		File again = folder.newFile("again.jsq");
+		saveAfter("Smalltalk at: #PersistenceTest2 put: 7", new SqueakImage(file, MiniImage.MONITOR), again, false);
+		assertEquals("((42 'abc' 2.5 ) 7 )", evaluate(new SqueakImage(again, MiniImage.MONITOR),
+				"Array with: (Smalltalk at: #PersistenceTest) with: (Smalltalk at: #PersistenceTest2)"));
+	}
+
+	@Test
+	public void testReloadsNativeWithCheckpoint() throws Exception {
+		File base = folder.newFile("saved.jsq");
+		saveAfter(STORE, MiniImage.load(), base, true);
+		File checkpoint = folder.newFile("saved.checkpoint");
+		SqueakVM vm = MiniImage.newVM(new SqueakImage(base, MiniImage.MONITOR));
+		try {
+			vm.evaluate("(Smalltalk at: #PersistenceTest) at: 2 put: 'xyz'");
+			vm.checkpoint(checkpoint);
+		} finally {
+			vm.stopTicker();
+		}
+		List<File> checkpoints = Collections.singletonList(checkpoint);
+		assertEquals("(42 'xyz' 2.5 )", evaluate(new SqueakImage(base, checkpoints, MiniImage.MONITOR), FETCH));
+	}
+
+	@Test
+	public void testResumesSendersOfCheckpointInNestedSend() throws Exception {
+		File base = folder.newFile("mini.image.gz");
+		MiniImage.copyTo(base);
+		final File checkpoint = folder.newFile("nested.checkpoint");
+		final SqueakVM vm = MiniImage.newVM(new SqueakImage(base, MiniImage.MONITOR));
+		try {
+			vm.getPrimitiveTable().put(CHECKPOINT_PRIMITIVE, new Primitive("checkpoint") {
+				public boolean execute(int argCount) {
+					try {
+						vm.checkpoint(checkpoint);
+					} catch (IOException e) {
+						return false;
+					}
+					return true;
+				}
+			});
+			vm.evaluate(NESTED_SENDS);
+			assertEquals(Integer.valueOf(111), vm.evaluate("nil nestA"));
+		} finally {
+			vm.stopTicker();
+		}
+		SqueakVM reloaded = MiniImage.newVM(new SqueakImage(base, Collections.singletonList(checkpoint), MiniImage.MONITOR));
+		try {
+			// The doit answers into nestB as nestC would, and nestA into nestC, where perform() stops
+			assertEquals(Integer.valueOf(111), reloaded.evaluate("| m c b | m := UndefinedObject compiledMethodAt: #nestC."
+					+ " c := thisContext. [c method == m] whileFalse: [c := c sender]. b := c sender."
+					+ " b sender instVarAt: 1 put: c. thisContext instVarAt: 1 put: b. 100"));
+			assertEquals(Integer.valueOf(1), reloaded.evaluate("Smalltalk at: #NestCount"));
+		} finally {
+			reloaded.stopTicker();
+		}
+	}
+
+	@Test
+	public void testReloadsLazily() throws Exception {
+		File file = folder.newFile("saved.image");
+		saveAfter(STORE, MiniImage.load(), file, false);
+		SqueakImage image = new SqueakImage(file, true, MiniImage.MONITOR);
+		assertFalse(image.getSpecialObjectsArray().isMaterialized());
+		assertEquals(STORED, evaluate(image, FETCH));
+		assertTrue(image.getSpecialObjectsArray().isMaterialized());
+	}
+
+	@Test
+	public void testReloadsNativeLazily() throws Exception {
+		File file = folder.newFile("saved.jsq");
+		saveAfter(STORE, MiniImage.load(), file, true);
+		SqueakImage image = new SqueakImage(file, true, MiniImage.MONITOR);
+		assertFalse(image.getSpecialObjectsArray().isMaterialized());
+		assertEquals(STORED, evaluate(image, FETCH));
+	}
+
+	@Test
+	public void testSavesWhatWasNotRead() throws Exception {
+		File file = folder.newFile("saved.image");
+		saveAfter(STORE, MiniImage.load(), file, false);
+		File again = folder.newFile("again.jsq");
+		SqueakImage lazy = new SqueakImage(file, true, MiniImage.MONITOR);
+		lazy.saveNative(again);
+		assertEquals(STORED, evaluate(new SqueakImage(again, true, MiniImage.MONITOR), FETCH));
+	}
+
+	@Test
+	public void testIsolatedImagesWriteWordsInTheirOwnCopy() throws Exception {
+		SqueakImage template = MiniImage.load();
+		SqueakImage writer = template.isolate();
+		SqueakImage reader = template.isolate();
+		String before = evaluate(template, "Bitmap someInstance at: 1");
+		assertEquals("12345", evaluate(writer, "Bitmap someInstance at: 1 put: 12345. Bitmap someInstance at: 1"));
+		assertEquals(before, evaluate(reader, "Bitmap someInstance at: 1"));
+		assertEquals(before, evaluate(template, "Bitmap someInstance at: 1"));
+	}
+
+	/** Headless, copyBits does nothing, so the BitBlt the image sets up is run from here. */
+	@Test
+	public void testIsolatedImagesBitBltIntoTheirOwnCopy() throws Exception {
+		SqueakImage template = MiniImage.load();
+		evaluate(template, "Smalltalk at: #ProbeForm put: (Form extent: 32@4 depth: 1)");
+		SqueakImage writer = template.isolate();
+		SqueakVM vm = MiniImage.newVM(writer);
+		try {
+			SqueakObject invert = (SqueakObject) vm.evaluate("BitBlt destForm: ProbeForm sourceForm: nil halftoneForm: nil"
+					+ " combinationRule: 10 destOrigin: 0@0 sourceOrigin: 0@0 extent: 32@4 clipRect: ProbeForm boundingBox");
+			BitBlt bitBlt = new BitBlt(vm);
+			assertTrue(bitBlt.loadBitBlt(invert, 0, false, null));
+			bitBlt.copyBits();
+			assertEquals("4294967295", vm.printStringOf(vm.evaluate("ProbeForm bits at: 1")));
+		} finally {
+			vm.stopTicker();
+		}
+		assertEquals("0", evaluate(template, "ProbeForm bits at: 1"));
+	}
+
+	/** Evaluates expression in a VM on image, then saves image to file. */
+	private static void saveAfter(String expression, SqueakImage image, File file, boolean natively) throws IOException {
+		SqueakVM vm = MiniImage.newVM(image);
+		try {
+			vm.evaluate(expression);
+		} finally {
+			vm.stopTicker();
+		}
+		if (natively)
+			image.saveNative(file);
+		else
+			image.save(file);
+	}
+
+	/** The printString of what expression evaluates to in a VM on image. */
+	private static String evaluate(SqueakImage image, String expression) throws IOException {
+		SqueakVM vm = MiniImage.newVM(image);
+		try {
+			return vm.printStringOf(vm.evaluate(expression));
+		} finally {
+			vm.stopTicker();
+		}
+	}
+}
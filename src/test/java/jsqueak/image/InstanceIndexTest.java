@@ -0,0 +1,128 @@
+package jsqueak.image;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+import jsqueak.vm.SqueakObject;
+
+import org.junit.Before;
+import org.junit.Test;
+
+public class InstanceIndexTest {
+	private final SqueakObject classA = new SqueakObject();
+	private final SqueakObject classB = new SqueakObject();
+	private final List<SqueakObject> registered = new ArrayList<SqueakObject>(); // the table holds them weakly
+	private ObjectTable table;
+	private int otMaxUsed;
+
+	@Before
+	public void setUp() {
+		table = new ObjectTable(1);
+		otMaxUsed = -1;
+	}
+
+	@Test
+	public void testEnumeratesInTableOrder() throws Exception {
+		List<SqueakObject> as = new ArrayList<SqueakObject>();
+		for (int i = 0; i < 100; i++) {
+			SqueakObject a = register(classA);
+			as.add(a);
+			register(classB);
+		}
+		InstanceIndex index = new InstanceIndex(table, otMaxUsed);
+		assertEquals(as, instances(index, classA));
+		assertEquals(100, instances(index, classB).size());
+	}
+
+	@Test
+	public void testAddsRegisteredObjectsLast() throws Exception {
+		SqueakObject first = register(classA);
+		InstanceIndex index = new InstanceIndex(table, otMaxUsed);
+		SqueakObject second = register(classA);
+		index.add(second);
+		SqueakObject third = register(classA);
+		index.add(third);
+		assertEquals(list(first, second, third), instances(index, classA));
+		assertSame(second, index.next(table, first.getOtIndex() + 1, classA));
+		assertNull(index.next(table, third.getOtIndex() + 1, classA));
+	}
+
+	@Test
+	public void testKeepsOrderAfterCompaction() throws Exception {
+		List<SqueakObject> survivors = new ArrayList<SqueakObject>();
+		for (int i = 0; i < 3*ObjectTable.SEGMENT_SIZE/2; i++) {
+			SqueakObject a = register(i % 2 == 0 ? classA : classB);
+			if (i % 3 != 0 && i % 2 == 0)
+				survivors.add(a);
+		}
+		InstanceIndex index = new InstanceIndex(table, otMaxUsed);
+		// Compact as the image does after a GC, with every third object collected
+		int start = 10;
+		int writePtr = start;
+		for (int i = start; i <= otMaxUsed; i++)
+			if (i % 3 == 0)
+				table.clear(i);
+			else
+				table.move(i, writePtr++);
+		otMaxUsed = writePtr - 1;
+		index.renumberFrom(table, start, otMaxUsed);
+		List<SqueakObject> expected = new ArrayList<SqueakObject>();
+		for (int i = 0; i < start; i += 2)
+			expected.add(table.get(i));
+		for (SqueakObject each : survivors)
+			if (each.getOtIndex() >= start)
+				expected.add(each);
+		assertEquals(expected, instances(index, classA));
+	}
+
+	@Test
+	public void testMovesInstancesOfBecomeClasses() throws Exception {
+		SqueakObject a1 = register(classA);
+		SqueakObject b1 = register(classB);
+		SqueakObject a2 = register(classA);
+		SqueakObject b2 = register(classB);
+		InstanceIndex index = new InstanceIndex(table, otMaxUsed);
+		Map<SqueakObject, Object> swap = new IdentityHashMap<SqueakObject, Object>();
+		swap.put(classA, classB);
+		swap.put(classB, classA);
+		index.mutateClasses(swap);
+		assertEquals(list(b1, b2), instances(index, classA));
+		assertEquals(list(a1, a2), instances(index, classB));
+		Map<SqueakObject, Object> merge = new IdentityHashMap<SqueakObject, Object>();
+		merge.put(classA, classB);
+		index.mutateClasses(merge);
+		assertEquals(list(a1, b1, a2, b2), instances(index, classB));
+		assertEquals(list(), instances(index, classA));
+	}
+
+	private SqueakObject register(SqueakObject sqClass) {
+		SqueakObject obj = new SqueakObject();
+		obj.setSqClass(sqClass);
+		if (otMaxUsed + 1 == table.capacity())
+			table.grow(1);
+		table.put(++otMaxUsed, obj);
+		registered.add(obj);
+		return obj;
+	}
+
+	private List<SqueakObject> instances(InstanceIndex index, SqueakObject sqClass) {
+		List<SqueakObject> found = new ArrayList<SqueakObject>();
+		for (SqueakObject each = index.next(table, 0, sqClass); each != null;
+				each = index.next(table, each.getOtIndex() + 1, sqClass))
+			found.add(each);
+		return found;
+	}
+
+	private static List<SqueakObject> list(SqueakObject... objects) {
+		List<SqueakObject> list = new ArrayList<SqueakObject>();
+		for (SqueakObject each : objects)
+			list.add(each);
+		return list;
+	}
+}
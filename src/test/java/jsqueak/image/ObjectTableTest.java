@@ -0,0 +1,85 @@
+package jsqueak.image;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import jsqueak.MiniImage;
+import jsqueak.Squeak;
+import jsqueak.vm.SqueakObject;
+import jsqueak.vm.SqueakVM;
+
+import org.junit.Test;
+
+public class ObjectTableTest {
+	private static final int SEGMENT_SIZE = ObjectTable.SEGMENT_SIZE;
+
+	@Test
+	public void testGrowsASegmentAtATime() throws Exception {
+		ObjectTable table = new ObjectTable(1);
+		assertEquals(SEGMENT_SIZE, table.capacity());
+		table.grow(SEGMENT_SIZE + 1);
+		assertEquals(3*SEGMENT_SIZE, table.capacity());
+		for (int i = 0; i < 40; i++)
+			table.grow(1);
+		assertEquals(43*SEGMENT_SIZE, table.capacity());
+	}
+
+	@Test
+	public void testKeepsObjectsAcrossSegmentBoundary() throws Exception {
+		ObjectTable table = new ObjectTable(1);
+		SqueakObject last = new SqueakObject();
+		table.put(SEGMENT_SIZE - 1, last);
+		table.grow(1);
+		SqueakObject first = new SqueakObject();
+		table.put(SEGMENT_SIZE, first);
+		assertSame(last, table.get(SEGMENT_SIZE - 1));
+		assertSame(first, table.get(SEGMENT_SIZE));
+		assertEquals(SEGMENT_SIZE - 1, last.getOtIndex());
+		assertEquals(SEGMENT_SIZE, first.getOtIndex());
+	}
+
+	@Test
+	public void testMovesDownAcrossSegmentBoundary() throws Exception {
+		ObjectTable table = new ObjectTable(2*SEGMENT_SIZE);
+		SqueakObject obj = new SqueakObject();
+		table.put(SEGMENT_SIZE + 5, obj);
+		table.clear(3);
+		assertTrue(table.isCollected(3));
+		table.move(SEGMENT_SIZE + 5, 3);
+		assertSame(obj, table.get(3));
+		assertEquals(3, obj.getOtIndex());
+		assertFalse(table.isCollected(3));
+		assertTrue(table.isCollected(SEGMENT_SIZE + 5));
+	}
+
+	@Test
+	public void testCompactionKeepsOrderAcrossSegments() throws Exception {
+		SqueakVM vm = MiniImage.newVM();
+		vm.stopTicker();
+		SqueakImage image = vm.getImage();
+		image.fullGC();
+		List<SqueakObject> kept = new ArrayList<SqueakObject>();
+		for (int i = 0; i < 2*SEGMENT_SIZE; i++) {
+			SqueakObject obj = vm.instantiateClass(Squeak.splOb_ClassArray, 0);
+			image.registerObject(obj);
+			if (i % 3 == 0)
+				kept.add(obj); // the others are garbage
+		}
+		int lastIndex = kept.get(kept.size() - 1).getOtIndex();
+		image.fullGC();
+		for (int i = 1; i < kept.size(); i++)
+			assertTrue(kept.get(i - 1).getOtIndex() < kept.get(i).getOtIndex());
+		assertTrue(kept.get(kept.size() - 1).getOtIndex() < lastIndex);
+		SqueakObject arrayClass = kept.get(0).getSqClass();
+		int found = 0;
+		for (SqueakObject each = image.nextInstance(kept.get(0).getOtIndex(), arrayClass); each != vm.nilObj;
+				each = image.nextInstance(image.otIndexOfObject(each) + 1, arrayClass))
+			assertSame(kept.get(found++), each);
+		assertEquals(kept.size(), found);
+	}
+}
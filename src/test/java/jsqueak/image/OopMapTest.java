@@ -0,0 +1,73 @@
+package jsqueak.image;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+import java.util.IdentityHashMap;
+import java.util.Map;
+
+import jsqueak.vm.SqueakObject;
+
+import org.junit.Test;
+
+public class OopMapTest {
+
+	@Test
+	public void testGrowsPastCapacity() throws Exception {
+		OopMap map = new OopMap(0);
+		SqueakObject[] objects = new SqueakObject[10000];
+		for (int i = 0; i < objects.length; i++) {
+			objects[i] = new SqueakObject();
+			map.add(oop(i), objects[i]);
+		}
+		assertEquals(objects.length, map.size());
+		for (int i = 0; i < objects.length; i++)
+			assertSame(objects[i], map.get(oop(i)));
+	}
+
+	@Test
+	public void testMissesOopsNotAdded() throws Exception {
+		OopMap map = new OopMap(16);
+		assertNull(map.get(oop(0)));
+		for (int i = 0; i < 100; i++)
+			map.add(oop(i), new SqueakObject());
+		assertNull(map.get(oop(0) - 8));
+		assertNull(map.get(oop(50) + 4)); // between two objects
+		assertNull(map.get(oop(100)));
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testRejectsOopAddedTwice() throws Exception {
+		OopMap map = new OopMap(16);
+		map.add(oop(1), new SqueakObject());
+		map.add(oop(1), new SqueakObject());
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testRejectsOopsOutOfOrder() throws Exception {
+		OopMap map = new OopMap(16);
+		map.add(oop(2), new SqueakObject());
+		map.add(oop(1), new SqueakObject());
+	}
+
+	@Test
+	public void testBecomeMapsToReplacements() throws Exception {
+		OopMap map = new OopMap(16);
+		SqueakObject kept = new SqueakObject();
+		SqueakObject replaced = new SqueakObject();
+		SqueakObject replacement = new SqueakObject();
+		map.add(oop(0), kept);
+		map.add(oop(1), replaced);
+		Map<SqueakObject, Object> mutations = new IdentityHashMap<SqueakObject, Object>();
+		mutations.put(replaced, replacement);
+		map.become(mutations);
+		assertSame(kept, map.get(oop(0)));
+		assertSame(replacement, map.get(oop(1)));
+	}
+
+	/** The oop of the i-th object of a snapshot of two-word objects. */
+	private static int oop(int i) {
+		return 0x1000 + 8*i;
+	}
+}
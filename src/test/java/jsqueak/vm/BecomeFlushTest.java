@@ -0,0 +1,93 @@
+package jsqueak.vm;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+import jsqueak.MiniImage;
+import jsqueak.Squeak;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class BecomeFlushTest {
+	/** Two classes whose foo answers false and true, and an instance of the first. */
+	private static final String CLASSES = "| c1 c2 x r |"
+			+ " c1 := Behavior new. c1 superclass: Object. c1 methodDictionary: MethodDictionary new. c1 instVarAt: 3 put: Object format."
+			+ " c2 := Behavior new. c2 superclass: Object. c2 methodDictionary: MethodDictionary new. c2 instVarAt: 3 put: Object format."
+			+ " (c1 instVarAt: 2) at: #foo put: (Object compiledMethodAt: #isNumber)."
+			+ " (c2 instVarAt: 2) at: #foo put: (Number compiledMethodAt: #isNumber)."
+			+ " x := c1 basicNew. r := 0.";
+	private static final String COUNT_FOO = " 1 to: 50 do: [:i | x foo ifTrue: [r := r + 1]].";
+
+	private SqueakVM vm;
+
+	@Before
+	public void setUp() throws Exception {
+		vm = MiniImage.newVM();
+		vm.setThreadedCode(true);
+	}
+
+	@After
+	public void tearDown() {
+		vm.stopTicker();
+	}
+
+	@Test
+	public void testSendsSeeBecomeOfMethodDictionary() throws Exception {
+		Object result = vm.evaluate(CLASSES + COUNT_FOO
+				+ " (Array with: (c1 instVarAt: 2)) elementsExchangeIdentityWith: (Array with: (c2 instVarAt: 2))."
+				+ COUNT_FOO + " r");
+		assertEquals(Integer.valueOf(50), result);
+	}
+
+	@Test
+	public void testSendsSeeBecomeOfClass() throws Exception {
+		Object result = vm.evaluate(CLASSES + COUNT_FOO
+				+ " (Array with: c1) elementsExchangeIdentityWith: (Array with: c2)."
+				+ COUNT_FOO + " r");
+		assertEquals(Integer.valueOf(50), result);
+	}
+
+	@Test
+	public void testAtCacheSeesBecome() throws Exception {
+		Object result = vm.evaluate("| k r | k := 'abc' copy. r := OrderedCollection new."
+				+ " 1 to: 30 do: [:i | r add: (k at: 1)]."
+				+ " (Array with: k) elementsExchangeIdentityWith: (Array with: #(7 8 9) copy)."
+				+ " r add: (k at: 1). r last");
+		assertEquals(Integer.valueOf(7), result);
+	}
+
+	@Test
+	public void testBecomeOfSentSelectorDropsTranslation() throws Exception {
+		CompiledMethodObject method = translated("printString");
+		SqueakObject selector = null;
+		for (Object each : method.decodedMethod.literals)
+			if (each instanceof InlineCache)
+				selector = ((InlineCache) each).selector;
+		assertNotNull(selector);
+		vm.getImage().bulkMutate(new Object[] {selector}, new Object[] {newObject()});
+		assertNull(method.decodedMethod);
+	}
+
+	@Test
+	public void testUnrelatedBecomeKeepsTranslation() throws Exception {
+		CompiledMethodObject method = translated("printString");
+		DecodedMethod translation = method.decodedMethod;
+		vm.getImage().bulkMutate(new Object[] {newObject()}, new Object[] {newObject()});
+		assertSame(translation, method.decodedMethod);
+	}
+
+	/** Object's method for selector, translated. */
+	private CompiledMethodObject translated(String selector) throws Exception {
+		CompiledMethodObject method = (CompiledMethodObject) vm.perform(vm.globalAt("Object"), "compiledMethodAt:", vm.symbol(selector));
+		vm.decodedMethodFor(method);
+		return method;
+	}
+
+	private SqueakObject newObject() {
+		return vm.instantiateClass(Squeak.splOb_ClassArray, 1);
+	}
+}
@@ -0,0 +1,55 @@
+package jsqueak.vm;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import jsqueak.MiniImage;
+import jsqueak.image.SqueakImage;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class RememberedSetTest {
+	/** A class without instances, and a global array to keep them in; someInstance starts the remembering. */
+	private static final String PROBE = "| c | c := Behavior new. c superclass: Object. c methodDictionary: MethodDictionary new."
+			+ " c instVarAt: 3 put: Object format. Smalltalk at: #ProbeClass put: c."
+			+ " Smalltalk at: #Probe put: (Array with: c basicNew with: nil). Object someInstance. c";
+
+	private SqueakVM vm;
+
+	@Before
+	public void setUp() throws Exception {
+		vm = MiniImage.newVM();
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		vm.evaluate("Smalltalk removeKey: #Probe ifAbsent: []. Smalltalk removeKey: #ProbeClass ifAbsent: []");
+		vm.stopTicker();
+	}
+
+	@Test
+	public void testFindsObjectsStoredIntoRegisteredOnes() throws Exception {
+		vm.evaluate(PROBE);
+		vm.evaluate("Probe at: 2 put: ProbeClass basicNew. nil");
+		assertEquals(Integer.valueOf(2), vm.evaluate("ProbeClass allInstances size"));
+	}
+
+	@Test
+	public void testFindsObjectsStoredOnThreadsNotBound() throws Exception {
+		SqueakObject probeClass = (SqueakObject) vm.evaluate(PROBE);
+		SqueakObject probe = (SqueakObject) vm.globalAt("Probe");
+		probe.setPointer(1, vm.instantiateClass(probeClass, 0));
+		assertEquals(Integer.valueOf(2), vm.evaluate("ProbeClass allInstances size"));
+	}
+
+	@Test
+	public void testStaysCompleteWhileAnotherImageIsIsolated() throws Exception {
+		vm.evaluate(PROBE);
+		SqueakImage template = MiniImage.load();
+		assertTrue(vm.getImage().getRememberedSet().isComplete());
+		template.isolate();
+		assertTrue(vm.getImage().getRememberedSet().isComplete());
+	}
+}
@@ -65,4 +65,22 @@ public class SqueakVMMathOperationsTest {
 		int result = SqueakMath.safeShift(4, 2);
 		assertEquals(16,result);
 	}
+
+	@Test
+	public void testSafeShiftNegative() throws Exception {
+		int result = SqueakMath.safeShift(-1, 3);
+		assertEquals(-8,result);
+	}
+
+	@Test
+	public void testSafeShiftRight() throws Exception {
+		int result = SqueakMath.safeShift(-5, -40);
+		assertEquals(-1,result);
+	}
+
+	@Test
+	public void testSafeShiftOverflow() throws Exception {
+		int result = SqueakMath.safeShift(1, 40);
+		assertEquals(SqueakMath.NON_SMALL_INT,result);
+	}
 }
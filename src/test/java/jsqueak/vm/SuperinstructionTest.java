@@ -0,0 +1,83 @@
+package jsqueak.vm;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.HashSet;
+import java.util.Set;
+
+import jsqueak.MiniImage;
+
+import org.junit.Test;
+
+/**
+ * Runs a probe whose pushes and specials DecodedMethod fuses into each of
+ * its push-push-special superinstructions, with superinstructions on and
+ * off, and compares what it answers.  Only SmallIntegers are handled by
+ * the superinstruction itself; other operands and overflows fall back to
+ * the plain instructions.
+ */
+public class SuperinstructionTest {
+	/** A sum with a store, a difference, a compare with a jump and a compare of a sum, of self and b; with classes. */
+	private static final String PROBE = "probe: b | a r d | a := self. r := self + 1. d := a - b."
+			+ " ^(Array new: 6) at: 1 put: r; at: 2 put: r class; at: 3 put: d; at: 4 put: d class;"
+			+ " at: 5 put: (a < b ifTrue: [#less] ifFalse: [#notLess]); at: 6 put: a + 2 = b; yourself";
+
+	@Test
+	public void testFusesSmallIntegers() throws Exception {
+		assertSameResult("3 probe: 5", "(4 SmallInteger -2 SmallInteger less true )");
+	}
+
+	@Test
+	public void testFallsBackOnOverflow() throws Exception {
+		assertSameResult("16r3FFFFFFF probe: -2",
+				"(1073741824 LargePositiveInteger 1073741825 LargePositiveInteger notLess false )");
+	}
+
+	@Test
+	public void testFallsBackForFloats() throws Exception {
+		assertSameResult("2.5 probe: 4.5", "(3.5 Float -2.0 Float less true )");
+	}
+
+	@Test
+	public void testFallsBackForLargeIntegers() throws Exception {
+		assertSameResult("16r40000000 probe: 7",
+				"(1073741825 LargePositiveInteger 1073741817 SmallInteger notLess false )");
+	}
+
+	@Test
+	public void testFallsBackForMixedOperands() throws Exception {
+		assertSameResult("7 probe: 16r40000000",
+				"(8 SmallInteger -1073741817 SmallInteger less false )");
+	}
+
+	/** Checks expression answers expected, run with and without superinstructions. */
+	private static void assertSameResult(String expression, String expected) throws Exception {
+		assertEquals("plain", expected, result(expression, false));
+		assertEquals("fused", expected, result(expression, true));
+	}
+
+	private static String result(String expression, boolean superinstructions) throws Exception {
+		SqueakVM vm = MiniImage.newVM();
+		try {
+			vm.setThreadedCode(true);
+			vm.setSuperinstructions(superinstructions);
+			vm.evaluate("Number compile: '" + PROBE + "' classified: 'probes' notifying: nil");
+			String result = vm.printStringOf(vm.evaluate(expression));
+			if (superinstructions)
+				assertFusesAll(((CompiledMethodObject) vm.evaluate("Number compiledMethodAt: #probe:")).decodedMethod);
+			return result;
+		} finally {
+			vm.stopTicker();
+		}
+	}
+
+	private static void assertFusesAll(DecodedMethod code) {
+		Set<Integer> fused = new HashSet<Integer>();
+		for (int opcode : code.superOpcodes)
+			fused.add(Integer.valueOf(opcode));
+		assertTrue("temp const", fused.contains(Integer.valueOf(DecodedMethod.PUSH_TEMP_CONST_SPECIAL)));
+		assertTrue("temp temp", fused.contains(Integer.valueOf(DecodedMethod.PUSH_TEMP_TEMP_SPECIAL)));
+		assertTrue("receiver const", fused.contains(Integer.valueOf(DecodedMethod.PUSH_RCVR_CONST_SPECIAL)));
+	}
+}
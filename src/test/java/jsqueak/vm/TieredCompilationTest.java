@@ -0,0 +1,181 @@
+package jsqueak.vm;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+import jsqueak.MiniImage;
+
+import org.junit.Test;
+
+/**
+ * Runs probe methods compiled by JvmCompiler and interpreted by run(),
+ * and compares what they answer.  The probes are made hot by a warm-up
+ * that calls them with arguments the compiled code handles itself.
+ */
+public class TieredCompilationTest {
+	private static final int COMPILE_THRESHOLD = 10;
+	private static final String WARM_UP = "1 to: 30 do: [:i | nil %s]";
+
+	@Test(timeout = 60000)
+	public void testDeoptimizesAtThisContext() throws Exception {
+		assertSameOutcome("probe: n | sum | sum := 0. 1 to: n do: [:i | sum := sum + i]."
+				+ " ^sum + (thisContext method == (UndefinedObject compiledMethodAt: #probe:) ifTrue: [1000] ifFalse: [0])",
+				"probe: 3", "nil probe: 100", "6050");
+	}
+
+	@Test
+	public void testSendsMustBeBooleanForNonBoolean() throws Exception {
+		assertSameOutcome("probe: x ^x ifTrue: [#yes] ifFalse: [#no]",
+				"probe: i odd", "nil probe: 3", null);
+	}
+
+	@Test
+	public void testOverflowsSmallIntegers() throws Exception {
+		assertSameOutcome("probe: x ^(Array new: 5) at: 1 put: (x + x) class; at: 2 put: (x - x - x - x) class;"
+				+ " at: 3 put: (x * x) class; at: 4 put: (x bitShift: 2) class; at: 5 put: x + x; yourself",
+				"probe: i", "nil probe: 16r3FFFFFFF",
+				"(LargePositiveInteger LargeNegativeInteger LargePositiveInteger LargePositiveInteger 2147483646 )");
+	}
+
+	/**
+	 * The loop only ends if its backward jump lets the semaphore another
+	 * thread signals wake the process that ends it.
+	 */
+	@Test(timeout = 60000)
+	public void testChecksInterruptsOnBackwardJumps() throws Exception {
+		assertSameOutcome("probe: n [ProbeFlag] whileFalse: [nil]. ^ProbeFlag",
+				"probe: i", "nil probe: 0", "true", true);
+	}
+
+	@Test
+	public void testInterpretsMethodsTooBigToCompile() throws Exception {
+		StringBuilder source = new StringBuilder("probe: x | a | a := x.");
+		for (int i = 0; i < 200; i++)
+			source.append(" a := a + 1.");
+		source.append(" ^a");
+		assertSameOutcome(source.toString(), "probe: i", "nil probe: 7", "207");
+		SqueakVM vm = tieredVM();
+		try {
+			compile(vm, source.toString());
+			vm.evaluate(String.format(WARM_UP, "probe: i"));
+			DecodedMethod code = translationOf(vm, "probe:");
+			assertNotNull(code);
+			assertEquals(true, code.opcodes.length > JvmCompiler.MAX_METHOD_BYTES);
+			assertNull(code.jvmCode);
+		} finally {
+			vm.stopTicker();
+		}
+	}
+
+	/** Changing a compiled method's bytecodes in place drops its compiled code with its translation. */
+	@Test
+	public void testRetranslatesMethodsWhoseBytecodesChange() throws Exception {
+		SqueakVM vm = tieredVM();
+		try {
+			compile(vm, "probe: x ^x + 1");
+			compile(vm, "probeAddingOne: x ^x + 1");
+			vm.evaluate(String.format(WARM_UP, "probe: i"));
+			DecodedMethod compiled = translationOf(vm, "probe:");
+			assertNotNull(compiled.jvmCode);
+			vm.evaluate("| m | m := UndefinedObject compiledMethodAt: #probe:. m at: m initialPC + 1 put: 16r77");
+			assertNull(translationOf(vm, "probe:"));
+			assertNull("still entered by running activations", compiled.jvmCode);
+			assertEquals("7", vm.printStringOf(vm.evaluate("nil probe: 5")));
+			vm.evaluate(String.format(WARM_UP, "probe: i"));
+			compiled = translationOf(vm, "probe:");
+			assertNotNull(compiled.jvmCode);
+			// primitiveStringReplace counts a method's bytes from its first bytecode
+			vm.evaluate("| m | m := UndefinedObject compiledMethodAt: #probe:. m replaceFrom: 1 to: m size - m initialPC + 1"
+					+ " with: (UndefinedObject compiledMethodAt: #probeAddingOne:) startingAt: 1");
+			assertNull(translationOf(vm, "probe:"));
+			assertNull("still entered by running activations", compiled.jvmCode);
+			assertEquals("6", vm.printStringOf(vm.evaluate("nil probe: 5")));
+		} finally {
+			vm.stopTicker();
+		}
+	}
+
+	/**
+	 * Compiles method in an interpreting and a tiered VM, warms it up with
+	 * warmUpSend sent to nil, and checks that both answer the same to
+	 * expression: its printString, or the failure if it has none.
+	 */
+	private static void assertSameOutcome(String method, String warmUpSend, String expression, String expected)
+			throws Exception {
+		assertSameOutcome(method, warmUpSend, expression, expected, false);
+	}
+
+	/**
+	 * With signalled, ProbeFlag is false while expression runs until a
+	 * higher priority Process sets it, woken by a semaphore another thread
+	 * signals.
+	 */
+	private static void assertSameOutcome(String method, String warmUpSend, String expression, String expected,
+			boolean signalled) throws Exception {
+		SqueakVM interpreting = MiniImage.newVM();
+		String interpreted;
+		try {
+			interpreted = outcome(interpreting, method, warmUpSend, expression, signalled);
+		} finally {
+			interpreting.stopTicker();
+		}
+		SqueakVM tiered = tieredVM();
+		String compiled;
+		try {
+			compiled = outcome(tiered, method, warmUpSend, expression, signalled);
+			if (translationOf(tiered, "probe:").opcodes.length <= JvmCompiler.MAX_METHOD_BYTES)
+				assertNotNull("compiled", translationOf(tiered, "probe:").jvmCode);
+		} finally {
+			tiered.stopTicker();
+		}
+		if (expected != null)
+			assertEquals(expected, interpreted);
+		assertEquals(interpreted, compiled);
+	}
+
+	private static SqueakVM tieredVM() throws Exception {
+		SqueakVM vm = MiniImage.newVM();
+		vm.setTieredCompilation(true);
+		vm.setCompileThreshold(COMPILE_THRESHOLD);
+		return vm;
+	}
+
+	private static String outcome(SqueakVM vm, String method, String warmUpSend, String expression, boolean signalled)
+			throws Exception {
+		compile(vm, method);
+		vm.evaluate(String.format(WARM_UP, warmUpSend));
+		if (signalled)
+			signalLater(vm, (Integer) vm.evaluate("| s | s := Semaphore new. ProbeFlag := false."
+					+ " [s wait. ProbeFlag := true] newProcess priority: Processor userSchedulingPriority + 1; resume."
+					+ " Smalltalk registerExternalObject: s"));
+		try {
+			return vm.printStringOf(vm.evaluate(expression));
+		} catch (EvaluationFailedException e) {
+			return e.getMessage();
+		}
+	}
+
+	private static void signalLater(final SqueakVM vm, final Integer semaphoreIndex) {
+		new Thread() {
+			public void run() {
+				try {
+					Thread.sleep(50);
+				} catch (InterruptedException e) {
+					return;
+				}
+				vm.signalSemaphoreWithIndex(semaphoreIndex.intValue());
+			}
+		}.start();
+	}
+
+	/** Compiles method in UndefinedObject; it may use the global ProbeFlag, true until set otherwise. */
+	private static void compile(SqueakVM vm, String method) throws Exception {
+		vm.evaluate("Smalltalk at: #ProbeFlag put: true");
+		vm.evaluate("UndefinedObject compile: '" + method.replace("'", "''") + "' classified: 'probes' notifying: nil");
+	}
+
+	private static DecodedMethod translationOf(SqueakVM vm, String selector) throws Exception {
+		return ((CompiledMethodObject) vm.evaluate("UndefinedObject compiledMethodAt: #" + selector)).decodedMethod;
+	}
+}